@@ -0,0 +1,134 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * AdaptiveBatcher collects items into batches of about the same number of bytes, instead of the same number of items,
+ * so memory use and output block sizes stay predictable when item sizes vary, e.g.
+ * <pre>
+ *     try (AdaptiveBatcher&lt;GenericRecord&gt; batcher = AdaptiveBatcher.forRecords(estimator, 4 * 1024 * 1024, batch -&gt; {
+ *         batch.forEach(dataFileWriter::append);
+ *         dataFileWriter.sync();
+ *     })) {
+ *         records.forEach(batcher::add);
+ *     }
+ * </pre>
+ * A batch is passed on when its estimated bytes reach the target. An item that doesn't fit in the current batch
+ * starts a new one, so only single items larger than the target give larger batches.
+ *
+ * Estimates are adjusted by the ratio between encoded and estimated bytes of earlier batches, if reported with
+ * {@link #reportEncodedBytes(long)}, e.g. to account for compression. Not thread safe.
+ */
+public class AdaptiveBatcher<T> implements Flushable, AutoCloseable {
+
+    // weight of the last reported batch in the correction
+    private static final double CORRECTION_WEIGHT = 0.25;
+
+    private final ToLongFunction<? super T> estimator;
+    private final long targetBytes;
+    private final int maxItems;
+    private final Consumer<List<T>> sink;
+    private List<T> batch = new ArrayList<>();
+    private long batchEstimate;
+    private long lastBatchEstimate;
+    private double correction = 1;
+
+    private AdaptiveBatcher(ToLongFunction<? super T> estimator, long targetBytes, int maxItems, Consumer<List<T>> sink) {
+        this.estimator = estimator;
+        this.targetBytes = targetBytes;
+        this.maxItems = maxItems;
+        this.sink = sink;
+    }
+
+    public static <T> AdaptiveBatcher<T> create(ToLongFunction<? super T> estimator, long targetBytes, Consumer<List<T>> sink) {
+        if (estimator == null) {
+            throw new NullPointerException("estimator can't be null");
+        }
+        if (sink == null) {
+            throw new NullPointerException("sink can't be null");
+        }
+        if (targetBytes < 1) {
+            throw new IllegalArgumentException("targetBytes must be positive, was " + targetBytes);
+        }
+        return new AdaptiveBatcher<>(estimator, targetBytes, Integer.MAX_VALUE, sink);
+    }
+
+    public static AdaptiveBatcher<GenericRecord> forRecords(RecordSizeEstimator estimator, long targetBytes, Consumer<List<GenericRecord>> sink) {
+        return create(estimator::estimate, targetBytes, sink);
+    }
+
+    /**
+     * Maximum number of items in a batch, whatever their size. Default is no limit.
+     */
+    public AdaptiveBatcher<T> withMaxItems(int maxItems) {
+        if (maxItems < 1) {
+            throw new IllegalArgumentException("maxItems must be positive, was " + maxItems);
+        }
+        if (!batch.isEmpty()) {
+            throw new IllegalStateException("Can't change maxItems of a batcher in use");
+        }
+        return new AdaptiveBatcher<>(estimator, targetBytes, maxItems, sink);
+    }
+
+    public void add(T item) {
+        long estimate = estimator.applyAsLong(item);
+        if (!batch.isEmpty() && (batchEstimate + estimate) * correction > targetBytes) {
+            flush();
+        }
+        batch.add(item);
+        batchEstimate += estimate;
+        if (batchEstimate * correction >= targetBytes || batch.size() >= maxItems) {
+            flush();
+        }
+    }
+
+    /**
+     * Pass on the current batch, if it has any items.
+     */
+    @Override
+    public void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<T> full = batch;
+        lastBatchEstimate = batchEstimate;
+        batch = new ArrayList<>(full.size());
+        batchEstimate = 0;
+        sink.accept(full);
+    }
+
+    /**
+     * Report the actual bytes of the last batch passed on, to adjust later estimates.
+     */
+    public void reportEncodedBytes(long encodedBytes) {
+        if (lastBatchEstimate > 0 && encodedBytes > 0) {
+            double ratio = (double) encodedBytes / lastBatchEstimate;
+            correction = correction * (1 - CORRECTION_WEIGHT) + ratio * CORRECTION_WEIGHT;
+        }
+    }
+
+    /**
+     * @return factor applied to estimates, the weighted ratio between reported and estimated bytes
+     */
+    public double getCorrection() {
+        return correction;
+    }
+
+    /**
+     * @return estimated bytes of the current batch, before correction
+     */
+    public long getBatchEstimate() {
+        return batchEstimate;
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -0,0 +1,211 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * ChunkedConverter splits records with huge arrays into several records, each with a bounded slice of the arrays.
+ *
+ * Chunked arrays are fields of the root record, selected with the field prop "chunkSize" or with
+ * {@link #withChunkSize(String, int)}. Chunk n holds elements n * chunkSize until (n + 1) * chunkSize of every
+ * chunked array, and its index in an int field added to the schema, see {@link #getSchema()}. A record without
+ * elements in the chunked arrays gives a single chunk.
+ *
+ * The first chunk holds all other fields of the record. Later chunks repeat the fields of simple types, e.g. keys,
+ * and leave out other arrays, records and maps that have a default in the chunk schema, so they don't grow with the
+ * number of chunks. Other arrays default to an empty array. Records and maps without a default are repeated in every
+ * chunk.
+ *
+ * Chunks are converted one at a time when iterated, so only one slice of converted records is held in memory.
+ */
+public class ChunkedConverter {
+
+    public static final String PROP = "chunkSize";
+    public static final String DEFAULT_INDEX_FIELD = "chunk";
+
+    private final SchemaBuddy schemaBuddy;
+    private final ConversionOptions options;
+    private final Map<String, Integer> chunkSizes;
+    private final String indexField;
+    private SchemaBuddy chunkSchemaBuddy;
+    // Fields only held by the first chunk
+    private Set<String> firstChunkFields;
+
+    private ChunkedConverter(SchemaBuddy schemaBuddy, ConversionOptions options, Map<String, Integer> chunkSizes, String indexField) {
+        this.schemaBuddy = schemaBuddy;
+        this.options = options;
+        this.chunkSizes = chunkSizes;
+        this.indexField = indexField;
+    }
+
+    public static ChunkedConverter forSchema(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        if (!schemaBuddy.isRoot()) {
+            throw new IllegalArgumentException("Can only chunk root records, was " + schemaBuddy.getPath());
+        }
+        Map<String, Integer> chunkSizes = new HashMap<>();
+        for (SchemaBuddy child : schemaBuddy.getChildren()) {
+            Object chunkSize = child.getProp(PROP);
+            if (chunkSize != null) {
+                chunkSizes.put(child.getName(), checkChunkSize(child, Integer.parseInt(chunkSize.toString())));
+            }
+        }
+        return new ChunkedConverter(schemaBuddy, options, chunkSizes, DEFAULT_INDEX_FIELD);
+    }
+
+    private static int checkChunkSize(SchemaBuddy array, int chunkSize) {
+        if (!array.isArrayType()) {
+            throw new IllegalArgumentException("Can only chunk arrays, " + array.getPath() + " is " + array.getType());
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive, was " + chunkSize);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Chunk the array with the given path, e.g. /root/person.
+     */
+    public ChunkedConverter withChunkSize(String path, int chunkSize) {
+        String prefix = "/" + schemaBuddy.getName() + "/";
+        SchemaBuddy array = path.startsWith(prefix) ? schemaBuddy.getChildReturnNullIdNotFound(path.substring(prefix.length())) : null;
+        if (array == null) {
+            throw new IllegalArgumentException("Can only chunk arrays in the root record, was " + path);
+        }
+        Map<String, Integer> copy = new HashMap<>(chunkSizes);
+        copy.put(array.getName(), checkChunkSize(array, chunkSize));
+        return new ChunkedConverter(schemaBuddy, options, copy, indexField);
+    }
+
+    /**
+     * Name of the int field holding the chunk index. Default is {@value #DEFAULT_INDEX_FIELD}.
+     */
+    public ChunkedConverter withIndexField(String indexField) {
+        if (indexField == null) {
+            throw new NullPointerException("indexField can't be null");
+        }
+        return new ChunkedConverter(schemaBuddy, options, chunkSizes, indexField);
+    }
+
+    /**
+     * @return schema of the chunks, the schema of the records with the index field added
+     */
+    public Schema getSchema() {
+        return chunkSchemaBuddy().getSchema();
+    }
+
+    private synchronized SchemaBuddy chunkSchemaBuddy() {
+        if (chunkSchemaBuddy == null) {
+            Schema schema = schemaBuddy.getSchema();
+            if (schema.getField(indexField) != null) {
+                throw new IllegalStateException("Schema " + schema.getFullName() + " already has a field " + indexField);
+            }
+            // chunks after the last element of an array, and after the first chunk for other arrays, get an empty array
+            List<String> arrays = new ArrayList<>();
+            for (Schema.Field field : schema.getFields()) {
+                if (field.schema().getType() == Schema.Type.ARRAY) {
+                    arrays.add(field.name());
+                }
+            }
+            Schema.Field index = new Schema.Field(indexField, Schema.create(Schema.Type.INT), "Index of the chunk", (Object) null);
+            Schema chunkSchema = SchemaProjection.withEmptyArrayDefaults(schema, arrays, Collections.singletonList(index));
+            chunkSchemaBuddy = SchemaBuddy.parse(chunkSchema);
+            firstChunkFields = new HashSet<>();
+            for (SchemaBuddy child : chunkSchemaBuddy.getChildren()) {
+                boolean simple = !child.isArrayType() && child.getType() != Schema.Type.RECORD && child.getType() != Schema.Type.MAP;
+                if (!simple && !chunkSizes.containsKey(child.getName()) && chunkSchema.getField(child.getName()).defaultVal() != null) {
+                    firstChunkFields.add(child.getName());
+                }
+            }
+        }
+        return chunkSchemaBuddy;
+    }
+
+    /**
+     * Convert the chunks of dataElement lazily. Dropped chunks (see {@link ErrorPolicy#DROP_RECORD}) are skipped.
+     */
+    public Iterator<GenericRecord> convert(DataElement dataElement) {
+        SchemaBuddy chunkSchemaBuddy = chunkSchemaBuddy();
+        return new Chunks(dataElement, chunkSchemaBuddy, firstChunkFields);
+    }
+
+    /**
+     * Convert the chunks of dataElement one at a time.
+     */
+    public void convert(DataElement dataElement, Consumer<GenericRecord> consumer) {
+        convert(dataElement).forEachRemaining(consumer);
+    }
+
+    private class Chunks implements Iterator<GenericRecord> {
+        private final DataElement dataElement;
+        private final SchemaBuddy chunkSchemaBuddy;
+        private final List<DataElement> shared = new ArrayList<>();
+        private final List<DataElement> repeated = new ArrayList<>();
+        private final Map<String, List<DataElement>> chunked = new HashMap<>();
+        private final int chunkCount;
+        private int index;
+        private GenericRecord next;
+
+        private Chunks(DataElement dataElement, SchemaBuddy chunkSchemaBuddy, Set<String> firstChunkFields) {
+            this.dataElement = dataElement;
+            this.chunkSchemaBuddy = chunkSchemaBuddy;
+            for (DataElement child : dataElement.getChildren()) {
+                if (chunkSizes.containsKey(child.getName())) {
+                    chunked.computeIfAbsent(child.getName(), name -> new ArrayList<>()).add(child);
+                } else {
+                    shared.add(child);
+                    if (!firstChunkFields.contains(child.getName())) {
+                        repeated.add(child);
+                    }
+                }
+            }
+            int count = 1;
+            for (Map.Entry<String, List<DataElement>> entry : chunked.entrySet()) {
+                int chunkSize = chunkSizes.get(entry.getKey());
+                count = Math.max(count, (entry.getValue().size() + chunkSize - 1) / chunkSize);
+            }
+            this.chunkCount = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && index < chunkCount) {
+                next = SchemaAwareElement.toRecord(chunk(index++), chunkSchemaBuddy, options);
+            }
+            return next != null;
+        }
+
+        @Override
+        public GenericRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            GenericRecord record = next;
+            next = null;
+            return record;
+        }
+
+        private DataElement chunk(int index) {
+            List<DataElement> children = new ArrayList<>(index == 0 ? shared : repeated);
+            for (Map.Entry<String, List<DataElement>> entry : chunked.entrySet()) {
+                int chunkSize = chunkSizes.get(entry.getKey());
+                List<DataElement> elements = entry.getValue();
+                int from = Math.min(elements.size(), index * chunkSize);
+                children.addAll(elements.subList(from, Math.min(elements.size(), from + chunkSize)));
+            }
+            DataElement chunk = dataElement.withChildren(children);
+            chunk.addChild(new DataElement(indexField, String.valueOf(index)));
+            return chunk;
+        }
+    }
+}
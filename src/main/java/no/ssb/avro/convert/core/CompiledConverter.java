@@ -0,0 +1,293 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CompiledConverter converts {@link DataElement}s straight into {@link GenericData.Record}s using a conversion plan
+ * prepared once per schema. The plan resolves field positions, types and defaults up front, so converting a record
+ * is a map lookup and a type specific parse per value, without building a {@link SchemaAwareElement} tree or going
+ * through {@link org.apache.avro.generic.GenericRecordBuilder}.
+ *
+ * The plan is created on first use and kept on the {@link SchemaBuddy}. Records the plan can't handle, e.g. values
+ * that fail to convert or schema types without a converter, are converted by
+ * {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}, so the result, including errors
+ * and {@link ErrorPolicy} handling, is always the same as for the generic path.
+ */
+public class CompiledConverter {
+
+    private final SchemaBuddy schemaBuddy;
+    private final ConversionOptions options;
+    private final RecordPlan plan;
+
+    private CompiledConverter(SchemaBuddy schemaBuddy, ConversionOptions options, RecordPlan plan) {
+        this.schemaBuddy = schemaBuddy;
+        this.options = options;
+        this.plan = plan;
+    }
+
+    public static CompiledConverter forSchema(SchemaBuddy schemaBuddy) {
+        return forSchema(schemaBuddy, ConversionOptions.defaults());
+    }
+
+    public static CompiledConverter forSchema(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        // Parallel arrays and limits other than the default are only supported by the generic path
+        if (options.getParallelArrayThreshold() != Integer.MAX_VALUE || options.getMaxNodes() != Integer.MAX_VALUE
+                || options.getMaxDepth() != ConversionOptions.DEFAULT_MAX_DEPTH) {
+            return new CompiledConverter(schemaBuddy, options, null);
+        }
+        return new CompiledConverter(schemaBuddy, options, schemaBuddy.getCompiledPlan());
+    }
+
+    /**
+     * @return false if all records are converted by the generic path
+     */
+    public boolean isCompiled() {
+        return plan != null;
+    }
+
+    /**
+     * Same as {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}
+     */
+    public GenericRecord convert(DataElement dataElement) {
+        if (plan == null) {
+            return SchemaAwareElement.toRecord(dataElement, schemaBuddy, options);
+        }
+        ConversionEvents.Config events = ConversionEvents.config();
+        long start = events != null ? System.nanoTime() : 0L;
+        GenericRecord record;
+        try {
+            record = plan.convert(dataElement, options);
+        } catch (FallbackException e) {
+            return SchemaAwareElement.toRecord(dataElement, schemaBuddy, options);
+        }
+        if (events != null) {
+            events.recordConverted(schemaBuddy.getName(), dataElement::countNodes, -1, start);
+        }
+        return record;
+    }
+
+    // Thrown when a record must be converted by the generic path. Has no stacktrace to be cheap.
+    private static class FallbackException extends RuntimeException {
+        private static final FallbackException INSTANCE = new FallbackException();
+
+        private FallbackException() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Created by SchemaBuddy.getCompiledPlan
+    static class RecordPlan {
+        private final Schema schema;
+        private final Map<String, FieldPlan> fieldsByName = new HashMap<>();
+        private final RecordDefaults defaults;
+
+        RecordPlan(SchemaBuddy schemaBuddy) {
+            this.schema = schemaBuddy.getSchema();
+            this.defaults = schemaBuddy.getRecordDefaults();
+            for (Schema.Field field : schema.getFields()) {
+                SchemaBuddy child = schemaBuddy.getChild(field.name());
+                fieldsByName.put(field.name(), FieldPlan.of(field.pos(), child));
+            }
+        }
+
+        private GenericData.Record convert(DataElement dataElement, ConversionOptions options) {
+            if (dataElement.hasValue()) {
+                throw FallbackException.INSTANCE;
+            }
+            GenericData.Record record = new GenericData.Record(schema);
+            boolean[] set = new boolean[defaults.getFields().length];
+            for (DataElement child : dataElement.getChildren()) {
+                FieldPlan fieldPlan = fieldsByName.get(child.getName());
+                if (fieldPlan == null) {
+                    if (options.isIgnoreUnknownFields()) {
+                        continue;
+                    }
+                    throw FallbackException.INSTANCE;
+                }
+                fieldPlan.apply(record, child, set, options);
+            }
+            for (int pos = 0; pos < set.length; pos++) {
+                if (!set[pos]) {
+                    if (!defaults.hasDefault(pos)) {
+                        throw FallbackException.INSTANCE;
+                    }
+                    record.put(pos, defaults.get(pos));
+                }
+            }
+            return record;
+        }
+    }
+
+    private abstract static class FieldPlan {
+        final int pos;
+
+        private FieldPlan(int pos) {
+            this.pos = pos;
+        }
+
+        static FieldPlan of(int pos, SchemaBuddy schemaBuddy) {
+            if (schemaBuddy.isArrayType()) {
+                SchemaBuddy elementSchema = schemaBuddy.getArrayTypeSchema();
+                return elementSchema.isRecordType()
+                        ? new RecordArrayFieldPlan(pos, elementSchema.getCompiledPlan())
+                        : new SimpleArrayFieldPlan(pos, schemaBuddy.getSchema(), elementSchema);
+            }
+            if (schemaBuddy.isRecordType()) {
+                return new RecordFieldPlan(pos, schemaBuddy.getCompiledPlan());
+            }
+            return new SimpleFieldPlan(pos, schemaBuddy);
+        }
+
+        abstract void apply(GenericData.Record record, DataElement dataElement, boolean[] set, ConversionOptions options);
+
+        @SuppressWarnings("unchecked")
+        List<Object> list(GenericData.Record record, boolean[] set) {
+            if (!set[pos]) {
+                record.put(pos, new ArrayList<>());
+                set[pos] = true;
+            }
+            return (List<Object>) record.get(pos);
+        }
+    }
+
+    private static class SimpleFieldPlan extends FieldPlan {
+        private final SchemaBuddy schemaBuddy;
+        private final Schema.Type type;
+
+        private SimpleFieldPlan(int pos, SchemaBuddy schemaBuddy) {
+            super(pos);
+            this.schemaBuddy = schemaBuddy;
+            this.type = schemaBuddy.getType();
+        }
+
+        @Override
+        void apply(GenericData.Record record, DataElement dataElement, boolean[] set, ConversionOptions options) {
+            CharSequence value = dataElement.getCharSequence();
+            if (value == null && schemaBuddy.isOptional()) {
+                return;
+            }
+            if (value == null && type != Schema.Type.MAP) {
+                Object missingValue = schemaBuddy.getMissingValue(options.getMissingValuePolicy());
+                if (missingValue == MissingValue.USE_DEFAULT) {
+                    return;
+                }
+                if (missingValue == null || missingValue == MissingValue.FAIL) {
+                    throw FallbackException.INSTANCE;
+                }
+                record.put(pos, missingValue);
+                set[pos] = true;
+                return;
+            }
+            try {
+                switch (type) {
+                    case STRING:
+                        record.put(pos, SchemaAwareElement.string(schemaBuddy, value, options));
+                        break;
+                    case LONG:
+                        record.put(pos, Utf8Values.parseLong(value));
+                        break;
+                    case INT:
+                        record.put(pos, Utf8Values.parseInt(value));
+                        break;
+                    case DOUBLE:
+                        record.put(pos, Utf8Values.parseDouble(value));
+                        break;
+                    case FLOAT:
+                        record.put(pos, Utf8Values.parseFloat(value));
+                        break;
+                    case BOOLEAN:
+                        record.put(pos, Utf8Values.parseBoolean(value));
+                        break;
+                    case MAP:
+                        record.put(pos, new HashMap<>());
+                        break;
+                    default:
+                        throw FallbackException.INSTANCE;
+                }
+            } catch (NumberFormatException e) {
+                // the generic path reports the error and applies the ErrorPolicy
+                throw FallbackException.INSTANCE;
+            }
+            set[pos] = true;
+        }
+    }
+
+    private static class RecordFieldPlan extends FieldPlan {
+        private final RecordPlan plan;
+
+        private RecordFieldPlan(int pos, RecordPlan plan) {
+            super(pos);
+            this.plan = plan;
+        }
+
+        @Override
+        void apply(GenericData.Record record, DataElement dataElement, boolean[] set, ConversionOptions options) {
+            record.put(pos, plan.convert(dataElement, options));
+            set[pos] = true;
+        }
+    }
+
+    private static class RecordArrayFieldPlan extends FieldPlan {
+        private final RecordPlan plan;
+
+        private RecordArrayFieldPlan(int pos, RecordPlan plan) {
+            super(pos);
+            this.plan = plan;
+        }
+
+        @Override
+        void apply(GenericData.Record record, DataElement dataElement, boolean[] set, ConversionOptions options) {
+            list(record, set).add(plan.convert(dataElement, options));
+        }
+    }
+
+    private static class SimpleArrayFieldPlan extends FieldPlan {
+        private static final int INITIAL_CAPACITY = 8;
+
+        private final Schema arraySchema;
+        private final SchemaBuddy elementSchema;
+        private final boolean primitive;
+        // Elements of a primitive type that accept null
+        private final boolean boxed;
+
+        private SimpleArrayFieldPlan(int pos, Schema arraySchema, SchemaBuddy elementSchema) {
+            super(pos);
+            this.arraySchema = arraySchema;
+            this.elementSchema = elementSchema;
+            this.primitive = PrimitiveArrays.isPrimitive(arraySchema.getElementType().getType());
+            this.boxed = !primitive && PrimitiveArrays.isPrimitive(elementSchema.getType());
+        }
+
+        @Override
+        void apply(GenericData.Record record, DataElement dataElement, boolean[] set, ConversionOptions options) {
+            CharSequence value = dataElement.getCharSequence();
+            if (value == null) {
+                // the generic path treats arrays starting with a null value as arrays of records
+                throw FallbackException.INSTANCE;
+            }
+            if (primitive) {
+                if (!set[pos]) {
+                    // the number of elements is not known until the record is read, so the array grows as needed
+                    record.put(pos, PrimitiveArrays.create(arraySchema, INITIAL_CAPACITY));
+                    set[pos] = true;
+                }
+                try {
+                    PrimitiveArrays.add((PrimitiveArrays.PrimitiveArray<?>) record.get(pos), value);
+                } catch (NumberFormatException e) {
+                    throw FallbackException.INSTANCE;
+                }
+            } else if (boxed) {
+                throw FallbackException.INSTANCE;
+            } else {
+                list(record, set).add(SchemaAwareElement.string(elementSchema, value, options));
+            }
+        }
+    }
+}
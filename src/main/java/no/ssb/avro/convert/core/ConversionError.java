@@ -0,0 +1,70 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+
+/**
+ * A value that could not be converted. The diagnostic message is only built when {@link #getMessage()} is called.
+ * Only the path, value and schema of the element are kept, not the record it is in.
+ */
+public class ConversionError {
+
+    private final String path;
+    private final String name;
+    private final String rawValue;
+    private final SchemaBuddy schemaBuddy;
+    private final Schema.Type expectedType;
+    private final Exception cause;
+    private String message;
+
+    ConversionError(String path, String name, String rawValue, SchemaBuddy schemaBuddy, Schema.Type expectedType, Exception cause) {
+        this.path = path;
+        this.name = name;
+        this.rawValue = rawValue;
+        this.schemaBuddy = schemaBuddy;
+        this.expectedType = expectedType;
+        this.cause = cause;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getRawValue() {
+        return rawValue;
+    }
+
+    public Schema.Type getExpectedType() {
+        return expectedType;
+    }
+
+    public Exception getCause() {
+        return cause;
+    }
+
+    public String getMessage() {
+        if (message == null) {
+            message = cause.getMessage() + String.format("%ndata:(%s value:%s schema(%s))", name, rawValue, schemaBuddy);
+        }
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return getPath() + " expected:" + expectedType + " value:" + getRawValue();
+    }
+
+    /**
+     * Receives conversion errors when converting with an {@link ErrorPolicy} other than {@link ErrorPolicy#FAIL}.
+     * Can be used as a dead-letter channel.
+     */
+    public interface Sink {
+
+        void onError(ConversionError error);
+
+        /**
+         * Invoked after {@link #onError(ConversionError)} when the record was dropped due to {@link ErrorPolicy#DROP_RECORD}.
+         */
+        default void onRecordDropped(DataElement dataElement) {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package no.ssb.avro.convert.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * ConversionEvents lets a profiler or metrics system observe schema parsing, record conversion and slow
+ * {@link ValueInterceptor}s, so latency can be attributed to a specific schema or document.
+ *
+ * Events are disabled by default. As long as no {@link Listener} is registered the instrumented code
+ * only performs a single volatile read and never calls {@link System#nanoTime()}.
+ *
+ * The library targets Java 8 and therefore can't depend on jdk.jfr directly. On Java 11+ a
+ * {@link Listener} can commit custom {@code jdk.jfr.Event}s to make these show up in Flight Recorder:
+ * <pre>
+ *     ConversionEvents.enable(new ConversionEvents.Listener() {
+ *         public void onRecordConverted(String schemaName, int nodeCount, long bytes, long durationNanos) {
+ *             RecordConvertedJfrEvent event = new RecordConvertedJfrEvent();
+ *             ...
+ *             event.commit();
+ *         }
+ *     }, 10, 5, TimeUnit.MILLISECONDS);
+ * </pre>
+ */
+public final class ConversionEvents {
+
+    private static volatile Config config;
+
+    private ConversionEvents() {
+    }
+
+    /**
+     * Enable events. Record conversions and interceptor invocations are only reported when they take at least
+     * the given threshold. Schema parsing is always reported.
+     */
+    public static void enable(Listener listener, long recordThreshold, long interceptorThreshold, TimeUnit unit) {
+        if (listener == null) {
+            throw new NullPointerException("listener can't be null");
+        }
+        config = new Config(listener, unit.toNanos(recordThreshold), unit.toNanos(interceptorThreshold));
+    }
+
+    /**
+     * Enable events and report every record conversion and interceptor invocation.
+     */
+    public static void enable(Listener listener) {
+        enable(listener, 0, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public static void disable() {
+        config = null;
+    }
+
+    public static boolean isEnabled() {
+        return config != null;
+    }
+
+    static Config config() {
+        return config;
+    }
+
+    static final class Config {
+        final Listener listener;
+        final long recordThresholdNanos;
+        final long interceptorThresholdNanos;
+
+        private Config(Listener listener, long recordThresholdNanos, long interceptorThresholdNanos) {
+            this.listener = listener;
+            this.recordThresholdNanos = recordThresholdNanos;
+            this.interceptorThresholdNanos = interceptorThresholdNanos;
+        }
+
+        void schemaParsed(String schemaName, int nodeCount, long startNanos) {
+            listener.onSchemaParsed(schemaName, nodeCount, System.nanoTime() - startNanos);
+        }
+
+        // nodeCount is only computed when the record is reported
+        void recordConverted(String schemaName, IntSupplier nodeCount, long bytes, long startNanos) {
+            long duration = System.nanoTime() - startNanos;
+            if (duration >= recordThresholdNanos) {
+                listener.onRecordConverted(schemaName, nodeCount.getAsInt(), bytes, duration);
+            }
+        }
+
+        void interceptorInvoked(DataElement dataElement, long startNanos) {
+            long duration = System.nanoTime() - startNanos;
+            if (duration >= interceptorThresholdNanos) {
+                listener.onSlowInterceptor(dataElement.getPath(), duration);
+            }
+        }
+    }
+
+    /**
+     * Receives events. Methods are invoked on the thread doing the work and should return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * @param schemaName name of the root record
+         * @param nodeCount number of {@link SchemaBuddy} nodes in the parsed tree
+         */
+        default void onSchemaParsed(String schemaName, int nodeCount, long durationNanos) {
+        }
+
+        /**
+         * @param schemaName name of the root record
+         * @param nodeCount number of {@link DataElement} nodes the record was converted from
+         * @param bytes encoded size in bytes, or -1 when the record was not encoded as part of the conversion
+         */
+        default void onRecordConverted(String schemaName, int nodeCount, long bytes, long durationNanos) {
+        }
+
+        /**
+         * @param path path of the {@link DataElement} the interceptor was applied to
+         */
+        default void onSlowInterceptor(String path, long durationNanos) {
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package no.ssb.avro.convert.core;
+
+/**
+ * Thrown when a value can't be converted and the {@link ErrorPolicy} is {@link ErrorPolicy#FAIL}.
+ * The message, which includes the offending data, is built lazily.
+ */
+public class ConversionException extends RuntimeException {
+
+    private final transient ConversionError error;
+
+    ConversionException(ConversionError error) {
+        super(error.getCause());
+        this.error = error;
+    }
+
+    public ConversionError getError() {
+        return error;
+    }
+
+    @Override
+    public String getMessage() {
+        return error.getMessage();
+    }
+}
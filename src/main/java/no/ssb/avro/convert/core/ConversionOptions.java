@@ -0,0 +1,233 @@
+package no.ssb.avro.convert.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options used by {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}.
+ * Instances are immutable, each with-method returns a modified copy.
+ */
+public class ConversionOptions {
+
+    static final int DEFAULT_MAX_DEPTH = 1000;
+
+    private static final ConversionOptions DEFAULTS = new ConversionOptions();
+
+    private ErrorPolicy errorPolicy = ErrorPolicy.FAIL;
+    private ConversionError.Sink errorSink;
+    private MissingValuePolicy missingValuePolicy = MissingValuePolicy.PLACEHOLDER;
+    private boolean ignoreUnknownFields;
+    private int parallelArrayThreshold = Integer.MAX_VALUE;
+    private ForkJoinPool forkJoinPool;
+    private boolean trustedFastPath;
+    private boolean validation;
+    private ValueInterner valueInterner;
+    private boolean utf8Strings;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private int maxNodes = Integer.MAX_VALUE;
+
+    private ConversionOptions() {
+    }
+
+    private ConversionOptions(ConversionOptions other) {
+        this.errorPolicy = other.errorPolicy;
+        this.errorSink = other.errorSink;
+        this.missingValuePolicy = other.missingValuePolicy;
+        this.ignoreUnknownFields = other.ignoreUnknownFields;
+        this.parallelArrayThreshold = other.parallelArrayThreshold;
+        this.forkJoinPool = other.forkJoinPool;
+        this.trustedFastPath = other.trustedFastPath;
+        this.validation = other.validation;
+        this.valueInterner = other.valueInterner;
+        this.utf8Strings = other.utf8Strings;
+        this.maxDepth = other.maxDepth;
+        this.maxNodes = other.maxNodes;
+    }
+
+    public static ConversionOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public ErrorPolicy getErrorPolicy() {
+        return errorPolicy;
+    }
+
+    public ConversionError.Sink getErrorSink() {
+        return errorSink;
+    }
+
+    /**
+     * Decide how values that can't be converted are handled. Default is {@link ErrorPolicy#FAIL}.
+     */
+    public ConversionOptions withErrorPolicy(ErrorPolicy errorPolicy) {
+        if (errorPolicy == null) {
+            throw new NullPointerException("errorPolicy can't be null");
+        }
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.errorPolicy = errorPolicy;
+        return copy;
+    }
+
+    /**
+     * Collect errors that are not thrown, see {@link ErrorPolicy}.
+     */
+    public ConversionOptions withErrorSink(ConversionError.Sink errorSink) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.errorSink = errorSink;
+        return copy;
+    }
+
+    public MissingValuePolicy getMissingValuePolicy() {
+        return missingValuePolicy;
+    }
+
+    /**
+     * Decide the value of required fields that are in the data without a value.
+     * Default is {@link MissingValuePolicy#PLACEHOLDER}.
+     */
+    public ConversionOptions withMissingValuePolicy(MissingValuePolicy missingValuePolicy) {
+        if (missingValuePolicy == null) {
+            throw new NullPointerException("missingValuePolicy can't be null");
+        }
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.missingValuePolicy = missingValuePolicy;
+        return copy;
+    }
+
+    public boolean isIgnoreUnknownFields() {
+        return ignoreUnknownFields;
+    }
+
+    /**
+     * Skip data elements that are not in the schema instead of failing. Together with
+     * {@link SchemaBuddy#project(java.util.Collection)} this converts only a subset of the fields,
+     * and the skipped subtrees are never visited.
+     */
+    public ConversionOptions withIgnoreUnknownFields(boolean ignoreUnknownFields) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.ignoreUnknownFields = ignoreUnknownFields;
+        return copy;
+    }
+
+    public int getParallelArrayThreshold() {
+        return parallelArrayThreshold;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool != null ? forkJoinPool : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Convert arrays of records with at least threshold elements in parallel on the common {@link ForkJoinPool}.
+     * Element order is kept. Disabled by default.
+     */
+    public ConversionOptions withParallelArrays(int threshold) {
+        return withParallelArrays(threshold, null);
+    }
+
+    /**
+     * Convert arrays of records with at least threshold elements in parallel on the given pool.
+     * Element order is kept. An error sink must be thread safe when this is enabled.
+     */
+    public ConversionOptions withParallelArrays(int threshold, ForkJoinPool forkJoinPool) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive, was " + threshold);
+        }
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.parallelArrayThreshold = threshold;
+        copy.forkJoinPool = forkJoinPool;
+        return copy;
+    }
+
+    public boolean isTrustedFastPath() {
+        return trustedFastPath;
+    }
+
+    /**
+     * Fill {@link org.apache.avro.generic.GenericData.Record}s directly instead of going through
+     * {@link org.apache.avro.generic.GenericRecordBuilder}. Fields are not validated unless {@link #withValidation(boolean)}
+     * is set, and immutable default values are shared between records instead of deep-copied for every record.
+     * Disabled by default.
+     */
+    public ConversionOptions withTrustedFastPath(boolean trustedFastPath) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.trustedFastPath = trustedFastPath;
+        return copy;
+    }
+
+    public boolean isValidation() {
+        return validation;
+    }
+
+    /**
+     * Reject null values for fields that don't accept null, like {@link org.apache.avro.generic.GenericRecordBuilder} does.
+     * Only used with {@link #withTrustedFastPath(boolean)}, the builder always validates.
+     */
+    public ConversionOptions withValidation(boolean validation) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.validation = validation;
+        return copy;
+    }
+
+    public ValueInterner getValueInterner() {
+        return valueInterner;
+    }
+
+    /**
+     * Deduplicate string values of the fields selected by the interner. Disabled by default.
+     */
+    public ConversionOptions withValueInterner(ValueInterner valueInterner) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.valueInterner = valueInterner;
+        return copy;
+    }
+
+    public boolean isUtf8Strings() {
+        return utf8Strings;
+    }
+
+    /**
+     * Keep values set with {@link DataElement#setUtf8Value(org.apache.avro.util.Utf8)} as
+     * {@link org.apache.avro.util.Utf8} in string fields, so they are never decoded and are encoded without
+     * transcoding. Other values stay Strings. Disabled by default, then all string fields are Strings.
+     */
+    public ConversionOptions withUtf8Strings(boolean utf8Strings) {
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.utf8Strings = utf8Strings;
+        return copy;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Fail a record with data elements nested deeper than maxDepth below the root, before converting it.
+     * Default is 1000. Also used by the readers of {@link DirectoryIngestion}.
+     */
+    public ConversionOptions withMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be positive, was " + maxDepth);
+        }
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.maxDepth = maxDepth;
+        return copy;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * Fail a record with more than maxNodes data elements as soon as they are counted, before converting it.
+     * Unknown fields skipped with {@link #withIgnoreUnknownFields(boolean)} are not counted. No limit by default.
+     * Also used by the readers of {@link DirectoryIngestion}.
+     */
+    public ConversionOptions withMaxNodes(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("maxNodes must be positive, was " + maxNodes);
+        }
+        ConversionOptions copy = new ConversionOptions(this);
+        copy.maxNodes = maxNodes;
+        return copy;
+    }
+}
@@ -0,0 +1,455 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ConversionPipeline connects a source, any number of processing stages and a sink with bounded queues, e.g.
+ * <pre>
+ *     ConversionPipeline.from("source", lines)
+ *             .map("build", MyParser::toDataElement).parallelism(2)
+ *             .map("convert", ConversionPipeline.converter(schemaBuddy, options)).parallelism(8)
+ *             .map("encode", ConversionPipeline.encoder(schemaBuddy.getSchema())).parallelism(2)
+ *             .to("sink", out::write)
+ *             .run();
+ * </pre>
+ * Each stage runs its workers on its own {@link Executor}, or on a thread pool owned by the pipeline. On Java 21
+ * blocking stages can be given {@code Executors.newVirtualThreadPerTaskExecutor()}. Every worker keeps its thread
+ * until the pipeline ends, so an executor needs at least one thread per worker given to it, see
+ * {@link Builder#executor(Executor)}.
+ *
+ * A full queue blocks the stage writing to it, so a slow stage slows down the stages before it instead of
+ * buffering without bounds. Items are not kept in order when a stage has a parallelism above 1.
+ * Stages returning null drop the item, e.g. records dropped by {@link ErrorPolicy#DROP_RECORD}.
+ */
+public class ConversionPipeline {
+
+    private static final Object END = new Object();
+    private static final long POLL_MILLIS = 100;
+
+    private final List<Stage> stages;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private CountDownLatch done;
+    private ExecutorService ownExecutor;
+    private long startNanos;
+
+    private ConversionPipeline(List<Stage> stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Start a pipeline reading from the given source. The source is read by a single worker.
+     */
+    public static <T> Builder<T> from(String name, Iterator<? extends T> source) {
+        List<Stage> stages = new ArrayList<>();
+        stages.add(new Stage(name, null, source));
+        return new Builder<>(stages);
+    }
+
+    /**
+     * A stage function converting {@link DataElement}s to records. Returns null for dropped records.
+     */
+    public static Function<DataElement, GenericRecord> converter(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        return dataElement -> SchemaAwareElement.toRecord(dataElement, schemaBuddy, options);
+    }
+
+    /**
+     * A stage function converting {@link DataElement}s to records encoded as Avro binary. Returns null for dropped
+     * records. Unlike {@link #converter} followed by {@link #encoder}, conversions are reported to
+     * {@link ConversionEvents} with their encoded size.
+     */
+    public static Function<DataElement, byte[]> binaryConverter(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        Function<GenericRecord, byte[]> encoder = encoder(schemaBuddy.getSchema());
+        return dataElement -> {
+            ConversionEvents.Config events = ConversionEvents.config();
+            long start = events != null ? System.nanoTime() : 0L;
+            GenericRecord record = SchemaAwareElement.convert(dataElement, schemaBuddy, options);
+            if (record == null) {
+                return null;
+            }
+            byte[] bytes = encoder.apply(record);
+            if (events != null) {
+                events.recordConverted(schemaBuddy.getName(), dataElement::countNodes, bytes.length, start);
+            }
+            return bytes;
+        };
+    }
+
+    /**
+     * A stage function encoding records to Avro binary.
+     */
+    public static Function<GenericRecord, byte[]> encoder(Schema schema) {
+        GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema);
+        ThreadLocal<BinaryEncoder> encoders = new ThreadLocal<>();
+        return record -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, encoders.get());
+            encoders.set(encoder);
+            try {
+                writer.write(record, encoder);
+                encoder.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        };
+    }
+
+    /**
+     * Start all stages and return immediately. If an executor rejects a worker the pipeline fails, and
+     * {@link #await()} throws once the workers already started have stopped.
+     *
+     * @throws IllegalArgumentException if a {@link ThreadPoolExecutor} or {@link ForkJoinPool} has fewer threads
+     *                                  than the workers given to it
+     */
+    public synchronized ConversionPipeline start() {
+        if (done != null) {
+            throw new IllegalStateException("Pipeline is already started");
+        }
+        int workers = 0;
+        Map<Executor, Integer> workersByExecutor = new IdentityHashMap<>();
+        for (Stage stage : stages) {
+            workers += stage.parallelism;
+            if (stage.executor != null) {
+                workersByExecutor.merge(stage.executor, stage.parallelism, Integer::sum);
+            }
+        }
+        workersByExecutor.forEach((executor, executorWorkers) -> {
+            int threads = maxThreads(executor);
+            if (threads < executorWorkers) {
+                throw new IllegalArgumentException("Executor " + executor + " can run " + threads
+                        + " threads, but needs one for each of its " + executorWorkers + " workers");
+            }
+        });
+        done = new CountDownLatch(workers);
+        startNanos = System.nanoTime();
+        int started = 0;
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            Executor executor = stage.executor != null ? stage.executor : ownExecutor();
+            stage.running.set(stage.parallelism);
+            for (int worker = 0; worker < stage.parallelism; worker++) {
+                try {
+                    executor.execute(() -> runWorker(stage, next));
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, new RuntimeException("Stage " + stage.name + " could not be started", e));
+                    // The workers that never started won't count down
+                    for (int notStarted = started; notStarted < workers; notStarted++) {
+                        done.countDown();
+                    }
+                    return this;
+                }
+                started++;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Wait for all items to pass through the pipeline.
+     *
+     * @throws RuntimeException wrapping the first failure of any stage
+     */
+    public void await() throws InterruptedException {
+        if (done == null) {
+            throw new IllegalStateException("Pipeline is not started");
+        }
+        try {
+            done.await();
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            throw new RuntimeException("Pipeline failed: " + throwable.getMessage(), throwable);
+        }
+    }
+
+    /**
+     * Start and wait for all items to pass through the pipeline.
+     */
+    public void run() throws InterruptedException {
+        start().await();
+    }
+
+    /**
+     * Current queue depth and throughput of every stage.
+     */
+    public List<StageStats> getStageStats() {
+        long elapsedNanos = startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+        List<StageStats> stats = new ArrayList<>();
+        for (Stage stage : stages) {
+            stats.add(new StageStats(stage, elapsedNanos));
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    private synchronized Executor ownExecutor() {
+        if (ownExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ownExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "conversion-pipeline-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return ownExecutor;
+    }
+
+    // Threads the executor is known to run at the same time, or Integer.MAX_VALUE when unknown
+    private static int maxThreads(Executor executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            // Tasks wait in the queue instead of getting a new thread when all core threads are busy
+            return pool.getQueue().remainingCapacity() == 0 ? pool.getMaximumPoolSize() : pool.getCorePoolSize();
+        }
+        if (executor instanceof ForkJoinPool) {
+            // A worker blocked on a queue is not compensated by the pool
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runWorker(Stage stage, Stage next) {
+        try {
+            if (stage.source != null) {
+                while (failure.get() == null && stage.source.hasNext()) {
+                    Object item = stage.source.next();
+                    stage.processed.increment();
+                    put(next, item);
+                }
+            } else {
+                while (failure.get() == null) {
+                    Object item = stage.input.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (item == END) {
+                        break;
+                    }
+                    if (item != null) {
+                        Object result = stage.function.apply(item);
+                        stage.processed.increment();
+                        if (result != null && next != null) {
+                            put(next, result);
+                        }
+                    }
+                }
+            }
+            if (stage.running.decrementAndGet() == 0 && next != null) {
+                for (int i = 0; i < next.parallelism; i++) {
+                    put(next, END);
+                }
+            }
+        } catch (PipelineFailedException e) {
+            // another stage failed and already set the failure
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, new RuntimeException("Stage " + stage.name + " failed", t));
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private void put(Stage next, Object item) throws InterruptedException {
+        while (!next.input.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                throw PipelineFailedException.INSTANCE;
+            }
+        }
+    }
+
+    // Stops a worker blocked on a full queue when another stage failed. Has no stacktrace to be cheap.
+    private static class PipelineFailedException extends RuntimeException {
+        private static final PipelineFailedException INSTANCE = new PipelineFailedException();
+
+        private PipelineFailedException() {
+            super("Pipeline failed", null, false, false);
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final Function<Object, Object> function;
+        private final Iterator<?> source;
+        private final AtomicInteger running = new AtomicInteger();
+        private final LongAdder processed = new LongAdder();
+        private int parallelism = 1;
+        private int queueCapacity = 1024;
+        private Executor executor;
+        private BlockingQueue<Object> input;
+
+        private Stage(String name, Function<Object, Object> function, Iterator<?> source) {
+            this.name = name;
+            this.function = function;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Adds stages to a pipeline. Parallelism, queue capacity and executor apply to the most recently added stage.
+     *
+     * @param <T> type of the items produced by the most recently added stage
+     */
+    public static class Builder<T> {
+
+        private final List<Stage> stages;
+
+        private Builder(List<Stage> stages) {
+            this.stages = stages;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <R> Builder<R> map(String name, Function<? super T, ? extends R> function) {
+            stages.add(new Stage(name, (Function<Object, Object>) function, null));
+            return new Builder<>(stages);
+        }
+
+        public ConversionPipeline to(String name, Consumer<? super T> sink) {
+            map(name, item -> {
+                sink.accept(item);
+                return null;
+            });
+            return build();
+        }
+
+        /**
+         * Number of workers for the most recently added stage. The source always has one worker.
+         */
+        public Builder<T> parallelism(int parallelism) {
+            Stage stage = last();
+            if (stage.source != null) {
+                throw new IllegalStateException("Parallelism of source can't be changed");
+            }
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+            }
+            stage.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Capacity of the queue in front of the most recently added stage. Default is 1024.
+         */
+        public Builder<T> queueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("queueCapacity must be positive, was " + queueCapacity);
+            }
+            last().queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Executor for the workers of the most recently added stage. Each worker keeps a thread until the
+         * pipeline ends, so the executor must be able to run all workers given to it at the same time, including
+         * those of other stages sharing it. Otherwise a worker blocked on a full queue waits forever for a
+         * downstream worker that never gets a thread. {@link ConversionPipeline#start()} rejects {@link ThreadPoolExecutor}s and
+         * {@link ForkJoinPool}s with too few threads, but can't see threads used by other tasks.
+         */
+        public Builder<T> executor(Executor executor) {
+            last().executor = executor;
+            return this;
+        }
+
+        private Stage last() {
+            return stages.get(stages.size() - 1);
+        }
+
+        private ConversionPipeline build() {
+            List<Stage> built = new ArrayList<>(stages);
+            for (Stage stage : built) {
+                if (stage.source == null) {
+                    stage.input = new ArrayBlockingQueue<>(stage.queueCapacity);
+                }
+            }
+            return new ConversionPipeline(built);
+        }
+    }
+
+    /**
+     * Snapshot of the state of a stage.
+     */
+    public static class StageStats {
+        private final String name;
+        private final int parallelism;
+        private final int queueDepth;
+        private final int queueCapacity;
+        private final long processed;
+        private final double throughputPerSecond;
+
+        private StageStats(Stage stage, long elapsedNanos) {
+            this.name = stage.name;
+            this.parallelism = stage.parallelism;
+            this.queueDepth = stage.input != null ? stage.input.size() : 0;
+            this.queueCapacity = stage.input != null ? stage.queueCapacity : 0;
+            this.processed = stage.processed.sum();
+            this.throughputPerSecond = elapsedNanos > 0 ? processed * 1e9 / elapsedNanos : 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * Number of items waiting in the queue in front of the stage. Always 0 for the source.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * Items processed per second since the pipeline was started.
+         */
+        public double getThroughputPerSecond() {
+            return throughputPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s parallelism:%d queue:%d/%d processed:%d throughput:%.1f/s",
+                    name, parallelism, queueDepth, queueCapacity, processed, throughputPerSecond);
+        }
+    }
+}
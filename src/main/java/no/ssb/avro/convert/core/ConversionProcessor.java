@@ -0,0 +1,313 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.generic.GenericRecord;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A Reactive Streams {@link Processor} converting {@link DataElement}s to records or Avro binary.
+ *
+ * Elements are requested from upstream in batches and never more than a bounded number is buffered.
+ * Batches are converted on an {@link Executor} with a configurable parallelism, and results are emitted in
+ * upstream order and only when the subscriber has requested them. With the default parallelism of 1 and no
+ * executor, conversion happens on the thread signalling upstream or downstream and no threads are created.
+ * Dropped records (see {@link ErrorPolicy#DROP_RECORD}) are not emitted.
+ *
+ * On Java 9+ use {@code org.reactivestreams.FlowAdapters.toFlowProcessor(processor)} to get a
+ * {@code java.util.concurrent.Flow.Processor}.
+ *
+ * The processor supports a single subscriber.
+ *
+ * @param <T> type of the converted elements
+ */
+public class ConversionProcessor<T> implements Processor<DataElement, T> {
+
+    private final Function<DataElement, T> converter;
+    private int parallelism = 1;
+    private int batchSize = 64;
+    private Executor executor = Runnable::run;
+
+    private final Queue<DataElement> pending = new ConcurrentLinkedQueue<>();
+    // only accessed from drain
+    private final ArrayDeque<Batch<T>> batches = new ArrayDeque<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private long requestedUpstream;
+    private long consumed;
+    private int inFlight;
+
+    private volatile Subscription upstream;
+    private volatile Subscriber<? super T> downstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile Throwable requestError;
+    private volatile boolean cancelled;
+    private boolean terminated;
+
+    private ConversionProcessor(Function<DataElement, T> converter) {
+        this.converter = converter;
+    }
+
+    public static ConversionProcessor<GenericRecord> toRecords(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        return new ConversionProcessor<>(ConversionPipeline.converter(schemaBuddy, options));
+    }
+
+    /**
+     * A processor emitting each record encoded as Avro binary.
+     */
+    public static ConversionProcessor<byte[]> toBytes(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        return new ConversionProcessor<>(ConversionPipeline.binaryConverter(schemaBuddy, options));
+    }
+
+    /**
+     * Convert up to parallelism batches at a time on the given executor, or the common {@link ForkJoinPool} if null.
+     * Must be called before subscribing.
+     */
+    public ConversionProcessor<T> withParallelism(int parallelism, Executor executor) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+        return this;
+    }
+
+    /**
+     * Maximum number of elements converted as one task. Must be called before subscribing.
+     */
+    public ConversionProcessor<T> withBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    private long capacity() {
+        return 2L * parallelism * batchSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber can't be null");
+        }
+        synchronized (this) {
+            if (downstream != null) {
+                subscriber.onSubscribe(new Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("ConversionProcessor only supports one subscriber"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    requestError = new IllegalArgumentException("Requested " + n + " elements, must be positive");
+                    cancelUpstream();
+                } else {
+                    demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) {
+            throw new NullPointerException("subscription can't be null");
+        }
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(DataElement dataElement) {
+        if (dataElement == null) {
+            throw new NullPointerException("dataElement can't be null");
+        }
+        pending.add(dataElement);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (throwable == null) {
+            throw new NullPointerException("throwable can't be null");
+        }
+        upstreamError = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!terminated) {
+                drainOnce();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        Subscriber<? super T> subscriber = downstream;
+        if (cancelled) {
+            terminated = true;
+            pending.clear();
+            batches.clear();
+            return;
+        }
+        if (subscriber == null) {
+            return;
+        }
+        // an invalid request fails right away, without emitting what is already converted
+        if (requestError != null) {
+            pending.clear();
+            batches.clear();
+            terminate(subscriber, requestError);
+            return;
+        }
+
+        // emit converted elements in order, as far as demand allows
+        while (!batches.isEmpty()) {
+            Batch<T> head = batches.peek();
+            if (!head.done) {
+                break;
+            }
+            if (head.error != null) {
+                terminate(subscriber, head.error);
+                return;
+            }
+            while (head.next < head.results.size() && demand.get() > 0) {
+                subscriber.onNext(head.results.get(head.next++));
+                demand.decrementAndGet();
+                if (cancelled || requestError != null) {
+                    return;
+                }
+            }
+            if (head.next < head.results.size()) {
+                break;
+            }
+            batches.poll();
+            inFlight--;
+            consumed += head.size;
+        }
+
+        // start converting new batches
+        while (inFlight < parallelism && !pending.isEmpty()) {
+            List<DataElement> elements = new ArrayList<>(batchSize);
+            DataElement element;
+            while (elements.size() < batchSize && (element = pending.poll()) != null) {
+                elements.add(element);
+            }
+            Batch<T> batch = new Batch<>(elements.size());
+            batches.add(batch);
+            inFlight++;
+            executor.execute(() -> {
+                batch.convert(elements, converter);
+                drain();
+            });
+        }
+
+        // keep a bounded number of elements requested from upstream
+        Subscription subscription = upstream;
+        if (subscription != null && !upstreamDone) {
+            long missing = capacity() - (requestedUpstream - consumed);
+            if (missing >= batchSize || requestedUpstream == consumed) {
+                requestedUpstream += missing;
+                subscription.request(missing);
+            }
+        }
+
+        if (upstreamDone && pending.isEmpty() && batches.isEmpty()) {
+            terminate(subscriber, upstreamError);
+        }
+    }
+
+    private void terminate(Subscriber<? super T> subscriber, Throwable error) {
+        terminated = true;
+        if (error != null) {
+            cancelUpstream();
+            subscriber.onError(error);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    private static class Batch<T> {
+        private final int size;
+        private final List<T> results;
+        private int next;
+        private volatile Throwable error;
+        private volatile boolean done;
+
+        private Batch(int size) {
+            this.size = size;
+            this.results = new ArrayList<>(size);
+        }
+
+        private void convert(List<DataElement> elements, Function<DataElement, T> converter) {
+            try {
+                for (DataElement element : elements) {
+                    T result = converter.apply(element);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+            done = true;
+        }
+    }
+}
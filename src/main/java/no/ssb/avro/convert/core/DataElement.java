@@ -1,11 +1,10 @@
 package no.ssb.avro.convert.core;
 
+import org.apache.avro.util.Utf8;
+
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Optional;
-import java.util.Collections;
-import java.util.StringJoiner;
 
 /**
  * DataElement is used when mapping data from any input source
@@ -17,10 +16,12 @@ public class DataElement {
     final String name;
     private DataElement parent;
     private String value;
+    // Value given as UTF-8 bytes, decoded to value on first getValue()
+    private Utf8 utf8Value;
     private final List<DataElement> children = new ArrayList<>();
 
     // valueInterceptor is applied on name and value each time setValue is invoked.
-    private ValueInterceptor valueInterceptor = (field, varValue) -> varValue;
+    private ValueInterceptor valueInterceptor;
 
     public DataElement(String name) {
         this.name = name;
@@ -36,20 +37,73 @@ public class DataElement {
     }
 
     public String getValue() {
+        if (value == null && utf8Value != null) {
+            value = utf8Value.toString();
+        }
         return value;
     }
 
+    /**
+     * @return the value without decoding it, a {@link Utf8} if it was set with {@link #setUtf8Value(Utf8)}
+     */
+    public CharSequence getCharSequence() {
+        return utf8Value != null ? utf8Value : value;
+    }
+
+    boolean hasValue() {
+        return value != null || utf8Value != null;
+    }
+
     List<DataElement> getChildren() {
         return children;
     }
 
+    int countNodes() {
+        return TreeWalk.count(this, DataElement::getChildren);
+    }
+
+    // Shallow copy with the given children, which keep their own parent. Used by ChunkedConverter.
+    DataElement withChildren(List<DataElement> newChildren) {
+        DataElement copy = new DataElement(name);
+        copy.parent = parent;
+        copy.value = value;
+        copy.utf8Value = utf8Value;
+        copy.children.addAll(newChildren);
+        return copy;
+    }
+
     public DataElement findChildByName(String name) {
         Optional<DataElement> element = children.stream().filter(subElement -> subElement.getName().equals(name)).findFirst();
         return element.orElse(null);
     }
 
+    /**
+     * Set the value as UTF-8 bytes, which are only decoded if {@link #getValue()} is called.
+     * A value interceptor gets the decoded value.
+     */
+    public void setUtf8Value(Utf8 value) {
+        if (this.valueInterceptor != null) {
+            setValue(value != null ? value.toString() : null);
+            return;
+        }
+        this.value = null;
+        this.utf8Value = value;
+    }
+
     public void setValue(String value) {
-        this.value = this.valueInterceptor != null ? this.valueInterceptor.intercept(FieldDescriptor.from(this), value) : value;
+        this.utf8Value = null;
+        if (this.valueInterceptor == null) {
+            this.value = value;
+            return;
+        }
+        ConversionEvents.Config events = ConversionEvents.config();
+        if (events == null) {
+            this.value = this.valueInterceptor.intercept(FieldDescriptor.from(this), value);
+            return;
+        }
+        long start = System.nanoTime();
+        this.value = this.valueInterceptor.intercept(FieldDescriptor.from(this), value);
+        events.interceptorInvoked(this, start);
     }
 
     public void addChild(DataElement child) {
@@ -73,41 +127,27 @@ public class DataElement {
     public String toString(boolean recursive) {
         StringBuilder sb = new StringBuilder();
         if (recursive) {
-            sb.append(String.format("%s%s value:%s%n", getIntendString(), name, value));
-
-            for (DataElement child : children) {
-                sb.append(child.toString(true));
-            }
+            String lineSeparator = System.lineSeparator();
+            TreeWalk.preOrder(this, getDepth(), DataElement::getChildren, (element, depth) -> {
+                TreeWalk.indent(sb, depth);
+                sb.append(element.name).append(" value:").append(element.getCharSequence()).append(lineSeparator);
+            });
         } else {
-            sb.append(String.format("%s value:%s", name, value));
+            sb.append(String.format("%s value:%s", name, getCharSequence()));
         }
         return sb.toString();
     }
 
-    private String getIntendString() {
-        int size = getParents().size();
-        if (size == 0) return "";
-        if (size == 1) return " |-- ";
-
-        return String.join("", Collections.nCopies(size - 1, " |   ")) + " |-- ";
-    }
-
-    private List<String> getParents() {
-        DataElement currentParent = parent;
-        List<String> parentList = new ArrayList<>();
-        while (currentParent != null) {
-            parentList.add(currentParent.name);
-            currentParent = currentParent.parent;
+    private int getDepth() {
+        int depth = 0;
+        for (DataElement current = parent; current != null; current = current.parent) {
+            depth++;
         }
-        return parentList;
+        return depth;
     }
 
     public String getPath() {
-        StringJoiner joiner = new StringJoiner("/");
-        for (ListIterator<String> iter = getParents().listIterator(getParents().size()); iter.hasPrevious();) {
-            joiner.add(iter.previous());
-        }
-        return "/" + joiner.add(getName()).toString();
+        return TreeWalk.path(this, element -> element.parent, element -> element.name);
     }
 
 }
@@ -8,21 +8,38 @@ class DataElementBuilder {
 
     static class RootBuilder {
         private final DataElement dataElement;
+        private PathFilter pathFilter;
 
         RootBuilder(DataElement dataElement) {
             this.dataElement = dataElement;
         }
 
+        /**
+         * Only add children that are needed according to the pathFilter.
+         */
+        RootBuilder withPathFilter(PathFilter pathFilter) {
+            this.pathFilter = pathFilter;
+            return this;
+        }
+
         RootBuilder addValue(String name, String value) {
-            dataElement.addChild(new DataElement(name, value));
+            if (isNeeded(name)) {
+                dataElement.addChild(new DataElement(name, value));
+            }
             return this;
         }
 
         RootBuilder addChild(DataElement dataElement) {
-            this.dataElement.addChild(dataElement);
+            if (isNeeded(dataElement.getName())) {
+                this.dataElement.addChild(dataElement);
+            }
             return this;
         }
 
+        private boolean isNeeded(String name) {
+            return pathFilter == null || pathFilter.isNeeded(dataElement.getPath() + "/" + name);
+        }
+
         DataElement build() {
             return dataElement;
         }
@@ -31,4 +48,4 @@ class DataElementBuilder {
     static RootBuilder root(String name) {
         return new RootBuilder(new DataElement(name));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,576 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * DirectoryIngestion converts every file in a directory tree with one shared {@link SchemaBuddy}, e.g.
+ * <pre>
+ *     DirectoryIngestion.Manifest manifest = DirectoryIngestion.forSchema(schemaBuddy, options)
+ *             .withWorkers(8)
+ *             .ingest(inputDirectory, outputDirectory);
+ * </pre>
+ * Files are spread over a {@link ForkJoinPool}, largest first, and idle workers steal files from busy ones, so a
+ * few big files don't leave the other workers waiting. Each file is appended to an Avro data file no other worker
+ * is writing to, part-00000.avro, part-00001.avro etc., so workers never share a writer. When all files are converted, a manifest
+ * with the shard, record count and time of every file is written to {@value #MANIFEST_FILE}.
+ *
+ * By default .json, .jsonl and .xml files are read with {@link MappedJsonReader} and {@link MappedXmlReader},
+ * with the record name of the schema as root, the schema as {@link PathFilter} and the limits of
+ * {@link ConversionOptions#withMaxDepth(int)} and {@link ConversionOptions#withMaxNodes(int)}.
+ */
+public class DirectoryIngestion {
+
+    public static final String MANIFEST_FILE = "manifest.tsv";
+
+    /**
+     * Reads the data elements of a file. Iterators implementing {@link Closeable} are closed when read.
+     */
+    @FunctionalInterface
+    public interface FileReader {
+        Iterator<DataElement> open(Path file) throws IOException;
+    }
+
+    private final SchemaBuddy schemaBuddy;
+    private final ConversionOptions options;
+    private final int workers;
+    private final FileReader fileReader;
+    private final Predicate<Path> fileFilter;
+    private final CodecFactory codec;
+    private final Path stateFile;
+    private final int checkpointInterval;
+    private final Function<DataElement, byte[]> converter;
+
+    private DirectoryIngestion(SchemaBuddy schemaBuddy, ConversionOptions options, int workers, FileReader fileReader, Predicate<Path> fileFilter, CodecFactory codec, Path stateFile, int checkpointInterval) {
+        this.schemaBuddy = schemaBuddy;
+        this.options = options;
+        this.workers = workers;
+        this.fileReader = fileReader;
+        this.fileFilter = fileFilter;
+        this.codec = codec;
+        this.stateFile = stateFile;
+        this.checkpointInterval = checkpointInterval;
+        this.converter = ConversionPipeline.binaryConverter(schemaBuddy, options);
+    }
+
+    public static DirectoryIngestion forSchema(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        if (!schemaBuddy.isRoot()) {
+            throw new IllegalArgumentException("Can only ingest root records, was " + schemaBuddy.getPath());
+        }
+        PathFilter pathFilter = PathFilter.from(schemaBuddy);
+        FileReader fileReader = file -> {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".xml")) {
+                return MappedXmlReader.open(file, schemaBuddy.getName(), pathFilter).withUtf8Values(true)
+                        .withMaxDepth(options.getMaxDepth()).withMaxNodes(options.getMaxNodes());
+            }
+            return MappedJsonReader.open(file, schemaBuddy.getName(), pathFilter).withUtf8Values(true)
+                    .withMaxDepth(options.getMaxDepth()).withMaxNodes(options.getMaxNodes());
+        };
+        Predicate<Path> fileFilter = file -> {
+            String name = file.getFileName().toString();
+            return name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".xml");
+        };
+        return new DirectoryIngestion(schemaBuddy, options, Runtime.getRuntime().availableProcessors(), fileReader, fileFilter, CodecFactory.nullCodec(), null, 0);
+    }
+
+    /**
+     * Number of workers, and so the maximum number of shards. Default is the number of available processors.
+     */
+    public DirectoryIngestion withWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, was " + workers);
+        }
+        return new DirectoryIngestion(schemaBuddy, options, workers, fileReader, fileFilter, codec, stateFile, checkpointInterval);
+    }
+
+    public DirectoryIngestion withFileReader(FileReader fileReader) {
+        if (fileReader == null) {
+            throw new NullPointerException("fileReader can't be null");
+        }
+        return new DirectoryIngestion(schemaBuddy, options, workers, fileReader, fileFilter, codec, stateFile, checkpointInterval);
+    }
+
+    /**
+     * Files to ingest. Default is files ending with .json, .jsonl or .xml.
+     */
+    public DirectoryIngestion withFileFilter(Predicate<Path> fileFilter) {
+        if (fileFilter == null) {
+            throw new NullPointerException("fileFilter can't be null");
+        }
+        return new DirectoryIngestion(schemaBuddy, options, workers, fileReader, fileFilter, codec, stateFile, checkpointInterval);
+    }
+
+    /**
+     * Codec of the shards. Default is no compression.
+     */
+    public DirectoryIngestion withCodec(CodecFactory codec) {
+        if (codec == null) {
+            throw new NullPointerException("codec can't be null");
+        }
+        return new DirectoryIngestion(schemaBuddy, options, workers, fileReader, fileFilter, codec, stateFile, checkpointInterval);
+    }
+
+    /**
+     * Save a checkpoint of a shard to stateFile every checkpointInterval elements read into it, and when a file
+     * is done. A checkpoint holds the position of the last sync marker written to the shard, and the file and
+     * number of elements read until then. If stateFile exists when ingesting, completed files are skipped, shards
+     * are truncated to their last checkpoint and files in progress continue from their checkpoint, skipping the
+     * elements already read. The state file is deleted when the ingestion completes.
+     */
+    public DirectoryIngestion withCheckpoints(Path stateFile, int checkpointInterval) {
+        if (stateFile == null) {
+            throw new NullPointerException("stateFile can't be null");
+        }
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("checkpointInterval must be positive, was " + checkpointInterval);
+        }
+        return new DirectoryIngestion(schemaBuddy, options, workers, fileReader, fileFilter, codec, stateFile, checkpointInterval);
+    }
+
+    /**
+     * Convert all files under inputDirectory into shards in outputDirectory, which is created if needed.
+     * The first failure to read or convert a file fails the ingestion. Other files stop at their next element,
+     * and the shards written so far are kept.
+     * With {@link #withCheckpoints(Path, int)} a failed ingestion continues from its last checkpoints when
+     * run again.
+     */
+    public Manifest ingest(Path inputDirectory, Path outputDirectory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(inputDirectory)) {
+            files = paths.filter(Files::isRegularFile).filter(fileFilter).collect(Collectors.toList());
+        }
+        // largest first, so the files left when workers run out of work are small
+        Map<Path, Long> sizes = new HashMap<>();
+        for (Path file : files) {
+            sizes.put(file, Files.size(file));
+        }
+        files.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+        Files.createDirectories(outputDirectory);
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        Manifest manifest = new Manifest();
+        try (Output output = new Output(outputDirectory, manifest)) {
+            List<Work> work = new ArrayList<>();
+            Set<String> started = new HashSet<>();
+            if (stateFile != null && Files.exists(stateFile)) {
+                IngestionState state = IngestionState.read(stateFile);
+                for (Entry entry : state.completed) {
+                    manifest.add(entry);
+                    started.add(entry.getFile());
+                }
+                for (IngestionState.Checkpoint checkpoint : state.checkpoints) {
+                    Shard shard = output.resume(checkpoint);
+                    if (checkpoint.file != null) {
+                        work.add(new Work(inputDirectory.resolve(checkpoint.file), checkpoint.file, shard, checkpoint));
+                        started.add(checkpoint.file);
+                    } else {
+                        output.release(shard);
+                    }
+                }
+            }
+            for (Path file : files) {
+                String relativeFile = inputDirectory.relativize(file).toString().replace('\\', '/');
+                if (!started.contains(relativeFile)) {
+                    work.add(new Work(file, relativeFile, null, null));
+                }
+            }
+            try {
+                pool.invoke(new WorkTask(work, 0, work.size(), output));
+            } finally {
+                // A failed file fails invoke while files forked next to it can still be appending to their shards
+                awaitTermination(pool);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        manifest.entries.sort(Comparator.comparing(Entry::getFile));
+        manifest.write(outputDirectory.resolve(MANIFEST_FILE));
+        if (stateFile != null) {
+            Files.deleteIfExists(stateFile);
+        }
+        return manifest;
+    }
+
+    private static void awaitTermination(ForkJoinPool pool) throws InterruptedIOException {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for workers to finish");
+        }
+    }
+
+    private void ingestFile(Work work, Output output) throws IOException {
+        long startNanos = System.nanoTime();
+        Shard shard = work.shard != null ? work.shard : output.take();
+        IngestionState.Checkpoint resumeFrom = work.resumeFrom;
+        long elements = resumeFrom != null ? resumeFrom.elements : 0;
+        long records = resumeFrom != null ? resumeFrom.records : 0;
+        long dropped = resumeFrom != null ? resumeFrom.droppedRecords : 0;
+        long previousNanos = resumeFrom != null ? resumeFrom.nanos : 0;
+        Iterator<DataElement> dataElements = fileReader.open(work.file);
+        try {
+            // records of the elements before the checkpoint are already in the shard
+            for (long i = 0; i < elements && dataElements.hasNext(); i++) {
+                dataElements.next();
+            }
+            long sinceCheckpoint = 0;
+            // Stop at the next element when another file fails, leaving this file to its last checkpoint
+            while (!output.failed && dataElements.hasNext()) {
+                // Encoded here rather than by the writer so the conversion is reported with its size
+                byte[] record = converter.apply(dataElements.next());
+                elements++;
+                if (record == null) {
+                    dropped++;
+                } else {
+                    shard.writer.appendEncoded(ByteBuffer.wrap(record));
+                    records++;
+                }
+                if (stateFile != null && ++sinceCheckpoint >= checkpointInterval) {
+                    output.checkpoint(shard, new IngestionState.Checkpoint(shard.name, 0, work.relativeFile, elements,
+                            records, dropped, previousNanos + System.nanoTime() - startNanos), null);
+                    sinceCheckpoint = 0;
+                }
+            }
+        } finally {
+            if (dataElements instanceof Closeable) {
+                ((Closeable) dataElements).close();
+            }
+        }
+        if (output.failed) {
+            return;
+        }
+        Entry entry = new Entry(work.relativeFile, shard.name, records, dropped, previousNanos + System.nanoTime() - startNanos);
+        if (stateFile != null) {
+            output.checkpoint(shard, new IngestionState.Checkpoint(shard.name, 0, null, 0, 0, 0, 0), entry);
+        } else {
+            output.manifest.add(entry);
+        }
+        output.release(shard);
+    }
+
+    /**
+     * A file to ingest, and the shard and checkpoint to continue from if it was started by an earlier ingestion.
+     */
+    private static class Work {
+        private final Path file;
+        private final String relativeFile;
+        private final Shard shard;
+        private final IngestionState.Checkpoint resumeFrom;
+
+        private Work(Path file, String relativeFile, Shard shard, IngestionState.Checkpoint resumeFrom) {
+            this.file = file;
+            this.relativeFile = relativeFile;
+            this.shard = shard;
+            this.resumeFrom = resumeFrom;
+        }
+    }
+
+    private class WorkTask extends RecursiveAction {
+        private final List<Work> work;
+        private final int from;
+        private final int to;
+        private final Output output;
+
+        private WorkTask(List<Work> work, int from, int to, Output output) {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+            this.output = output;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                // Files not started when another file fails are skipped
+                if (output.failed) {
+                    return;
+                }
+                try {
+                    ingestFile(work.get(from), output);
+                } catch (IOException e) {
+                    output.failed = true;
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException | Error e) {
+                    output.failed = true;
+                    throw e;
+                }
+                return;
+            }
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new WorkTask(work, from, middle, output), new WorkTask(work, middle, to, output));
+            }
+        }
+    }
+
+    /**
+     * The shards and the manifest. A worker takes a shard no other worker is writing to for each file, and returns
+     * it when the file is done, so there are no more shards than files ingested at the same time.
+     */
+    private class Output implements Closeable {
+        private final Path outputDirectory;
+        private final Manifest manifest;
+        private final List<Shard> shards = new ArrayList<>();
+        private final Deque<Shard> free = new ArrayDeque<>();
+        // Guarded by the manifest lock, null without a state file
+        private final IngestionState.Journal journal;
+        private int nextShard;
+        private volatile boolean failed;
+
+        private Output(Path outputDirectory, Manifest manifest) {
+            this.outputDirectory = outputDirectory;
+            this.manifest = manifest;
+            this.journal = stateFile != null ? new IngestionState.Journal(stateFile) : null;
+        }
+
+        private Shard take() throws IOException {
+            Shard shard;
+            synchronized (this) {
+                shard = free.pollFirst();
+                if (shard != null) {
+                    return shard;
+                }
+                String name = String.format("part-%05d.avro", nextShard++);
+                DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schemaBuddy.getSchema()));
+                writer.setCodec(codec);
+                writer.create(schemaBuddy.getSchema(), outputDirectory.resolve(name).toFile());
+                shard = new Shard(name, writer);
+                if (stateFile != null) {
+                    long position = writer.sync();
+                    writer.fSync();
+                    shard.checkpoint = new IngestionState.Checkpoint(name, position, null, 0, 0, 0, 0);
+                }
+                shards.add(shard);
+            }
+            // List the new shard in the state file before anything is appended to it, so a rerun after a crash
+            // truncates it to its header instead of keeping records of files that are ingested again
+            if (stateFile != null) {
+                synchronized (manifest) {
+                    saveState(IngestionState.checkpointLine(shard.checkpoint));
+                }
+            }
+            return shard;
+        }
+
+        private synchronized void release(Shard shard) {
+            free.addFirst(shard);
+        }
+
+        // Truncates the shard of checkpoint to its last sync marker, and opens it for appending
+        private synchronized Shard resume(IngestionState.Checkpoint checkpoint) throws IOException {
+            Path file = outputDirectory.resolve(checkpoint.shard);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                if (channel.size() < checkpoint.position) {
+                    throw new IllegalStateException("Shard " + file + " is shorter than its checkpoint at " + checkpoint.position);
+                }
+                channel.truncate(checkpoint.position);
+            }
+            DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schemaBuddy.getSchema()));
+            Shard shard = new Shard(checkpoint.shard, writer.appendTo(file.toFile()));
+            shard.checkpoint = checkpoint;
+            shards.add(shard);
+            String number = checkpoint.shard.replaceAll("\\D", "");
+            if (!number.isEmpty()) {
+                nextShard = Math.max(nextShard, Integer.parseInt(number) + 1);
+            }
+            return shard;
+        }
+
+        /**
+         * Sync the shard and save the state file with its new checkpoint, and with completed added to the
+         * completed files, in one step.
+         */
+        private void checkpoint(Shard shard, IngestionState.Checkpoint checkpoint, Entry completed) throws IOException {
+            long position = shard.writer.sync();
+            shard.writer.fSync();
+            IngestionState.Checkpoint synced = new IngestionState.Checkpoint(shard.name, position, checkpoint.file,
+                    checkpoint.elements, checkpoint.records, checkpoint.droppedRecords, checkpoint.nanos);
+            synchronized (manifest) {
+                shard.checkpoint = synced;
+                if (completed != null) {
+                    manifest.add(completed);
+                }
+                saveState(completed != null ? IngestionState.completedLine(completed, position)
+                        : IngestionState.checkpointLine(synced));
+            }
+        }
+
+        // Append line to the state file, or compact it to the last checkpoint of every shard and the completed
+        // files. Called holding the manifest lock after the change in line is applied.
+        private void saveState(String line) throws IOException {
+            if (!journal.needsCompaction()) {
+                journal.append(line);
+                return;
+            }
+            List<IngestionState.Checkpoint> checkpoints = new ArrayList<>();
+            synchronized (this) {
+                for (Shard each : shards) {
+                    checkpoints.add(each.checkpoint);
+                }
+            }
+            journal.compact(checkpoints, manifest.entries);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            if (journal != null) {
+                synchronized (manifest) {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+            for (Shard shard : shards) {
+                try {
+                    shard.writer.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static class Shard {
+        private final String name;
+        private final DataFileWriter<GenericRecord> writer;
+        // Last checkpoint, only used with a state file
+        private volatile IngestionState.Checkpoint checkpoint;
+
+        private Shard(String name, DataFileWriter<GenericRecord> writer) {
+            this.name = name;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * Files ingested, sorted by path. Written as tab separated values with a header line, with backslash, tab,
+     * newline and carriage return in file names escaped as {@code \\}, {@code \t}, {@code \n} and {@code \r}.
+     */
+    public static class Manifest {
+        private final List<Entry> entries = new ArrayList<>();
+
+        private synchronized void add(Entry entry) {
+            entries.add(entry);
+        }
+
+        public List<Entry> getEntries() {
+            return Collections.unmodifiableList(entries);
+        }
+
+        public long getRecords() {
+            return entries.stream().mapToLong(Entry::getRecords).sum();
+        }
+
+        public long getDroppedRecords() {
+            return entries.stream().mapToLong(Entry::getDroppedRecords).sum();
+        }
+
+        private void write(Path file) throws IOException {
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                out.write("file\tshard\trecords\tdropped\tmillis\n");
+                for (Entry entry : entries) {
+                    out.write(String.format("%s\t%s\t%d\t%d\t%d\n", IngestionState.escape(entry.file),
+                            IngestionState.escape(entry.shard), entry.records,
+                            entry.droppedRecords, TimeUnit.NANOSECONDS.toMillis(entry.nanos)));
+                }
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String file;
+        private final String shard;
+        private final long records;
+        private final long droppedRecords;
+        private final long nanos;
+
+        Entry(String file, String shard, long records, long droppedRecords, long nanos) {
+            this.file = file;
+            this.shard = shard;
+            this.records = records;
+            this.droppedRecords = droppedRecords;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return path of the file relative to the input directory, with '/' as separator
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return file name of the shard the records were written to
+         */
+        public String getShard() {
+            return shard;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return records dropped due to {@link ErrorPolicy#DROP_RECORD}
+         */
+        public long getDroppedRecords() {
+            return droppedRecords;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return file + " -> " + shard + ": " + records + " records";
+        }
+    }
+}
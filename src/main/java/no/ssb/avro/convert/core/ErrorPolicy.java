@@ -0,0 +1,30 @@
+package no.ssb.avro.convert.core;
+
+/**
+ * Decides what happens when a value can't be converted to the type required by the schema.
+ * See {@link ConversionOptions#withErrorPolicy(ErrorPolicy)}
+ */
+public enum ErrorPolicy {
+
+    /**
+     * Throw a {@link ConversionException}. This is the default.
+     */
+    FAIL,
+
+    /**
+     * Leave the field unset. Optional fields become null and fields with an Avro default get their default.
+     * Falls back to {@link #DEFAULT} for required fields without a default.
+     */
+    SKIP_FIELD,
+
+    /**
+     * Use the Avro field default if there is one, otherwise a typed placeholder ("null", 0 or false).
+     */
+    DEFAULT,
+
+    /**
+     * Drop the whole record. {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}
+     * then returns null.
+     */
+    DROP_RECORD
+}
@@ -14,8 +14,13 @@ public class FieldDescriptor {
         this.name = this.path.substring(this.path.lastIndexOf('/') + 1);
     }
 
+    FieldDescriptor(String path, String name) {
+        this.path = path;
+        this.name = name;
+    }
+
     public static FieldDescriptor from(DataElement dataElement) {
-        return new FieldDescriptor(dataElement.getPath());
+        return new FieldDescriptor(dataElement.getPath(), dataElement.getName());
     }
 
     /**
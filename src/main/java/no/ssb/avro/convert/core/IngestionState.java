@@ -0,0 +1,234 @@
+package no.ssb.avro.convert.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state file of a checkpointed {@link DirectoryIngestion}: the last checkpoint of every shard and the files
+ * completed so far. Written as tab separated lines. New checkpoints are appended by a {@link Journal}, later lines
+ * replacing the checkpoint of the same shard, and the file is compacted to one line per shard and completed file
+ * from time to time. Tabs, newlines and backslashes in file names are escaped.
+ */
+class IngestionState {
+
+    private static final String SHARD = "shard";
+    private static final String FILE = "file";
+    // Appended lines before the journal is compacted, at least
+    private static final int MIN_JOURNAL_LINES = 1024;
+
+    final List<Checkpoint> checkpoints = new ArrayList<>();
+    final List<DirectoryIngestion.Entry> completed = new ArrayList<>();
+
+    /**
+     * A shard synced at position. If file is not null, the first elements of file were read and their records are
+     * before position in the shard.
+     */
+    static class Checkpoint {
+        final String shard;
+        final long position;
+        final String file;
+        final long elements;
+        final long records;
+        final long droppedRecords;
+        final long nanos;
+
+        Checkpoint(String shard, long position, String file, long elements, long records, long droppedRecords, long nanos) {
+            this.shard = shard;
+            this.position = position;
+            this.file = file;
+            this.elements = elements;
+            this.records = records;
+            this.droppedRecords = droppedRecords;
+            this.nanos = nanos;
+        }
+    }
+
+    static IngestionState read(Path stateFile) throws IOException {
+        String content = new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8);
+        Map<String, Checkpoint> checkpoints = new LinkedHashMap<>();
+        IngestionState state = new IngestionState();
+        int start = 0;
+        // A line without its newline was cut short by a crash while appending, and is ignored
+        for (int end = content.indexOf('\n'); end >= 0; start = end + 1, end = content.indexOf('\n', start)) {
+            String line = content.substring(start, end);
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] columns = line.split("\t", -1);
+            if (SHARD.equals(columns[0]) && columns.length == 8) {
+                checkpoints.put(unescape(columns[1]), new Checkpoint(unescape(columns[1]), Long.parseLong(columns[2]),
+                        columns[3].isEmpty() ? null : unescape(columns[3]), Long.parseLong(columns[4]),
+                        Long.parseLong(columns[5]), Long.parseLong(columns[6]), Long.parseLong(columns[7])));
+            } else if (FILE.equals(columns[0]) && (columns.length == 6 || columns.length == 7)) {
+                DirectoryIngestion.Entry entry = new DirectoryIngestion.Entry(unescape(columns[1]), unescape(columns[2]),
+                        Long.parseLong(columns[3]), Long.parseLong(columns[4]), Long.parseLong(columns[5]));
+                state.completed.add(entry);
+                // An appended file line also moves the checkpoint of its shard past the file
+                if (columns.length == 7) {
+                    checkpoints.put(entry.getShard(), new Checkpoint(entry.getShard(), Long.parseLong(columns[6]),
+                            null, 0, 0, 0, 0));
+                }
+            } else {
+                throw new IllegalStateException("Invalid line in " + stateFile + ": " + line);
+            }
+        }
+        state.checkpoints.addAll(checkpoints.values());
+        return state;
+    }
+
+    /**
+     * Replace the state file atomically with the given state.
+     */
+    static void write(Path stateFile, Collection<Checkpoint> checkpoints, Collection<DirectoryIngestion.Entry> completed) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (DirectoryIngestion.Entry entry : completed) {
+            sb.append(String.format("%s\t%s\t%s\t%d\t%d\t%d\n", FILE, escape(entry.getFile()), escape(entry.getShard()),
+                    entry.getRecords(), entry.getDroppedRecords(), entry.getNanos()));
+        }
+        for (Checkpoint checkpoint : checkpoints) {
+            sb.append(checkpointLine(checkpoint));
+        }
+        Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            // On disk before the move, or a power loss can leave an empty or truncated state file
+            channel.force(true);
+        }
+        Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String checkpointLine(Checkpoint checkpoint) {
+        return String.format("%s\t%s\t%d\t%s\t%d\t%d\t%d\t%d\n", SHARD, escape(checkpoint.shard), checkpoint.position,
+                checkpoint.file != null ? escape(checkpoint.file) : "", checkpoint.elements, checkpoint.records,
+                checkpoint.droppedRecords, checkpoint.nanos);
+    }
+
+    // A completed file and the position of its shard after it, in one line so a crash can't record only one of them
+    static String completedLine(DirectoryIngestion.Entry entry, long position) {
+        return String.format("%s\t%s\t%s\t%d\t%d\t%d\t%d\n", FILE, escape(entry.getFile()), escape(entry.getShard()),
+                entry.getRecords(), entry.getDroppedRecords(), entry.getNanos(), position);
+    }
+
+    /**
+     * Escape backslash, tab, newline and carriage return, so value can be written as a tab separated column.
+     */
+    static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char next = ++i < value.length() ? value.charAt(i) : 0;
+            switch (next) {
+                case '\\':
+                    sb.append('\\');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid escape in " + value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends lines to the state file, syncing each line. Appends cost the same however many files were completed,
+     * and the file is compacted when it has more appended lines than the state has lines, so the state file
+     * stays proportional to the state.
+     */
+    static class Journal implements Closeable {
+        private final Path stateFile;
+        private FileChannel channel;
+        private long appended;
+        private long compacted;
+
+        Journal(Path stateFile) {
+            this.stateFile = stateFile;
+        }
+
+        /**
+         * @return true if the next state must be written by {@link #compact} rather than appended
+         */
+        boolean needsCompaction() {
+            return channel == null || appended >= Math.max(MIN_JOURNAL_LINES, compacted);
+        }
+
+        void append(String line) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            // Syncs the new file size too, so the line can be read back after a power loss
+            channel.force(false);
+            appended++;
+        }
+
+        void compact(Collection<Checkpoint> checkpoints, Collection<DirectoryIngestion.Entry> completed) throws IOException {
+            close();
+            write(stateFile, checkpoints, completed);
+            channel = FileChannel.open(stateFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            appended = 0;
+            compacted = checkpoints.size() + completed.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.util.Utf8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped file read by {@link MappedJsonReader} and {@link MappedXmlReader}.
+ * Strings are decoded straight from the mapped bytes, and names (keys and tags) are decoded once and cached.
+ */
+class MappedInput {
+
+    private static final int NAME_CACHE_SIZE = 1024;
+    private static final int MAX_CACHED_NAME = 64;
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final Name[] names = new Name[NAME_CACHE_SIZE];
+    private byte[] scratch = new byte[256];
+    int pos;
+
+    private MappedInput(Path file, ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+
+    static MappedInput map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + " is larger than 2 GB and can't be mapped as one buffer");
+            }
+            MappedInput input = new MappedInput(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            input.skipByteOrderMark();
+            return input;
+        }
+    }
+
+    private void skipByteOrderMark() {
+        if (limit >= 3 && get(0) == (byte) 0xEF && get(1) == (byte) 0xBB && get(2) == (byte) 0xBF) {
+            pos = 3;
+        }
+    }
+
+    boolean atEnd() {
+        return pos >= limit;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    byte get(int index) {
+        return buffer.get(index);
+    }
+
+    /**
+     * @return the byte at the current position, or 0 at the end of the file
+     */
+    byte peek() {
+        return pos < limit ? buffer.get(pos) : 0;
+    }
+
+    void skipWhitespace() {
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    boolean startsWith(int index, String ascii) {
+        if (index + ascii.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buffer.get(index + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first occurrence of ascii at or after from, or the end of the file
+     */
+    int indexOf(String ascii, int from) {
+        return indexOf(ascii, from, limit);
+    }
+
+    /**
+     * @return index of the first occurrence of ascii in from until to, or to if there is none
+     */
+    int indexOf(String ascii, int from, int to) {
+        byte first = (byte) ascii.charAt(0);
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == first && startsWith(i, ascii)) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    String decode(int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        copy(start, scratch, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the bytes from start until end as Utf8, without decoding them
+     */
+    Utf8 utf8(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        copy(start, bytes, bytes.length);
+        return new Utf8(bytes);
+    }
+
+    private void copy(int start, byte[] bytes, int length) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(start);
+        source.get(bytes, 0, length);
+    }
+
+    void decodeTo(StringBuilder sb, int start, int end) {
+        if (start < end) {
+            sb.append(decode(start, end));
+        }
+    }
+
+    /**
+     * Decode a name, reusing the String of earlier occurrences of the same bytes.
+     */
+    String name(int start, int end) {
+        int length = end - start;
+        if (length > MAX_CACHED_NAME) {
+            return decode(start, end);
+        }
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ buffer.get(i)) * 0x01000193;
+        }
+        int slot = hash & (NAME_CACHE_SIZE - 1);
+        Name name = names[slot];
+        if (name != null && name.matches(buffer, start, length)) {
+            return name.value;
+        }
+        String value = decode(start, end);
+        byte[] bytes = new byte[length];
+        System.arraycopy(scratch, 0, bytes, 0, length);
+        names[slot] = new Name(bytes, value);
+        return value;
+    }
+
+    IllegalStateException error(String message) {
+        return new IllegalStateException(message + " at offset " + pos + " in " + file);
+    }
+
+    private static class Name {
+        private final byte[] bytes;
+        private final String value;
+
+        private Name(byte[] bytes, String value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        private boolean matches(ByteBuffer buffer, int start, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
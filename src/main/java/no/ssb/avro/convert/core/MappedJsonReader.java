@@ -0,0 +1,372 @@
+package no.ssb.avro.convert.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * MappedJsonReader reads records from a memory-mapped JSON file, either a top level array of objects or
+ * objects separated by whitespace, e.g. JSON Lines. Each object becomes a {@link DataElement} with the given
+ * root name.
+ *
+ * Tokens are read straight from the mapped bytes. Only fields needed by the {@link PathFilter} are decoded and
+ * materialized, other subtrees are skipped without creating any objects. Nested objects become child elements,
+ * array elements become repeated children with the name of the array, and scalars become values, with JSON null
+ * as a null value. Files must be UTF-8 and at most 2 GB.
+ *
+ * The reader holds no open file. The mapping can't be released explicitly and is released when the reader is
+ * garbage collected, so on Windows the file can't be deleted until then.
+ */
+public class MappedJsonReader implements Iterator<DataElement> {
+
+    private final MappedInput in;
+    private final String rootName;
+    private final PathFilter pathFilter;
+    private boolean utf8Values;
+    private int maxDepth = ConversionOptions.DEFAULT_MAX_DEPTH;
+    private int maxNodes = Integer.MAX_VALUE;
+    private final boolean array;
+    // Elements of the current record
+    private int nodes;
+
+    private MappedJsonReader(MappedInput in, String rootName, PathFilter pathFilter) {
+        this.in = in;
+        this.rootName = rootName;
+        this.pathFilter = pathFilter;
+        in.skipWhitespace();
+        this.array = in.peek() == '[';
+        if (array) {
+            in.pos++;
+        }
+    }
+
+    public static MappedJsonReader open(Path file, String rootName) throws IOException {
+        return open(file, rootName, PathFilter.all());
+    }
+
+    public static MappedJsonReader open(Path file, String rootName, PathFilter pathFilter) throws IOException {
+        if (pathFilter.getRootName() != null && !pathFilter.getRootName().equals(rootName)) {
+            throw new IllegalArgumentException("Paths do not start with root " + rootName);
+        }
+        return new MappedJsonReader(MappedInput.map(file), rootName, pathFilter);
+    }
+
+    /**
+     * Set values that need no unescaping as raw UTF-8 bytes with {@link DataElement#setUtf8Value}, so they are
+     * only decoded if read as Strings. Default is false.
+     */
+    public MappedJsonReader withUtf8Values(boolean utf8Values) {
+        this.utf8Values = utf8Values;
+        return this;
+    }
+
+    /**
+     * Fail on records with objects and arrays nested deeper than maxDepth below the root object.
+     * Default is 1000, like for {@link ConversionOptions#withMaxDepth(int)}.
+     */
+    public MappedJsonReader withMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be positive, was " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Fail on records with more than maxNodes elements, counting the root and fields needed by the
+     * {@link PathFilter}. No limit by default.
+     */
+    public MappedJsonReader withMaxNodes(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("maxNodes must be positive, was " + maxNodes);
+        }
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        in.skipWhitespace();
+        if (array && in.peek() == ',') {
+            in.pos++;
+            in.skipWhitespace();
+        }
+        return !in.atEnd() && !(array && in.peek() == ']');
+    }
+
+    @Override
+    public DataElement next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (in.peek() != '{') {
+            throw in.error("Expected an object");
+        }
+        DataElement root = new DataElement(rootName);
+        nodes = 1;
+        parseObject(root, pathFilter.root());
+        return root;
+    }
+
+    // Parses the object at the current position into element, with an explicit stack of open objects and arrays
+    private void parseObject(DataElement element, PathFilter.Node node) {
+        Deque<Container> open = new ArrayDeque<>();
+        open.push(new Container(element, null, node, false));
+        in.pos++; // {
+        while (!open.isEmpty()) {
+            Container current = open.peek();
+            in.skipWhitespace();
+            byte b = in.peek();
+            if (current.started) {
+                // after a value
+                in.pos++;
+                if (b == current.end()) {
+                    open.pop();
+                    continue;
+                }
+                if (b != ',') {
+                    in.pos--;
+                    throw in.error(current.array ? "Expected ',' or ']'" : "Expected ',' or '}'");
+                }
+                in.skipWhitespace();
+            } else {
+                current.started = true;
+                if (b == current.end()) {
+                    in.pos++;
+                    open.pop();
+                    continue;
+                }
+            }
+            String name = current.name;
+            PathFilter.Node childNode = current.node;
+            if (!current.array) {
+                if (in.peek() != '"') {
+                    throw in.error("Expected a key");
+                }
+                name = readString(true);
+                in.skipWhitespace();
+                if (in.peek() != ':') {
+                    throw in.error("Expected ':'");
+                }
+                in.pos++;
+                in.skipWhitespace();
+                childNode = current.node.child(name);
+                if (childNode == null) {
+                    skipValue();
+                    continue;
+                }
+            }
+            parseValue(current.element, name, childNode, open);
+        }
+    }
+
+    // Adds a scalar value to parent, or opens the object or array at the current position
+    private void parseValue(DataElement parent, String name, PathFilter.Node node, Deque<Container> open) {
+        byte b = in.peek();
+        if (b == '[') {
+            // elements of an array become repeated children of parent
+            enter(open);
+            in.pos++;
+            open.push(new Container(parent, name, node, true));
+            return;
+        }
+        if (++nodes > maxNodes) {
+            throw in.error("Record has more than maxNodes " + maxNodes + " elements");
+        }
+        if (b == '{') {
+            DataElement child = new DataElement(name);
+            parent.addChild(child);
+            enter(open);
+            in.pos++;
+            open.push(new Container(child, null, node, false));
+        } else if (b == '"') {
+            int start = in.pos + 1;
+            String value = readString(false);
+            if (value == null) {
+                parent.addChild(utf8Element(name, start, in.pos - 1));
+            } else {
+                parent.addChild(new DataElement(name, value));
+            }
+        } else {
+            int start = in.pos;
+            skipLiteral();
+            if (in.pos - start == 4 && in.startsWith(start, "null")) {
+                parent.addChild(new DataElement(name, null));
+            } else if (utf8Values) {
+                parent.addChild(utf8Element(name, start, in.pos));
+            } else {
+                parent.addChild(new DataElement(name, in.decode(start, in.pos)));
+            }
+        }
+    }
+
+    // The root object is at depth 0, so a new object or array is at the depth of the number of open ones
+    private void enter(Deque<Container> open) {
+        if (open.size() > maxDepth) {
+            throw in.error("Record is nested deeper than maxDepth " + maxDepth);
+        }
+    }
+
+    private DataElement utf8Element(String name, int start, int end) {
+        DataElement element = new DataElement(name);
+        element.setUtf8Value(in.utf8(start, end));
+        return element;
+    }
+
+    /**
+     * Reads the string at the current position, which must be a quote.
+     *
+     * @return null if the string is a value without escapes and utf8Values is set, then it is left undecoded
+     */
+    private String readString(boolean isName) {
+        int start = ++in.pos;
+        int i = start;
+        while (i < in.limit()) {
+            byte b = in.get(i);
+            if (b == '"') {
+                in.pos = i + 1;
+                if (isName) {
+                    return in.name(start, i);
+                }
+                return utf8Values ? null : in.decode(start, i);
+            }
+            if (b == '\\') {
+                break;
+            }
+            i++;
+        }
+        StringBuilder sb = new StringBuilder();
+        in.decodeTo(sb, start, i);
+        while (i < in.limit()) {
+            byte b = in.get(i);
+            if (b == '"') {
+                in.pos = i + 1;
+                return sb.toString();
+            }
+            if (b == '\\') {
+                i = unescape(sb, i + 1);
+            } else {
+                int runStart = i;
+                while (i < in.limit() && in.get(i) != '"' && in.get(i) != '\\') {
+                    i++;
+                }
+                in.decodeTo(sb, runStart, i);
+            }
+        }
+        in.pos = i;
+        throw in.error("Unterminated string");
+    }
+
+    private int unescape(StringBuilder sb, int i) {
+        if (i == in.limit()) {
+            in.pos = i;
+            throw in.error("Unterminated string");
+        }
+        byte b = in.get(i);
+        switch (b) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                int c = 0;
+                for (int j = i + 1; j < i + 5; j++) {
+                    int digit = j < in.limit() ? Character.digit(in.get(j), 16) : -1;
+                    if (digit < 0) {
+                        in.pos = j;
+                        throw in.error("Expected 4 hex digits after \\u");
+                    }
+                    c = c * 16 + digit;
+                }
+                sb.append((char) c);
+                return i + 5;
+            default:
+                sb.append((char) b);
+        }
+        return i + 1;
+    }
+
+    private void skipLiteral() {
+        while (!in.atEnd()) {
+            byte b = in.peek();
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                return;
+            }
+            in.pos++;
+        }
+    }
+
+    private void skipString() {
+        int i = in.pos + 1;
+        while (i < in.limit()) {
+            byte b = in.get(i);
+            if (b == '"') {
+                in.pos = i + 1;
+                return;
+            }
+            i += b == '\\' ? 2 : 1;
+        }
+        in.pos = i;
+        throw in.error("Unterminated string");
+    }
+
+    private void skipValue() {
+        byte b = in.peek();
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = in.peek();
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                } else if (in.atEnd()) {
+                    throw in.error("Unexpected end of file");
+                }
+                in.pos++;
+            } while (depth > 0);
+        } else {
+            skipLiteral();
+        }
+    }
+
+    // An open object, or an open array whose elements are added to element with the name of the array
+    private static class Container {
+        private final DataElement element;
+        private final String name;
+        private final PathFilter.Node node;
+        private final boolean array;
+        private boolean started;
+
+        private Container(DataElement element, String name, PathFilter.Node node, boolean array) {
+            this.element = element;
+            this.name = name;
+            this.node = node;
+            this.array = array;
+        }
+
+        private byte end() {
+            return (byte) (array ? ']' : '}');
+        }
+    }
+}
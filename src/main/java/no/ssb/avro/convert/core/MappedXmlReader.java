@@ -0,0 +1,454 @@
+package no.ssb.avro.convert.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * MappedXmlReader reads records from a memory-mapped XML file. Each element with the record name, wherever it is
+ * in the document, becomes a {@link DataElement}.
+ *
+ * Tags and text are read straight from the mapped bytes. Only elements needed by the {@link PathFilter} are
+ * decoded and materialized, other subtrees are skipped without creating any objects. Child elements and attributes
+ * become child elements, and the text of an element without child elements becomes its value, or null if it is
+ * empty. Character and predefined entity references and CDATA sections are supported, comments, processing
+ * instructions and doctype declarations are skipped. Files must be UTF-8 and at most 2 GB.
+ *
+ * The reader holds no open file. The mapping can't be released explicitly and is released when the reader is
+ * garbage collected, so on Windows the file can't be deleted until then.
+ */
+public class MappedXmlReader implements Iterator<DataElement> {
+
+    private final MappedInput in;
+    private final String recordName;
+    private final PathFilter pathFilter;
+    private boolean utf8Values;
+    private int maxDepth = ConversionOptions.DEFAULT_MAX_DEPTH;
+    private int maxNodes = Integer.MAX_VALUE;
+    private boolean found;
+    // Elements of the current record
+    private int nodes;
+
+    private MappedXmlReader(MappedInput in, String recordName, PathFilter pathFilter) {
+        this.in = in;
+        this.recordName = recordName;
+        this.pathFilter = pathFilter;
+    }
+
+    public static MappedXmlReader open(Path file, String recordName) throws IOException {
+        return open(file, recordName, PathFilter.all());
+    }
+
+    public static MappedXmlReader open(Path file, String recordName, PathFilter pathFilter) throws IOException {
+        if (pathFilter.getRootName() != null && !pathFilter.getRootName().equals(recordName)) {
+            throw new IllegalArgumentException("Paths do not start with root " + recordName);
+        }
+        return new MappedXmlReader(MappedInput.map(file), recordName, pathFilter);
+    }
+
+    /**
+     * Set values that need no unescaping as raw UTF-8 bytes with {@link DataElement#setUtf8Value}, so they are
+     * only decoded if read as Strings. Default is false.
+     */
+    public MappedXmlReader withUtf8Values(boolean utf8Values) {
+        this.utf8Values = utf8Values;
+        return this;
+    }
+
+    /**
+     * Fail on records with elements nested deeper than maxDepth below the record element.
+     * Default is 1000, like for {@link ConversionOptions#withMaxDepth(int)}.
+     */
+    public MappedXmlReader withMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be positive, was " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Fail on records with more than maxNodes elements, counting the record element and elements and attributes
+     * needed by the {@link PathFilter}. No limit by default.
+     */
+    public MappedXmlReader withMaxNodes(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("maxNodes must be positive, was " + maxNodes);
+        }
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!found) {
+            in.pos = in.indexOf("<", in.pos);
+            if (in.atEnd()) {
+                return false;
+            }
+            if (skipMarkup()) {
+                continue;
+            }
+            if (in.peek() == '/') {
+                in.pos = in.indexOf(">", in.pos) + 1;
+                continue;
+            }
+            int tagStart = in.pos;
+            in.pos++;
+            if (readName().equals(recordName)) {
+                in.pos = tagStart;
+                found = true;
+            } else {
+                skipTag();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public DataElement next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        found = false;
+        nodes = 0;
+        return parseElement(pathFilter.root());
+    }
+
+    // Parses the element starting at the current position, which must be '<', with an explicit stack of open elements
+    private DataElement parseElement(PathFilter.Node node) {
+        Deque<OpenElement> open = new ArrayDeque<>();
+        DataElement root = openElement(node, open);
+        while (!open.isEmpty()) {
+            OpenElement current = open.peek();
+            int textEnd = in.indexOf("<", in.pos);
+            if (textEnd >= in.limit()) {
+                throw in.error("Unterminated element " + current.element.getName());
+            }
+            if (!current.hasChildElements) {
+                current.text.add(in.pos, textEnd);
+            }
+            in.pos = textEnd;
+            if (in.startsWith(in.pos, "</")) {
+                in.pos = in.indexOf(">", in.pos) + 1;
+                if (!current.hasChildElements) {
+                    current.text.setValue(current.element);
+                }
+                open.pop();
+            } else if (in.startsWith(in.pos, "<![CDATA[")) {
+                int end = in.indexOf("]]>", in.pos);
+                current.text.addRaw(in.pos + 9, end);
+                in.pos = end + 3;
+            } else if (!skipMarkup()) {
+                current.hasChildElements = true;
+                int childStart = in.pos;
+                in.pos++;
+                PathFilter.Node childNode = current.node.child(readName());
+                in.pos = childStart;
+                if (childNode == null) {
+                    skipElement();
+                } else {
+                    current.element.addChild(openElement(childNode, open));
+                }
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Parse the start tag at the current position, and push the element unless it is empty. The record element is
+     * at depth 0, so the element is at the depth of the number of open elements.
+     */
+    private DataElement openElement(PathFilter.Node node, Deque<OpenElement> open) {
+        if (open.size() > maxDepth) {
+            throw in.error("Record is nested deeper than maxDepth " + maxDepth);
+        }
+        count();
+        in.pos++;
+        DataElement element = new DataElement(readName());
+        if (!parseAttributes(element, node)) {
+            open.push(new OpenElement(element, node, new Text()));
+        }
+        return element;
+    }
+
+    private void count() {
+        if (++nodes > maxNodes) {
+            throw in.error("Record has more than maxNodes " + maxNodes + " elements");
+        }
+    }
+
+    /**
+     * Parse attributes into children, and consume the end of the start tag.
+     *
+     * @return true if the element is empty
+     */
+    private boolean parseAttributes(DataElement element, PathFilter.Node node) {
+        while (true) {
+            in.skipWhitespace();
+            byte b = in.peek();
+            if (b == '>') {
+                in.pos++;
+                return false;
+            }
+            if (b == '/') {
+                in.pos += 2;
+                return true;
+            }
+            if (in.atEnd()) {
+                throw in.error("Unterminated tag " + element.getName());
+            }
+            String name = readName();
+            in.skipWhitespace();
+            if (in.peek() != '=') {
+                throw in.error("Expected '=' after attribute " + name);
+            }
+            in.pos++;
+            in.skipWhitespace();
+            byte quote = in.peek();
+            if (quote != '"' && quote != '\'') {
+                throw in.error("Expected a quoted value of attribute " + name);
+            }
+            int start = in.pos + 1;
+            int end = start;
+            while (end < in.limit() && in.get(end) != quote) {
+                end++;
+            }
+            if (end == in.limit()) {
+                throw in.error("Unterminated value of attribute " + name);
+            }
+            in.pos = end + 1;
+            if (node.child(name) != null) {
+                count();
+                Text value = new Text();
+                value.add(start, end);
+                DataElement attribute = new DataElement(name, "");
+                value.setValue(attribute);
+                element.addChild(attribute);
+            }
+        }
+    }
+
+    private String readName() {
+        int start = in.pos;
+        while (!in.atEnd()) {
+            byte b = in.peek();
+            if (b == ' ' || b == '>' || b == '/' || b == '=' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+            in.pos++;
+        }
+        return in.name(start, in.pos);
+    }
+
+    /**
+     * Skip a comment, CDATA section, processing instruction or declaration at the current position.
+     *
+     * @return false if there is none
+     */
+    private boolean skipMarkup() {
+        if (in.startsWith(in.pos, "<!--")) {
+            in.pos = in.indexOf("-->", in.pos) + 3;
+        } else if (in.startsWith(in.pos, "<![CDATA[")) {
+            in.pos = in.indexOf("]]>", in.pos) + 3;
+        } else if (in.startsWith(in.pos, "<?")) {
+            in.pos = in.indexOf("?>", in.pos) + 2;
+        } else if (in.startsWith(in.pos, "<!")) {
+            in.pos = in.indexOf(">", in.pos) + 1;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip to after the end of the tag, with the position after the tag name.
+     *
+     * @return true if the tag is self-closing
+     */
+    private boolean skipTag() {
+        byte quote = 0;
+        while (!in.atEnd()) {
+            byte b = in.peek();
+            in.pos++;
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return in.get(in.pos - 2) == '/';
+            }
+        }
+        throw in.error("Unterminated tag");
+    }
+
+    // Skips the element starting at the current position, which must be '<'
+    private void skipElement() {
+        in.pos++;
+        if (skipTag()) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            in.pos = in.indexOf("<", in.pos);
+            if (in.atEnd()) {
+                throw in.error("Unterminated element");
+            }
+            if (skipMarkup()) {
+                continue;
+            }
+            if (in.startsWith(in.pos, "</")) {
+                in.pos = in.indexOf(">", in.pos) + 1;
+                depth--;
+            } else {
+                in.pos++;
+                if (!skipTag()) {
+                    depth++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Text of an element, which is decoded directly into a String when it is a single run without references.
+     */
+    private class Text {
+        private int start = -1;
+        private int end;
+        private StringBuilder sb;
+
+        private void add(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int amp = in.indexOf("&", from, to);
+            if (amp >= to && sb == null && start < 0) {
+                start = from;
+                end = to;
+                return;
+            }
+            StringBuilder builder = builder();
+            int i = from;
+            while (i < to) {
+                amp = in.indexOf("&", i, to);
+                if (amp >= to) {
+                    in.decodeTo(builder, i, to);
+                    return;
+                }
+                in.decodeTo(builder, i, amp);
+                int semicolon = in.indexOf(";", amp, to);
+                if (semicolon >= to) {
+                    in.decodeTo(builder, amp, to);
+                    return;
+                }
+                appendReference(builder, in.decode(amp + 1, semicolon), amp);
+                i = semicolon + 1;
+            }
+        }
+
+        private void addRaw(int from, int to) {
+            in.decodeTo(builder(), from, to);
+        }
+
+        private StringBuilder builder() {
+            if (sb == null) {
+                sb = new StringBuilder();
+                if (start >= 0) {
+                    in.decodeTo(sb, start, end);
+                    start = -1;
+                }
+            }
+            return sb;
+        }
+
+        // Sets the value of element if the text is not empty
+        private void setValue(DataElement element) {
+            if (sb != null) {
+                if (sb.length() > 0) {
+                    element.setValue(sb.toString());
+                }
+            } else if (start >= 0) {
+                if (utf8Values) {
+                    element.setUtf8Value(in.utf8(start, end));
+                } else {
+                    element.setValue(in.decode(start, end));
+                }
+            }
+        }
+
+        private void appendReference(StringBuilder builder, String reference, int offset) {
+            switch (reference) {
+                case "lt":
+                    builder.append('<');
+                    break;
+                case "gt":
+                    builder.append('>');
+                    break;
+                case "amp":
+                    builder.append('&');
+                    break;
+                case "quot":
+                    builder.append('"');
+                    break;
+                case "apos":
+                    builder.append('\'');
+                    break;
+                default:
+                    if (reference.startsWith("#")) {
+                        int codePoint = codePoint(reference);
+                        if (codePoint < 0) {
+                            in.pos = offset;
+                            throw in.error("Invalid character reference &" + reference + ";");
+                        }
+                        builder.appendCodePoint(codePoint);
+                    } else {
+                        builder.append('&').append(reference).append(';');
+                    }
+            }
+        }
+
+        /**
+         * @return the code point of a decimal or hexadecimal character reference, or -1 if it is not an XML character
+         */
+        private int codePoint(String reference) {
+            int radix = reference.startsWith("#x") ? 16 : 10;
+            int from = radix == 16 ? 2 : 1;
+            if (from == reference.length()) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (int i = from; i < reference.length(); i++) {
+                char c = reference.charAt(i);
+                int digit = c < 128 ? Character.digit(c, radix) : -1;
+                if (digit < 0 || codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+            }
+            boolean valid = codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD
+                    || codePoint >= 0x20 && codePoint <= 0xD7FF
+                    || codePoint >= 0xE000 && codePoint <= 0xFFFD
+                    || codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT;
+            return valid ? codePoint : -1;
+        }
+    }
+
+    // An element whose end tag is not read yet
+    private static class OpenElement {
+        private final DataElement element;
+        private final PathFilter.Node node;
+        private final Text text;
+        private boolean hasChildElements;
+
+        private OpenElement(DataElement element, PathFilter.Node node, Text text) {
+            this.element = element;
+            this.node = node;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+
+/**
+ * Resolves the value used for a required leaf without data, once per {@link SchemaBuddy} and {@link MissingValuePolicy}.
+ */
+final class MissingValue {
+
+    /**
+     * Leave the field unset, so it gets its Avro default.
+     */
+    static final Object USE_DEFAULT = new Object();
+
+    /**
+     * Treat the missing value as a conversion error.
+     */
+    static final Object FAIL = new Object();
+
+    private MissingValue() {
+    }
+
+    /**
+     * @return one value per {@link MissingValuePolicy}, indexed by ordinal
+     */
+    static Object[] resolve(SchemaBuddy leaf) {
+        Object placeholder = placeholder(leaf.getType());
+        Object[] values = new Object[MissingValuePolicy.values().length];
+        values[MissingValuePolicy.AVRO_DEFAULT.ordinal()] = hasDefault(leaf) ? USE_DEFAULT : placeholder;
+        values[MissingValuePolicy.PLACEHOLDER.ordinal()] = placeholder;
+        values[MissingValuePolicy.FAIL.ordinal()] = FAIL;
+        return values;
+    }
+
+    /**
+     * @return the placeholder for the type, or null if there is no sensible placeholder
+     */
+    static Object placeholder(Schema.Type type) {
+        switch (type) {
+            case LONG:
+                return 0L;
+            case INT:
+                return 0;
+            case DOUBLE:
+                return 0d;
+            case FLOAT:
+                return 0f;
+            case BOOLEAN:
+                return false;
+            case STRING:
+                return "null";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasDefault(SchemaBuddy leaf) {
+        SchemaBuddy parent = leaf.getParent();
+        if (parent == null || !parent.isRecordType()) {
+            return false;
+        }
+        Schema.Field field = parent.getSchema().getField(leaf.getName());
+        return field != null && field.defaultVal() != null;
+    }
+}
@@ -0,0 +1,23 @@
+package no.ssb.avro.convert.core;
+
+/**
+ * Decides what value a required field gets when the data has the element but no value.
+ * Optional fields are always left unset. See {@link ConversionOptions#withMissingValuePolicy(MissingValuePolicy)}
+ */
+public enum MissingValuePolicy {
+
+    /**
+     * Use the Avro field default. Falls back to {@link #PLACEHOLDER} for fields without a default.
+     */
+    AVRO_DEFAULT,
+
+    /**
+     * Use a typed placeholder: "null" for strings, 0 for numbers and false for booleans. This is the default.
+     */
+    PLACEHOLDER,
+
+    /**
+     * Treat the missing value as a conversion error, which is then handled by the {@link ErrorPolicy}.
+     */
+    FAIL
+}
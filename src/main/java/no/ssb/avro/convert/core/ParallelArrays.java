@@ -0,0 +1,69 @@
+package no.ssb.avro.convert.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Maps array elements, splitting large arrays over a {@link ForkJoinPool} while keeping element order.
+ * See {@link ConversionOptions#withParallelArrays(int, ForkJoinPool)}
+ */
+class ParallelArrays {
+
+    private static final int MIN_SLICE_SIZE = 64;
+
+    private ParallelArrays() {
+    }
+
+    static <T, R> List<R> map(List<T> elements, Function<T, R> mapper, ConversionOptions options) {
+        int size = elements.size();
+        if (size < options.getParallelArrayThreshold()) {
+            List<R> results = new ArrayList<>(size);
+            for (T element : elements) {
+                results.add(mapper.apply(element));
+            }
+            return results;
+        }
+        ForkJoinPool pool = options.getForkJoinPool();
+        int sliceSize = Math.max(MIN_SLICE_SIZE, size / (pool.getParallelism() * 8));
+        Object[] results = new Object[size];
+        pool.invoke(new MapTask<>(elements, mapper, results, 0, size, sliceSize));
+        @SuppressWarnings("unchecked")
+        List<R> resultList = (List<R>) Arrays.asList(results);
+        return resultList;
+    }
+
+    private static class MapTask<T, R> extends RecursiveAction {
+        private final List<T> elements;
+        private final Function<T, R> mapper;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int sliceSize;
+
+        private MapTask(List<T> elements, Function<T, R> mapper, Object[] results, int from, int to, int sliceSize) {
+            this.elements = elements;
+            this.mapper = mapper;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.sliceSize = sliceSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= sliceSize) {
+                for (int i = from; i < to; i++) {
+                    results[i] = mapper.apply(elements.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapTask<>(elements, mapper, results, from, middle, sliceSize),
+                    new MapTask<>(elements, mapper, results, middle, to, sliceSize));
+        }
+    }
+}
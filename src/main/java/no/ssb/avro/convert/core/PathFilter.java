@@ -0,0 +1,154 @@
+package no.ssb.avro.convert.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PathFilter tells a data source which {@link DataElement}s are needed, so subtrees that will not be
+ * converted are never materialized. Paths are given as for {@link DataElement#getPath()}, e.g. /root/person/name,
+ * where array elements share the path of the array. A selected path includes the whole subtree below it,
+ * and all ancestors of a selected path are needed as well.
+ *
+ * Lookups take O(depth) of the path. Sources that descend a document level by level can use
+ * {@link #root()} and {@link Node#child(String)} to get a constant time check per element.
+ */
+public class PathFilter {
+
+    private static final PathFilter ALL = new PathFilter(null, Node.everything());
+
+    private final String rootName;
+    private final Node root;
+
+    private PathFilter(String rootName, Node root) {
+        this.rootName = rootName;
+        this.root = root;
+    }
+
+    /**
+     * A filter where every path is needed.
+     */
+    public static PathFilter all() {
+        return ALL;
+    }
+
+    /**
+     * A filter for the given paths. All paths must start with the same root name.
+     */
+    public static PathFilter of(Collection<String> paths) {
+        String rootName = null;
+        Node root = new Node();
+        for (String path : paths) {
+            String[] names = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+            if (rootName == null) {
+                rootName = names[0];
+            } else if (!rootName.equals(names[0])) {
+                throw new IllegalArgumentException("Path " + path + " does not start with root " + rootName);
+            }
+            Node node = root;
+            for (int i = 1; i < names.length; i++) {
+                node = node.children.computeIfAbsent(names[i], name -> new Node());
+            }
+            node.all = true;
+        }
+        return new PathFilter(rootName, root);
+    }
+
+    /**
+     * A filter for all paths in the schema, e.g. from {@link SchemaBuddy#project(Collection)}.
+     */
+    public static PathFilter from(SchemaBuddy schemaBuddy) {
+        Node root = new Node();
+        addChildren(schemaBuddy, root);
+        return new PathFilter(schemaBuddy.getName(), root);
+    }
+
+    private static void addChildren(SchemaBuddy schemaBuddy, Node node) {
+        for (SchemaBuddy child : schemaBuddy.getChildren()) {
+            SchemaBuddy elementSchema = child.isArrayType() ? child.getArrayTypeSchema() : child;
+            Node childNode = node.children.computeIfAbsent(child.getName(), name -> new Node());
+            if (elementSchema.isSimpleType()) {
+                childNode.all = true;
+            } else {
+                addChildren(elementSchema, childNode);
+            }
+        }
+    }
+
+    /**
+     * @return true if the element with the given path, or something below it, is needed
+     */
+    public boolean isNeeded(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        }
+        if (rootName != null && (end - start != rootName.length() || !path.regionMatches(start, rootName, 0, end - start))) {
+            return false;
+        }
+        Node node = root;
+        while (end < path.length()) {
+            if (node.all) {
+                return true;
+            }
+            start = end + 1;
+            end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the node of the root element
+     */
+    public Node root() {
+        return root;
+    }
+
+    public String getRootName() {
+        return rootName;
+    }
+
+    /**
+     * A level in the filter.
+     */
+    public static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean all;
+
+        private Node() {
+        }
+
+        private static Node everything() {
+            Node node = new Node();
+            node.all = true;
+            return node;
+        }
+
+        /**
+         * @return the node of the child with the given name, or null if the child isn't needed
+         */
+        public Node child(String name) {
+            return all ? this : children.get(name);
+        }
+
+        /**
+         * @return true if everything below this node is needed
+         */
+        public boolean isAll() {
+            return all;
+        }
+
+        Map<String, Node> getChildren() {
+            return children;
+        }
+    }
+}
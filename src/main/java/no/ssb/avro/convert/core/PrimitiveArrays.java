@@ -0,0 +1,411 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link GenericData.Array}s of long, int, double, float and boolean backed by primitive arrays, used by
+ * {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)} for arrays of these types that
+ * don't accept null. Elements are stored without boxing and can be read without boxing, e.g. with
+ * {@link LongArray#getLong(int)}. Through the {@link java.util.List} interface elements are boxed as they are read,
+ * and null elements are rejected.
+ */
+public class PrimitiveArrays {
+
+    private PrimitiveArrays() {
+    }
+
+    /**
+     * @return an empty primitive array with room for capacity elements, or null if the elements of arraySchema
+     * have no primitive type or accept null
+     */
+    static PrimitiveArray<?> create(Schema arraySchema, int capacity) {
+        switch (arraySchema.getElementType().getType()) {
+            case LONG:
+                return new LongArray(capacity, arraySchema);
+            case INT:
+                return new IntArray(capacity, arraySchema);
+            case DOUBLE:
+                return new DoubleArray(capacity, arraySchema);
+            case FLOAT:
+                return new FloatArray(capacity, arraySchema);
+            case BOOLEAN:
+                return new BooleanArray(capacity, arraySchema);
+            default:
+                return null;
+        }
+    }
+
+    static boolean isPrimitive(Schema.Type type) {
+        return type == Schema.Type.LONG || type == Schema.Type.INT || type == Schema.Type.DOUBLE
+                || type == Schema.Type.FLOAT || type == Schema.Type.BOOLEAN;
+    }
+
+    /**
+     * Parse value and add it to array without boxing.
+     */
+    static void add(PrimitiveArray<?> array, CharSequence value) {
+        if (array instanceof LongArray) {
+            ((LongArray) array).addLong(Utf8Values.parseLong(value));
+        } else if (array instanceof IntArray) {
+            ((IntArray) array).addInt(Utf8Values.parseInt(value));
+        } else if (array instanceof DoubleArray) {
+            ((DoubleArray) array).addDouble(Utf8Values.parseDouble(value));
+        } else if (array instanceof FloatArray) {
+            ((FloatArray) array).addFloat(Utf8Values.parseFloat(value));
+        } else {
+            ((BooleanArray) array).addBoolean(Utf8Values.parseBoolean(value));
+        }
+    }
+
+    abstract static class PrimitiveArray<T> extends GenericData.Array<T> {
+        int size;
+
+        PrimitiveArray(Schema schema) {
+            super(0, schema);
+        }
+
+        abstract int capacity();
+
+        // Resize the backing array to capacity
+        abstract void resize(int capacity);
+
+        // Move length elements from index from to index to within the backing array
+        abstract void move(int from, int to, int length);
+
+        abstract T box(int index);
+
+        abstract void unbox(int index, T value);
+
+        void ensureCapacity(int minCapacity) {
+            if (minCapacity > capacity()) {
+                resize(Math.max(minCapacity, capacity() + (capacity() >> 1) + 1));
+            }
+        }
+
+        void checkIndex(int index, int bound) {
+            if (index < 0 || index >= bound) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds.");
+            }
+        }
+
+        void checkNotNull(T value) {
+            if (value == null) {
+                throw new NullPointerException("element can't be null");
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int position;
+
+                @Override
+                public boolean hasNext() {
+                    return position < size;
+                }
+
+                @Override
+                public T next() {
+                    if (position >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return box(position++);
+                }
+            };
+        }
+
+        @Override
+        public T get(int index) {
+            checkIndex(index, size);
+            return box(index);
+        }
+
+        @Override
+        public boolean add(T value) {
+            checkNotNull(value);
+            ensureCapacity(size + 1);
+            unbox(size++, value);
+            return true;
+        }
+
+        @Override
+        public void add(int index, T value) {
+            checkIndex(index, size + 1);
+            checkNotNull(value);
+            ensureCapacity(size + 1);
+            move(index, index + 1, size - index);
+            unbox(index, value);
+            size++;
+        }
+
+        @Override
+        public T set(int index, T value) {
+            checkIndex(index, size);
+            checkNotNull(value);
+            T previous = box(index);
+            unbox(index, value);
+            return previous;
+        }
+
+        @Override
+        public T remove(int index) {
+            checkIndex(index, size);
+            T removed = box(index);
+            move(index + 1, index, size - index - 1);
+            size--;
+            return removed;
+        }
+
+        /**
+         * @return null, there are no element objects to reuse
+         */
+        @Override
+        public T peek() {
+            return null;
+        }
+
+        @Override
+        public void reverse() {
+            for (int left = 0, right = size - 1; left < right; left++, right--) {
+                T value = box(left);
+                unbox(left, box(right));
+                unbox(right, value);
+            }
+        }
+    }
+
+    public static class LongArray extends PrimitiveArray<Long> {
+        private long[] elements;
+
+        public LongArray(int capacity, Schema schema) {
+            super(schema);
+            this.elements = new long[capacity];
+        }
+
+        public long getLong(int index) {
+            checkIndex(index, size);
+            return elements[index];
+        }
+
+        public void addLong(long value) {
+            ensureCapacity(size + 1);
+            elements[size++] = value;
+        }
+
+        @Override
+        int capacity() {
+            return elements.length;
+        }
+
+        @Override
+        void resize(int capacity) {
+            elements = Arrays.copyOf(elements, capacity);
+        }
+
+        @Override
+        void move(int from, int to, int length) {
+            System.arraycopy(elements, from, elements, to, length);
+        }
+
+        @Override
+        Long box(int index) {
+            return elements[index];
+        }
+
+        @Override
+        void unbox(int index, Long value) {
+            elements[index] = value;
+        }
+    }
+
+    public static class IntArray extends PrimitiveArray<Integer> {
+        private int[] elements;
+
+        public IntArray(int capacity, Schema schema) {
+            super(schema);
+            this.elements = new int[capacity];
+        }
+
+        public int getInt(int index) {
+            checkIndex(index, size);
+            return elements[index];
+        }
+
+        public void addInt(int value) {
+            ensureCapacity(size + 1);
+            elements[size++] = value;
+        }
+
+        @Override
+        int capacity() {
+            return elements.length;
+        }
+
+        @Override
+        void resize(int capacity) {
+            elements = Arrays.copyOf(elements, capacity);
+        }
+
+        @Override
+        void move(int from, int to, int length) {
+            System.arraycopy(elements, from, elements, to, length);
+        }
+
+        @Override
+        Integer box(int index) {
+            return elements[index];
+        }
+
+        @Override
+        void unbox(int index, Integer value) {
+            elements[index] = value;
+        }
+    }
+
+    public static class DoubleArray extends PrimitiveArray<Double> {
+        private double[] elements;
+
+        public DoubleArray(int capacity, Schema schema) {
+            super(schema);
+            this.elements = new double[capacity];
+        }
+
+        public double getDouble(int index) {
+            checkIndex(index, size);
+            return elements[index];
+        }
+
+        public void addDouble(double value) {
+            ensureCapacity(size + 1);
+            elements[size++] = value;
+        }
+
+        @Override
+        int capacity() {
+            return elements.length;
+        }
+
+        @Override
+        void resize(int capacity) {
+            elements = Arrays.copyOf(elements, capacity);
+        }
+
+        @Override
+        void move(int from, int to, int length) {
+            System.arraycopy(elements, from, elements, to, length);
+        }
+
+        @Override
+        Double box(int index) {
+            return elements[index];
+        }
+
+        @Override
+        void unbox(int index, Double value) {
+            elements[index] = value;
+        }
+    }
+
+    public static class FloatArray extends PrimitiveArray<Float> {
+        private float[] elements;
+
+        public FloatArray(int capacity, Schema schema) {
+            super(schema);
+            this.elements = new float[capacity];
+        }
+
+        public float getFloat(int index) {
+            checkIndex(index, size);
+            return elements[index];
+        }
+
+        public void addFloat(float value) {
+            ensureCapacity(size + 1);
+            elements[size++] = value;
+        }
+
+        @Override
+        int capacity() {
+            return elements.length;
+        }
+
+        @Override
+        void resize(int capacity) {
+            elements = Arrays.copyOf(elements, capacity);
+        }
+
+        @Override
+        void move(int from, int to, int length) {
+            System.arraycopy(elements, from, elements, to, length);
+        }
+
+        @Override
+        Float box(int index) {
+            return elements[index];
+        }
+
+        @Override
+        void unbox(int index, Float value) {
+            elements[index] = value;
+        }
+    }
+
+    public static class BooleanArray extends PrimitiveArray<Boolean> {
+        private boolean[] elements;
+
+        public BooleanArray(int capacity, Schema schema) {
+            super(schema);
+            this.elements = new boolean[capacity];
+        }
+
+        public boolean getBoolean(int index) {
+            checkIndex(index, size);
+            return elements[index];
+        }
+
+        public void addBoolean(boolean value) {
+            ensureCapacity(size + 1);
+            elements[size++] = value;
+        }
+
+        @Override
+        int capacity() {
+            return elements.length;
+        }
+
+        @Override
+        void resize(int capacity) {
+            elements = Arrays.copyOf(elements, capacity);
+        }
+
+        @Override
+        void move(int from, int to, int length) {
+            System.arraycopy(elements, from, elements, to, length);
+        }
+
+        @Override
+        Boolean box(int index) {
+            return elements[index];
+        }
+
+        @Override
+        void unbox(int index, Boolean value) {
+            elements[index] = value;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.util.Utf8;
+
+/**
+ * Default values of the fields of a record schema, resolved once.
+ * Immutable defaults (null, numbers, booleans, strings and enum symbols) are shared by all records,
+ * other defaults are deep-copied for each record, as {@link org.apache.avro.generic.GenericRecordBuilder} does.
+ * String defaults are kept as {@link String} instead of the mutable {@link Utf8} Avro decodes them to.
+ */
+class RecordDefaults {
+
+    private final Schema.Field[] fields;
+    private final boolean[] hasDefault;
+    private final boolean[] shared;
+    private final Object[] values;
+
+    RecordDefaults(Schema schema) {
+        this.fields = schema.getFields().toArray(new Schema.Field[0]);
+        this.hasDefault = new boolean[fields.length];
+        this.shared = new boolean[fields.length];
+        this.values = new Object[fields.length];
+        for (Schema.Field field : fields) {
+            if (field.defaultVal() != null) {
+                Object value = GenericData.get().getDefaultValue(field);
+                if (value instanceof Utf8) {
+                    value = value.toString();
+                }
+                hasDefault[field.pos()] = true;
+                shared[field.pos()] = isImmutable(value);
+                values[field.pos()] = value;
+            }
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null
+                || value instanceof String
+                || value instanceof Number
+                || value instanceof Boolean
+                || value instanceof GenericData.EnumSymbol;
+    }
+
+    Schema.Field[] getFields() {
+        return fields;
+    }
+
+    boolean hasDefault(int pos) {
+        return hasDefault[pos];
+    }
+
+    /**
+     * @return the default value of the field, safe to put in a record
+     */
+    Object get(int pos) {
+        if (!hasDefault[pos]) {
+            throw new AvroRuntimeException("Field " + fields[pos] + " not set and has no default value");
+        }
+        return shared[pos] ? values[pos] : GenericData.get().deepCopy(fields[pos].schema(), values[pos]);
+    }
+}
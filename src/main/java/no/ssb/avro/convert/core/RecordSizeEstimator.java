@@ -0,0 +1,195 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * RecordSizeEstimator estimates the Avro binary encoded size of records from the schema, without encoding them.
+ *
+ * The size of a {@link GenericRecord} is exact for valid records, computed from the lengths of strings and the
+ * varint lengths of numbers. The size of a {@link DataElement} is the approximate size of the record it converts to,
+ * where the varint length of a number is estimated from its number of digits. Missing fields are not counted.
+ */
+public class RecordSizeEstimator {
+
+    // bits per decimal digit
+    private static final double LOG2_10 = 3.3219280948873626;
+
+    private final SchemaBuddy schemaBuddy;
+
+    private RecordSizeEstimator(SchemaBuddy schemaBuddy) {
+        this.schemaBuddy = schemaBuddy;
+    }
+
+    public static RecordSizeEstimator forSchema(SchemaBuddy schemaBuddy) {
+        if (!schemaBuddy.isRoot()) {
+            throw new IllegalArgumentException("Can only estimate root records, was " + schemaBuddy.getPath());
+        }
+        return new RecordSizeEstimator(schemaBuddy);
+    }
+
+    /**
+     * @return bytes of record encoded as Avro binary
+     */
+    public long estimate(GenericRecord record) {
+        return encodedSize(record.getSchema(), record);
+    }
+
+    /**
+     * @return approximate bytes of the record converted from dataElement, encoded as Avro binary
+     */
+    public long estimate(DataElement dataElement) {
+        return estimateRecord(schemaBuddy, dataElement);
+    }
+
+    static long encodedSize(Schema schema, Object datum) {
+        switch (schema.getType()) {
+            case RECORD:
+                GenericRecord record = (GenericRecord) datum;
+                long recordBytes = 0;
+                for (Schema.Field field : schema.getFields()) {
+                    recordBytes += encodedSize(field.schema(), record.get(field.pos()));
+                }
+                return recordBytes;
+            case UNION:
+                int index = GenericData.get().resolveUnion(schema, datum);
+                return varLongSize(index) + encodedSize(schema.getTypes().get(index), datum);
+            case ARRAY:
+                Collection<?> elements = (Collection<?>) datum;
+                long arrayBytes = blockSize(elements.size());
+                for (Object element : elements) {
+                    arrayBytes += encodedSize(schema.getElementType(), element);
+                }
+                return arrayBytes;
+            case MAP:
+                Map<?, ?> map = (Map<?, ?>) datum;
+                long mapBytes = blockSize(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    mapBytes += stringSize((CharSequence) entry.getKey()) + encodedSize(schema.getValueType(), entry.getValue());
+                }
+                return mapBytes;
+            case STRING:
+                return stringSize((CharSequence) datum);
+            case BYTES:
+                int length = ((ByteBuffer) datum).remaining();
+                return varLongSize(length) + length;
+            case FIXED:
+                return schema.getFixedSize();
+            case ENUM:
+                return varLongSize(schema.getEnumOrdinal(datum.toString()));
+            case INT:
+            case LONG:
+                return varLongSize(((Number) datum).longValue());
+            case FLOAT:
+                return 4;
+            case DOUBLE:
+                return 8;
+            case BOOLEAN:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private long estimateRecord(SchemaBuddy recordSchema, DataElement dataElement) {
+        long bytes = 0;
+        Map<SchemaBuddy, Integer> arraySizes = null;
+        for (DataElement child : dataElement.getChildren()) {
+            SchemaBuddy field = recordSchema.getChildReturnNullIdNotFound(child.getName());
+            if (field == null) {
+                continue;
+            }
+            if (field.isArrayType()) {
+                SchemaBuddy elementSchema = field.getArrayTypeSchema();
+                bytes += elementSchema.isRecordType() ? estimateRecord(elementSchema, child) : estimateValue(elementSchema, child.getCharSequence());
+                if (arraySizes == null) {
+                    arraySizes = new IdentityHashMap<>();
+                }
+                arraySizes.merge(field, 1, Integer::sum);
+            } else if (field.isRecordType()) {
+                bytes += estimateRecord(field, child);
+            } else {
+                bytes += estimateValue(field, child.getCharSequence());
+            }
+        }
+        for (SchemaBuddy field : recordSchema.getChildren()) {
+            if (field.isOptional() || field.isNullable()) {
+                bytes++;
+            }
+            if (field.isArrayType()) {
+                Integer size = arraySizes != null ? arraySizes.get(field) : null;
+                bytes += blockSize(size != null ? size : 0);
+            }
+        }
+        return bytes;
+    }
+
+    private static long estimateValue(SchemaBuddy leaf, CharSequence value) {
+        if (value == null) {
+            // a placeholder for required fields
+            return leaf.isOptional() || leaf.isNullable() ? 0 : 1;
+        }
+        switch (leaf.getType()) {
+            case INT:
+            case LONG:
+                int digits = value.length() > 0 && value.charAt(0) == '-' ? value.length() - 1 : value.length();
+                return Math.min(10, (int) (digits * LOG2_10 + 1) / 7 + 1);
+            case FLOAT:
+                return 4;
+            case DOUBLE:
+                return 8;
+            case BOOLEAN:
+            case ENUM:
+                return 1;
+            default:
+                return stringSize(value);
+        }
+    }
+
+    // Count and end marker of an array or map written as one block
+    private static long blockSize(int size) {
+        return size == 0 ? 1 : varLongSize(size) + 1;
+    }
+
+    static long stringSize(CharSequence value) {
+        long length = utf8Length(value);
+        return varLongSize(length) + length;
+    }
+
+    static long utf8Length(CharSequence value) {
+        if (value instanceof Utf8) {
+            return ((Utf8) value).getByteLength();
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // a surrogate pair is 4 bytes
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Length of n as a zig-zag encoded varint
+    static int varLongSize(long n) {
+        long zigZag = (n << 1) ^ (n >> 63);
+        int size = 1;
+        while ((zigZag & ~0x7FL) != 0) {
+            zigZag >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+
+/**
+ * Fills the fields of one record. Either through a {@link GenericRecordBuilder}, or directly into a
+ * {@link GenericData.Record} when {@link ConversionOptions#isTrustedFastPath()} is set.
+ */
+abstract class RecordWriter {
+
+    static RecordWriter create(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        if (options.isTrustedFastPath()) {
+            return new DirectWriter(schemaBuddy, options.isValidation());
+        }
+        return new BuilderWriter(schemaBuddy.getSchema());
+    }
+
+    abstract void set(String name, Object value);
+
+    /**
+     * Unset the field, so it gets its default value.
+     */
+    abstract void clear(String name);
+
+    abstract GenericRecord build();
+
+    private static class BuilderWriter extends RecordWriter {
+        private final GenericRecordBuilder builder;
+
+        private BuilderWriter(Schema schema) {
+            this.builder = new GenericRecordBuilder(schema);
+        }
+
+        @Override
+        void set(String name, Object value) {
+            builder.set(name, value);
+        }
+
+        @Override
+        void clear(String name) {
+            builder.clear(name);
+        }
+
+        @Override
+        GenericRecord build() {
+            return builder.build();
+        }
+    }
+
+    private static class DirectWriter extends RecordWriter {
+        private final Schema schema;
+        private final RecordDefaults defaults;
+        private final boolean validate;
+        private final GenericData.Record record;
+        private final boolean[] set;
+
+        private DirectWriter(SchemaBuddy schemaBuddy, boolean validate) {
+            this.schema = schemaBuddy.getSchema();
+            this.defaults = schemaBuddy.getRecordDefaults();
+            this.validate = validate;
+            this.record = new GenericData.Record(schema);
+            this.set = new boolean[defaults.getFields().length];
+        }
+
+        private Schema.Field field(String name) {
+            Schema.Field field = schema.getField(name);
+            if (field == null) {
+                throw new AvroRuntimeException("Not a valid schema field: " + name);
+            }
+            return field;
+        }
+
+        @Override
+        void set(String name, Object value) {
+            Schema.Field field = field(name);
+            if (validate && value == null && !acceptsNull(field.schema()) && !defaults.hasDefault(field.pos())) {
+                throw new AvroRuntimeException("Field " + field + " does not accept null values");
+            }
+            record.put(field.pos(), value);
+            set[field.pos()] = true;
+        }
+
+        private static boolean acceptsNull(Schema schema) {
+            if (schema.getType() == Schema.Type.NULL) {
+                return true;
+            }
+            if (schema.getType() == Schema.Type.UNION) {
+                for (Schema type : schema.getTypes()) {
+                    if (type.getType() == Schema.Type.NULL) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void clear(String name) {
+            int pos = field(name).pos();
+            record.put(pos, null);
+            set[pos] = false;
+        }
+
+        @Override
+        GenericRecord build() {
+            for (int pos = 0; pos < set.length; pos++) {
+                if (!set[pos]) {
+                    record.put(pos, defaults.get(pos));
+                }
+            }
+            return record;
+        }
+    }
+}
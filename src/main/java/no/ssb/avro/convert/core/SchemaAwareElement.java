@@ -2,15 +2,15 @@ package no.ssb.avro.convert.core;
 
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.util.Utf8;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SchemaAwareElement us used to link {@link no.ssb.avro.convert.core.DataElement} to Avro schema.
@@ -20,11 +20,16 @@ public class SchemaAwareElement {
 
     private final String name;
     private final SchemaAwareElement parent;
-    private final String value;
+    // A String, or a Utf8 if the data element has its value as UTF-8 bytes
+    private final CharSequence value;
     private final List<SchemaAwareElement> children = new ArrayList<>();
     private final SchemaBuddy schemaBuddy;
 
     public SchemaAwareElement(String name, String value, SchemaAwareElement parent, SchemaBuddy schemaBuddy) {
+        this(name, (CharSequence) value, parent, schemaBuddy);
+    }
+
+    private SchemaAwareElement(String name, CharSequence value, SchemaAwareElement parent, SchemaBuddy schemaBuddy) {
         this.name = name;
         this.parent = parent;
         this.value = value;
@@ -32,15 +37,42 @@ public class SchemaAwareElement {
     }
 
     public static SchemaAwareElement toSchemaAwareElement(DataElement dataElement, SchemaBuddy schemaBuddy) {
-        return toSchemaAwareElement(dataElement, null, schemaBuddy);
+        return toSchemaAwareElement(dataElement, null, schemaBuddy, ConversionOptions.defaults());
     }
 
     public static GenericRecord toRecord(DataElement dataElement, SchemaBuddy schemaBuddy) {
-        return toSchemaAwareElement(dataElement, schemaBuddy).toRecord();
+        return toRecord(dataElement, schemaBuddy, ConversionOptions.defaults());
+    }
+
+    /**
+     * Convert dataElement to a record using the given options.
+     * Returns null if the record was dropped due to {@link ErrorPolicy#DROP_RECORD}
+     */
+    public static GenericRecord toRecord(DataElement dataElement, SchemaBuddy schemaBuddy, ConversionOptions options) {
+        ConversionEvents.Config events = ConversionEvents.config();
+        long start = events != null ? System.nanoTime() : 0L;
+        GenericRecord record = convert(dataElement, schemaBuddy, options);
+        if (events != null && record != null) {
+            events.recordConverted(schemaBuddy.getName(), dataElement::countNodes, -1, start);
+        }
+        return record;
+    }
+
+    // Same as toRecord without reporting an event, for callers reporting the conversion together with encoding
+    static GenericRecord convert(DataElement dataElement, SchemaBuddy schemaBuddy, ConversionOptions options) {
+        SchemaAwareElement schemaAwareElement = toSchemaAwareElement(dataElement, null, schemaBuddy, options);
+        try {
+            return schemaAwareElement.toRecord(schemaBuddy, options);
+        } catch (DroppedRecordException e) {
+            if (options.getErrorSink() != null) {
+                options.getErrorSink().onRecordDropped(dataElement);
+            }
+            return null;
+        }
     }
 
     public GenericRecord toRecord() {
-        return toRecord(schemaBuddy);
+        return toRecord(schemaBuddy, ConversionOptions.defaults());
     }
 
     private void addChild(SchemaAwareElement child) {
@@ -66,52 +98,100 @@ public class SchemaAwareElement {
         return children;
     }
 
-    private static SchemaAwareElement toSchemaAwareElement(DataElement dataElement, SchemaAwareElement parent, SchemaBuddy schemaBuddy) {
-        SchemaAwareElement schemaAwareElement = new SchemaAwareElement(dataElement.name, dataElement.getValue(), parent, schemaBuddy);
+    String getValue() {
+        return value != null ? value.toString() : null;
+    }
 
-        Map<String, List<DataElement>> arrayTypes = recursivelyMapToSchemaAwareElementAndCollectArrayTypes(dataElement, schemaBuddy, schemaAwareElement);
+    String getPath() {
+        return TreeWalk.path(this, element -> element.parent, element -> element.name);
+    }
 
-        arrayTypes.forEach((name, subElements) -> {
-            SchemaBuddy arrayTypeSchema = schemaBuddy.getChild(name);
-            recursivelyMapArrayElementsToSchemaAwareElement(arrayTypeSchema, schemaAwareElement, name, subElements);
-        });
+    private static SchemaAwareElement toSchemaAwareElement(DataElement dataElement, SchemaAwareElement parent, SchemaBuddy schemaBuddy, ConversionOptions options) {
+        return toSchemaAwareElement(dataElement, parent, schemaBuddy, options, Limits.of(options), 0);
+    }
 
+    // Maps the subtree of dataElement with an explicit stack of elements whose children are not mapped yet
+    private static SchemaAwareElement toSchemaAwareElement(DataElement dataElement, SchemaAwareElement parent, SchemaBuddy schemaBuddy, ConversionOptions options, Limits limits, int depth) {
+        limits.check(dataElement, depth);
+        SchemaAwareElement schemaAwareElement = new SchemaAwareElement(dataElement.name, dataElement.getCharSequence(), parent, schemaBuddy);
+        Deque<Pending> pending = new ArrayDeque<>();
+        pending.push(new Pending(dataElement, schemaAwareElement, depth));
+        while (!pending.isEmpty()) {
+            Pending next = pending.pop();
+            Map<String, List<DataElement>> arrayTypes = mapChildrenAndCollectArrayTypes(next, pending, options, limits);
+            if (arrayTypes != null) {
+                SchemaBuddy nextSchema = next.schemaAwareElement.schemaBuddy;
+                arrayTypes.forEach((name, subElements) -> {
+                    SchemaBuddy arrayTypeSchema = nextSchema.getChild(name);
+                    mapArrayElements(arrayTypeSchema, next.schemaAwareElement, name, subElements, next.depth + 1, pending, options, limits);
+                });
+            }
+        }
         return schemaAwareElement;
     }
 
-    private static Map<String, List<DataElement>> recursivelyMapToSchemaAwareElementAndCollectArrayTypes(DataElement dataElement, SchemaBuddy schemaBuddy, SchemaAwareElement schemaAwareElement) {
-        Map<String, List<DataElement>> nameToList = new HashMap<>();
-        for (DataElement child : dataElement.getChildren()) {
-            SchemaBuddy schemaBuddyChild = schemaBuddy.getChild(child.getName());
+    /**
+     * Add the children of an element that are not arrays, where records are left pending.
+     *
+     * @return elements of array fields by name, or null if there are none
+     */
+    private static Map<String, List<DataElement>> mapChildrenAndCollectArrayTypes(Pending parent, Deque<Pending> pending, ConversionOptions options, Limits limits) {
+        SchemaBuddy schemaBuddy = parent.schemaAwareElement.schemaBuddy;
+        SchemaAwareElement schemaAwareElement = parent.schemaAwareElement;
+        Map<String, List<DataElement>> nameToList = null;
+        for (DataElement child : parent.dataElement.getChildren()) {
+            SchemaBuddy schemaBuddyChild;
+            if (options.isIgnoreUnknownFields()) {
+                schemaBuddyChild = schemaBuddy.getChildReturnNullIdNotFound(child.getName());
+                if (schemaBuddyChild == null) {
+                    continue; // not part of the schema, skip the whole subtree
+                }
+            } else {
+                schemaBuddyChild = schemaBuddy.getChild(child.getName());
+            }
             if (schemaBuddyChild.isArrayType()) {
                 // For a datasource like xml we can have multiple elements with same name
                 // In the avro schema this will be array type and we need to collect all elements in a list
-                List<DataElement> dataElements = nameToList.getOrDefault(child.getName(), new ArrayList<>());
-                dataElements.add(child);
-                nameToList.putIfAbsent(child.getName(), dataElements);
+                if (nameToList == null) {
+                    nameToList = new HashMap<>();
+                }
+                nameToList.computeIfAbsent(child.getName(), name -> new ArrayList<>()).add(child);
             } else {
-                if (schemaBuddy.isSimpleType()) {
-                    schemaAwareElement.addChild(new SchemaAwareElement(child.getName(), child.getValue(), schemaAwareElement, schemaBuddyChild));
-                } else {
-                    schemaAwareElement.addChild(toSchemaAwareElement(child, schemaAwareElement, schemaBuddyChild));
+                limits.check(child, parent.depth + 1);
+                SchemaAwareElement childElement = new SchemaAwareElement(child.getName(), child.getCharSequence(), schemaAwareElement, schemaBuddyChild);
+                schemaAwareElement.addChild(childElement);
+                if (!schemaBuddy.isSimpleType() && !child.getChildren().isEmpty()) {
+                    pending.push(new Pending(child, childElement, parent.depth + 1));
                 }
             }
         }
         return nameToList;
     }
 
-    private static void recursivelyMapArrayElementsToSchemaAwareElement(SchemaBuddy arrayTypeSchema, SchemaAwareElement schemaAwareElement, String name, List<DataElement> subElements) {
+    private static void mapArrayElements(SchemaBuddy arrayTypeSchema, SchemaAwareElement schemaAwareElement, String name, List<DataElement> subElements, int depth, Deque<Pending> pending, ConversionOptions options, Limits limits) {
         SchemaAwareElement arraySchemaAwareElement = new SchemaAwareElement(name, null, schemaAwareElement, arrayTypeSchema);
 
         // If we don't have a value, it's a record
-        if (subElements.get(0).getValue() == null) {
-            for (DataElement child : subElements) {
-                arraySchemaAwareElement.addChild(toSchemaAwareElement(child, arraySchemaAwareElement, arrayTypeSchema.getArrayTypeSchema()));
+        if (!subElements.get(0).hasValue()) {
+            SchemaBuddy childSchema = arrayTypeSchema.getArrayTypeSchema();
+            if (subElements.size() < options.getParallelArrayThreshold()) {
+                for (DataElement child : subElements) {
+                    limits.check(child, depth);
+                    SchemaAwareElement childElement = new SchemaAwareElement(child.name, child.getCharSequence(), arraySchemaAwareElement, childSchema);
+                    arraySchemaAwareElement.addChild(childElement);
+                    pending.push(new Pending(child, childElement, depth));
+                }
+            } else {
+                arraySchemaAwareElement.children.addAll(ParallelArrays.map(subElements,
+                        child -> toSchemaAwareElement(child, arraySchemaAwareElement, childSchema, options, limits, depth), options));
             }
         } else {
             for (DataElement child : subElements) {
+                limits.check(child, depth);
                 SchemaBuddy childSchema = arrayTypeSchema.getArrayTypeSchema();
-                String childValue = child.getValue() == null && !childSchema.isNullable() ? "" : child.getValue();
+                // An empty string is no valid primitive, so those keep null, which simpleArray rejects unless nullable
+                CharSequence childValue = !child.hasValue() && !childSchema.isNullable()
+                        && !PrimitiveArrays.isPrimitive(childSchema.getType()) ? "" : child.getCharSequence();
                 arraySchemaAwareElement.addChild(new SchemaAwareElement(child.getName(), childValue, arraySchemaAwareElement, childSchema));
             }
         }
@@ -121,11 +201,12 @@ public class SchemaAwareElement {
     public String toString(boolean recursive) {
         StringBuilder sb = new StringBuilder();
         if (recursive) {
-            sb.append(String.format("%s%s value:%s schema(%s)%n", getIndentString(), name, value, schemaBuddy));
-
-            for (SchemaAwareElement child : getChildren()) {
-                sb.append(child.toString(true));
-            }
+            String lineSeparator = System.lineSeparator();
+            TreeWalk.preOrder(this, getDepth(), SchemaAwareElement::getChildren, (element, depth) -> {
+                TreeWalk.indent(sb, depth);
+                sb.append(element.name).append(" value:").append(element.value)
+                        .append(" schema(").append(element.schemaBuddy).append(')').append(lineSeparator);
+            });
         } else {
             sb.append(String.format("%s value:%s schema(%s)", name, value, schemaBuddy));
         }
@@ -133,100 +214,186 @@ public class SchemaAwareElement {
         return sb.toString();
     }
 
-    private GenericRecord toRecord(SchemaBuddy schemaBuddy) {
-        GenericRecordBuilder rootRecordBuilder = new GenericRecordBuilder(schemaBuddy.getSchema());
-        return toRecord(rootRecordBuilder);
+    // Builds the record with an explicit stack of records being built. Arrays of records large enough to be split
+    // over the pool are built in parallel tasks, each with its own stack.
+    private GenericRecord toRecord(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        Deque<PendingRecord> building = new ArrayDeque<>();
+        building.push(new PendingRecord(this, RecordWriter.create(schemaBuddy, options)));
+        while (true) {
+            PendingRecord current = building.peek();
+            SchemaAwareElement next = current.setFields(options);
+            if (next != null) {
+                building.push(new PendingRecord(next, RecordWriter.create(next.schemaBuddy, options)));
+                continue;
+            }
+            GenericRecord record = current.recordWriter.build();
+            building.pop();
+            if (building.isEmpty()) {
+                return record;
+            }
+            building.peek().add(record);
+        }
     }
 
-    private GenericRecord toRecord(GenericRecordBuilder rootRecordBuilder) {
-        if (value != null) {
-            setSimpleType(rootRecordBuilder, schemaBuddy.getType(), this);
-            return rootRecordBuilder.build();
+    private void setSimpleArray(RecordWriter recordWriter, SchemaAwareElement array, ConversionOptions options) {
+        try {
+            recordWriter.set(array.name, simpleArray(array, options));
+        } catch (Exception e) {
+            handleError(recordWriter, Schema.Type.ARRAY, array, options, e);
         }
+    }
 
-        for (SchemaAwareElement child : getChildren()) {
-            if (child.isArrayType()) {
-                Schema.Type arrayType = child.getArrayType();
-                if (arrayType == Schema.Type.RECORD) {
-                    SchemaBuddy arrayTypeSchema = child.schemaBuddy.getArrayTypeSchema();
-                    List<GenericRecord> records = child.getChildren()
-                            .stream()
-                            .map(subElement -> subElement.toRecord(arrayTypeSchema))
-                            .collect(Collectors.toList());
-                    rootRecordBuilder.set(child.name, records);
-                } else {
-                    List<SchemaAwareElement> childrenAsschemaAwareElements = child.getChildren();
-                    rootRecordBuilder.set(
-                            child.name,
-                            childrenAsschemaAwareElements.stream()
-                                    // TODO: make this convert value based on type so we support more than String
-                                    .map(subElement -> subElement.value)
-                                    .collect(Collectors.toList()));
-                }
-            } else {
-                if (child.isSimpleType()) {
-                    setSimpleType(rootRecordBuilder, child.schemaBuddy.getType(), child);
+    // Values of an array of simple types, in a primitive array sized to the elements if the type has one.
+    // Invalid elements fail the whole array, with the index of the element in the message.
+    private static List<?> simpleArray(SchemaAwareElement array, ConversionOptions options) {
+        List<SchemaAwareElement> elements = array.getChildren();
+        Schema arraySchema = array.schemaBuddy.getSchema();
+        boolean nullable = arraySchema.getElementType().getType() == Schema.Type.UNION;
+        PrimitiveArrays.PrimitiveArray<?> primitiveArray = PrimitiveArrays.create(arraySchema, elements.size());
+        Schema.Type type = array.getArrayType();
+        List<Object> values = primitiveArray == null ? new ArrayList<>(elements.size()) : null;
+        for (int i = 0; i < elements.size(); i++) {
+            SchemaAwareElement element = elements.get(i);
+            if (element.value == null && !nullable) {
+                throw new IllegalArgumentException("Element " + i + " of " + array.getPath() + " has no value, but the elements are not nullable");
+            }
+            try {
+                if (primitiveArray != null) {
+                    PrimitiveArrays.add(primitiveArray, element.value);
                 } else {
-                    GenericRecord record = child.toRecord();
-                    rootRecordBuilder.set(child.name, record);
+                    values.add(arrayElement(type, element, options));
                 }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Element " + i + " of " + array.getPath() + " is invalid: " + e.getMessage(), e);
             }
         }
-        return rootRecordBuilder.build();
+        return primitiveArray != null ? primitiveArray : values;
+    }
+
+    // An element of an array that accepts null, or of a type without a primitive array
+    private static Object arrayElement(Schema.Type type, SchemaAwareElement element, ConversionOptions options) {
+        if (element.value == null) {
+            return null;
+        }
+        switch (type) {
+            case LONG:
+                return Utf8Values.parseLong(element.value);
+            case INT:
+                return Utf8Values.parseInt(element.value);
+            case DOUBLE:
+                return Utf8Values.parseDouble(element.value);
+            case FLOAT:
+                return Utf8Values.parseFloat(element.value);
+            case BOOLEAN:
+                return Utf8Values.parseBoolean(element.value);
+            default:
+                return string(element.schemaBuddy, element.value, options);
+        }
     }
 
-    private void setSimpleType(GenericRecordBuilder rootRecordBuilder, Schema.Type type, SchemaAwareElement element) {
+    private void setSimpleType(RecordWriter recordWriter, Schema.Type type, SchemaAwareElement element, ConversionOptions options) {
         try {
             if (element.value == null && element.schemaBuddy.isOptional()) {
                 return; // do nothing
             }
-            else {
-                switch (type) {
-                    case LONG:
-                        rootRecordBuilder.set(element.name, Long.parseLong(Optional.ofNullable(element.value).orElse("0")));
-                        break;
-                    case INT:
-                        rootRecordBuilder.set(element.name, Integer.parseInt(Optional.ofNullable(element.value).orElse("0")));
-                        break;
-                    case DOUBLE:
-                        rootRecordBuilder.set(element.name, Double.parseDouble(Optional.ofNullable(element.value).orElse("0")));
-                        break;
-                    case FLOAT:
-                        rootRecordBuilder.set(element.name, Float.parseFloat(Optional.ofNullable(element.value).orElse("0")));
-                        break;
-                    case BOOLEAN:
-                        rootRecordBuilder.set(element.name, Boolean.parseBoolean(Optional.ofNullable(element.value).orElse("false")));
-                        break;
-                    case MAP:
-                        // TODO: make tests for this and implement correctly
-                        // Collections.singletonMap("a", "b")
-                        rootRecordBuilder.set(element.name, new HashMap<>());
-                        break;
-                    case STRING:
-                        if (!element.schemaBuddy.isOptional() && element.value == null) {
-                            // We have a case where avro schema requires a value
-                            // But data source don't send data
-                            // For now we are adding a default value for this
-                            // TODO: add an argument which decides if we should add default value or throw exception
-                            rootRecordBuilder.set(element.name, "null");
-                        } else {
-                            rootRecordBuilder.set(element.name, element.value);
-                        }
-                        break;
-                    default:
-                        throw new IllegalStateException(type + " do not currently have a converter");
+            if (element.value == null && type != Schema.Type.MAP) {
+                // The avro schema requires a value, but the data source don't send data
+                Object missingValue = element.schemaBuddy.getMissingValue(options.getMissingValuePolicy());
+                if (missingValue == MissingValue.USE_DEFAULT) {
+                    recordWriter.clear(element.name);
+                    return;
                 }
+                if (missingValue == MissingValue.FAIL) {
+                    throw new IllegalStateException("Missing value for required field");
+                }
+                if (missingValue != null) {
+                    recordWriter.set(element.name, missingValue);
+                    return;
+                }
+            }
+            switch (type) {
+                case LONG:
+                    recordWriter.set(element.name, Utf8Values.parseLong(element.value));
+                    break;
+                case INT:
+                    recordWriter.set(element.name, Utf8Values.parseInt(element.value));
+                    break;
+                case DOUBLE:
+                    recordWriter.set(element.name, Utf8Values.parseDouble(element.value));
+                    break;
+                case FLOAT:
+                    recordWriter.set(element.name, Utf8Values.parseFloat(element.value));
+                    break;
+                case BOOLEAN:
+                    recordWriter.set(element.name, Utf8Values.parseBoolean(element.value));
+                    break;
+                case MAP:
+                    // TODO: make tests for this and implement correctly
+                    // Collections.singletonMap("a", "b")
+                    recordWriter.set(element.name, new HashMap<>());
+                    break;
+                case STRING:
+                    recordWriter.set(element.name, string(element.schemaBuddy, element.value, options));
+                    break;
+                default:
+                    throw new IllegalStateException(type + " do not currently have a converter");
             }
         } catch (Exception e) {
-            throw new RuntimeException(e.getMessage() + String.format("%ndata:(%s)", element.toString()), e);
+            handleError(recordWriter, type, element, options, e);
+        }
+    }
+
+    // The value of a string field, see ConversionOptions.withUtf8Strings and withValueInterner
+    static CharSequence string(SchemaBuddy leaf, CharSequence value, ConversionOptions options) {
+        if (value instanceof Utf8 && !options.isUtf8Strings()) {
+            value = value.toString();
         }
+        ValueInterner valueInterner = options.getValueInterner();
+        return valueInterner != null ? valueInterner.intern(leaf, value) : value;
     }
 
-    private String getIndentString() {
-        int size = getParents().size();
-        if (size == 0) return "";
-        if (size == 1) return " |-- ";
-        return String.join("", Collections.nCopies(size - 1, " |   ")) + " |-- ";
+    private void handleError(RecordWriter recordWriter, Schema.Type type, SchemaAwareElement element, ConversionOptions options, Exception e) {
+        ConversionError error = new ConversionError(element.getPath(), element.name, element.getValue(), element.schemaBuddy, type, e);
+        if (options.getErrorPolicy() == ErrorPolicy.FAIL) {
+            throw new ConversionException(error);
+        }
+        if (options.getErrorSink() != null) {
+            options.getErrorSink().onError(error);
+        }
+
+        Schema.Field field = schemaBuddy.isRecordType() ? schemaBuddy.getSchema().getField(element.name) : null;
+        boolean hasDefault = field != null && field.defaultVal() != null;
+        switch (options.getErrorPolicy()) {
+            case SKIP_FIELD:
+                if (element.schemaBuddy.isOptional() || element.schemaBuddy.isNullable()) {
+                    recordWriter.set(element.name, null);
+                    return;
+                }
+                if (hasDefault) {
+                    recordWriter.clear(element.name);
+                    return;
+                }
+                setPlaceholder(recordWriter, type, element);
+                return;
+            case DEFAULT:
+                if (hasDefault) {
+                    recordWriter.clear(element.name);
+                    return;
+                }
+                setPlaceholder(recordWriter, type, element);
+                return;
+            default:
+                throw DroppedRecordException.INSTANCE;
+        }
+    }
+
+    private static void setPlaceholder(RecordWriter recordWriter, Schema.Type type, SchemaAwareElement element) {
+        Object placeholder = MissingValue.placeholder(type);
+        if (placeholder == null) {
+            // No sensible placeholder exists, give up on the record
+            throw DroppedRecordException.INSTANCE;
+        }
+        recordWriter.set(element.name, placeholder);
     }
 
     @Override
@@ -234,14 +401,131 @@ public class SchemaAwareElement {
         return toString(false);
     }
 
-    private List<String> getParents() {
-        SchemaAwareElement currentParent = parent;
-        List<String> parentList = new ArrayList<>();
-        while (currentParent != null) {
-            parentList.add(currentParent.name);
-            currentParent = currentParent.parent;
+    private int getDepth() {
+        int depth = 0;
+        for (SchemaAwareElement current = parent; current != null; current = current.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    // A record being built, with the fields of children before next set
+    private static class PendingRecord {
+        private final SchemaAwareElement element;
+        private final RecordWriter recordWriter;
+        private int next;
+        // Records of the array of records at next, while they are built
+        private List<GenericRecord> records;
+
+        private PendingRecord(SchemaAwareElement element, RecordWriter recordWriter) {
+            this.element = element;
+            this.recordWriter = recordWriter;
+        }
+
+        /**
+         * Set fields until a record field or array element needs to be built.
+         *
+         * @return the element of the record to build, or null if all fields are set
+         */
+        private SchemaAwareElement setFields(ConversionOptions options) {
+            if (element.value != null) {
+                element.setSimpleType(recordWriter, element.schemaBuddy.getType(), element, options);
+                return null;
+            }
+            List<SchemaAwareElement> children = element.getChildren();
+            for (; next < children.size(); next++) {
+                SchemaAwareElement child = children.get(next);
+                if (child.isArrayType()) {
+                    if (child.getArrayType() != Schema.Type.RECORD) {
+                        element.setSimpleArray(recordWriter, child, options);
+                        continue;
+                    }
+                    List<SchemaAwareElement> elements = child.getChildren();
+                    if (elements.size() >= options.getParallelArrayThreshold()) {
+                        SchemaBuddy arrayTypeSchema = child.schemaBuddy.getArrayTypeSchema();
+                        recordWriter.set(child.name, ParallelArrays.map(elements,
+                                subElement -> subElement.toRecord(arrayTypeSchema, options), options));
+                        continue;
+                    }
+                    if (records == null) {
+                        records = new ArrayList<>(elements.size());
+                    }
+                    if (records.size() < elements.size()) {
+                        return elements.get(records.size());
+                    }
+                    recordWriter.set(child.name, records);
+                    records = null;
+                } else if (child.isSimpleType()) {
+                    element.setSimpleType(recordWriter, child.schemaBuddy.getType(), child, options);
+                } else {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        // Set the record built for the element returned by setFields
+        private void add(GenericRecord record) {
+            if (records != null) {
+                records.add(record);
+            } else {
+                recordWriter.set(element.getChildren().get(next).name, record);
+                next++;
+            }
+        }
+    }
+
+    // A data element whose children are not mapped yet, at the given depth below the root
+    private static class Pending {
+        private final DataElement dataElement;
+        private final SchemaAwareElement schemaAwareElement;
+        private final int depth;
+
+        private Pending(DataElement dataElement, SchemaAwareElement schemaAwareElement, int depth) {
+            this.dataElement = dataElement;
+            this.schemaAwareElement = schemaAwareElement;
+            this.depth = depth;
+        }
+    }
+
+    // See ConversionOptions.withMaxDepth and withMaxNodes. Counts the data elements of one record, also when
+    // arrays are mapped in parallel.
+    private static class Limits {
+        private static final Limits DEFAULT = new Limits(ConversionOptions.DEFAULT_MAX_DEPTH, Integer.MAX_VALUE);
+
+        private final int maxDepth;
+        private final int maxNodes;
+        private final AtomicInteger nodes;
+
+        private Limits(int maxDepth, int maxNodes) {
+            this.maxDepth = maxDepth;
+            this.maxNodes = maxNodes;
+            this.nodes = maxNodes != Integer.MAX_VALUE ? new AtomicInteger() : null;
+        }
+
+        private static Limits of(ConversionOptions options) {
+            if (options.getMaxDepth() == DEFAULT.maxDepth && options.getMaxNodes() == DEFAULT.maxNodes) {
+                return DEFAULT;
+            }
+            return new Limits(options.getMaxDepth(), options.getMaxNodes());
+        }
+
+        private void check(DataElement dataElement, int depth) {
+            if (depth > maxDepth) {
+                throw new IllegalStateException("Data element " + dataElement.getPath() + " is deeper than maxDepth " + maxDepth);
+            }
+            if (nodes != null && nodes.incrementAndGet() > maxNodes) {
+                throw new IllegalStateException("Record has more than maxNodes " + maxNodes + " data elements");
+            }
         }
-        return parentList;
     }
 
+    // Thrown to unwind the conversion of a record with ErrorPolicy.DROP_RECORD. Has no stacktrace to be cheap.
+    private static class DroppedRecordException extends RuntimeException {
+        private static final DroppedRecordException INSTANCE = new DroppedRecordException();
+
+        private DroppedRecordException() {
+            super(null, null, false, false);
+        }
+    }
 }
@@ -3,12 +3,10 @@ package no.ssb.avro.convert.core;
 import org.apache.avro.Schema;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Optional;
-import java.util.StringJoiner;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -22,20 +20,39 @@ public class SchemaBuddy {
     private SchemaBuddy parent;
 
     private final List<SchemaBuddy> children = new ArrayList<>();
+    // Index for constant time lookup of children in wide records
+    private final Map<String, SchemaBuddy> childrenByName = new HashMap<>();
     private final Schema schema;
     private final String name;
     private final Map<String, Object> props;
     private final boolean optional;
     private final boolean nullable;
 
-    private final String uuidString = UUID.randomUUID().toString();
+    // Generated on first use, UUID.randomUUID is too expensive to call for every node when parsing
+    private String uuidString;
+    // Resolved on first use by the trusted fast path, immutable once created
+    private volatile RecordDefaults recordDefaults;
+    // Conversion plan of CompiledConverter for records, created on first use
+    private volatile CompiledConverter.RecordPlan compiledPlan;
+    // Value per MissingValuePolicy for leaves without data, resolved on first use
+    private volatile Object[] missingValues;
+    // Hash of the subtree for SchemaDiff, computed on first use, 0 if not computed
+    private volatile long structureHash;
+    // Table of the ValueInterner last used with this leaf, resolved on first use
+    private volatile ValueInterner.Table internTable;
 
     private SchemaBuddy(Schema schema, String name, Map<String, Object> props, boolean optional, boolean nullable) {
+        this(schema, name, props, optional, nullable, null);
+    }
+
+    // Used by SchemaSnapshot to restore a node with the generated id it had when the snapshot was written
+    SchemaBuddy(Schema schema, String name, Map<String, Object> props, boolean optional, boolean nullable, String generatedId) {
         this.schema = schema;
         this.name = name;
         this.props = props;
         this.optional = optional;
         this.nullable = nullable;
+        this.uuidString = generatedId;
     }
 
     private SchemaBuddy(Schema schema, String name, Map<String, Object> props, boolean optional) {
@@ -82,16 +99,78 @@ public class SchemaBuddy {
     }
 
     public String getPath() {
-        StringJoiner joiner = new StringJoiner("/");
-        for (ListIterator<String> iter = getParents().listIterator(getParents().size()); iter.hasPrevious();) {
-            joiner.add(iter.previous());
-        }
-        return "/" + joiner.add(getName()).toString();
+        return TreeWalk.path(this, element -> element.parent, element -> element.name);
     }
 
     public String getId() {
         // Use id from schema if we have it to avoid generating duplicates if same save repeated
-        return (String) props.getOrDefault("id", uuidString);
+        if (props.containsKey("id")) {
+            return (String) props.get("id");
+        }
+        return getGeneratedId();
+    }
+
+    private synchronized String getGeneratedId() {
+        if (uuidString == null) {
+            uuidString = UUID.randomUUID().toString();
+        }
+        return uuidString;
+    }
+
+    // Used by SchemaSnapshot to keep generated ids across save and load
+    synchronized String peekGeneratedId() {
+        return uuidString;
+    }
+
+    RecordDefaults getRecordDefaults() {
+        RecordDefaults defaults = recordDefaults;
+        if (defaults == null) {
+            defaults = new RecordDefaults(schema);
+            recordDefaults = defaults;
+        }
+        return defaults;
+    }
+
+    CompiledConverter.RecordPlan getCompiledPlan() {
+        CompiledConverter.RecordPlan plan = compiledPlan;
+        if (plan == null) {
+            plan = new CompiledConverter.RecordPlan(this);
+            compiledPlan = plan;
+        }
+        return plan;
+    }
+
+    Object getMissingValue(MissingValuePolicy policy) {
+        Object[] values = missingValues;
+        if (values == null) {
+            values = MissingValue.resolve(this);
+            missingValues = values;
+        }
+        return values[policy.ordinal()];
+    }
+
+    ValueInterner.Table getInternTable() {
+        return internTable;
+    }
+
+    void setInternTable(ValueInterner.Table table) {
+        internTable = table;
+    }
+
+    long getStructureHash() {
+        long hash = structureHash;
+        if (hash == 0) {
+            hash = SchemaDiff.structureHash(this);
+            if (hash == 0) {
+                hash = 1;
+            }
+            structureHash = hash;
+        }
+        return hash;
+    }
+
+    Map<String, Object> getProps() {
+        return props;
     }
 
     public Object getProp(String prop) {
@@ -188,8 +267,11 @@ public class SchemaBuddy {
     }
 
     public SchemaBuddy getChild(String childName) {
-        Optional<SchemaBuddy> child = children.stream().filter(schemaWrapper -> schemaWrapper.name.equals(childName)).findFirst();
-        return child.orElseThrow(() -> new RuntimeException("Could not find:" + childName + " in " + children.toString()));
+        SchemaBuddy child = childrenByName.get(childName);
+        if (child == null) {
+            throw new RuntimeException("Could not find:" + childName + " in " + children.toString());
+        }
+        return child;
     }
 
     public List<SchemaBuddy> getChildrenRecursive(String childName) {
@@ -199,20 +281,35 @@ public class SchemaBuddy {
     }
 
     private void findChildren(String childName, SchemaBuddy startNode, List<SchemaBuddy> recursiveFoundChildren) {
-        recursiveFoundChildren.addAll(startNode.findChildren(childName));
-        for (SchemaBuddy child : startNode.children) {
-            findChildren(childName, child, recursiveFoundChildren);
-        }
+        TreeWalk.preOrder(startNode, 0, SchemaBuddy::getChildren, (node, depth) -> {
+            for (SchemaBuddy child : node.children) {
+                if (child.name.equals(childName)) {
+                    recursiveFoundChildren.add(child);
+                }
+            }
+        });
     }
 
     SchemaBuddy getChildReturnNullIdNotFound(String childName) {
-        Optional<SchemaBuddy> child = children.stream().filter(schemaWrapper -> schemaWrapper.name.equals(childName)).findFirst();
-        return child.orElse(null);
+        return childrenByName.get(childName);
     }
 
-    private void addChild(SchemaBuddy schemaBuddy) {
+    void addChild(SchemaBuddy schemaBuddy) {
         schemaBuddy.parent = this;
         children.add(schemaBuddy);
+        childrenByName.putIfAbsent(schemaBuddy.name, schemaBuddy);
+    }
+
+    /**
+     * Create a SchemaBuddy for a projection of this schema that only contains the given paths.
+     * Paths are given as for {@link DataElement#getPath()}, e.g. /root/person/name, where array
+     * elements share the path of the array. A path includes the whole subtree below it.
+     *
+     * Convert with {@link ConversionOptions#withIgnoreUnknownFields(boolean)} to skip data that
+     * is not part of the projection.
+     */
+    public SchemaBuddy project(Collection<String> paths) {
+        return parse(SchemaProjection.project(schema, PathFilter.of(paths)));
     }
 
     public String toString(boolean recursive) {
@@ -223,13 +320,14 @@ public class SchemaBuddy {
         StringBuilder sb = new StringBuilder();
 
         if (recursive) {
-            String itemString = (formatter != null)
-              ? formatter.format(this)
-              : String.format("%s: %s optional:%s nullable:%s", name, getType().getName(), optional, nullable);
-            sb.append(String.format("%s%s%n", getIntendString(), itemString));
-            for (SchemaBuddy child : children) {
-                sb.append(child.toString(true, formatter));
-            }
+            String lineSeparator = System.lineSeparator();
+            TreeWalk.preOrder(this, getDepth(), SchemaBuddy::getChildren, (node, depth) -> {
+                String itemString = (formatter != null)
+                  ? formatter.format(node)
+                  : String.format("%s: %s optional:%s nullable:%s", node.name, node.getType().getName(), node.optional, node.nullable);
+                TreeWalk.indent(sb, depth);
+                sb.append(itemString).append(lineSeparator);
+            });
         } else {
             sb.append(String.format("%s: %s optional:%s nullable:%s", name, getType().getName(), optional, nullable));
         }
@@ -238,16 +336,12 @@ public class SchemaBuddy {
     }
 
     private void traverse(SchemaBuddy schemaBuddy, Callback callback) {
-        if (schemaBuddy.isArrayType()) {
-            assert schemaBuddy.children.size() == 1;
-            traverse(schemaBuddy.children.get(0), callback);
-            return;
-        }
-
-        callback.onTraverse(schemaBuddy);
-        for (SchemaBuddy child : schemaBuddy.children) {
-            traverse(child, callback);
-        }
+        TreeWalk.preOrder(schemaBuddy, 0, SchemaBuddy::getChildren, (node, depth) -> {
+            // Array nodes are passed over, their single child is the element type
+            if (!node.isArrayType()) {
+                callback.onTraverse(node);
+            }
+        });
     }
 
     @Override
@@ -258,11 +352,12 @@ public class SchemaBuddy {
     String toZeppelinPrintSchemaString() {
         StringBuilder sb = new StringBuilder();
         // Make it print out like schema in zeppelin for easy compare
-        String typeName = getType().getName().equals("record") ? "struct" : getType().getName();
-        sb.append(String.format("%s%s: %s (nullable = true)%n", getIntendString(), name, typeName));
-        for (SchemaBuddy child : children) {
-            sb.append(child.toZeppelinPrintSchemaString());
-        }
+        String lineSeparator = System.lineSeparator();
+        TreeWalk.preOrder(this, getDepth(), SchemaBuddy::getChildren, (node, depth) -> {
+            String typeName = node.getType().getName().equals("record") ? "struct" : node.getType().getName();
+            TreeWalk.indent(sb, depth);
+            sb.append(node.name).append(": ").append(typeName).append(" (nullable = true)").append(lineSeparator);
+        });
         return sb.toString();
     }
 
@@ -271,30 +366,35 @@ public class SchemaBuddy {
     }
 
     String getIntendString() {
-        int size = getParents().size();
-        if (size == 0) return "";
-        if (size == 1) return " |-- ";
-        return String.join("", Collections.nCopies(size - 1, " |   ")) + " |-- ";
-    }
-
-    private List<String> getParents() {
-        SchemaBuddy currentParent = parent;
-        List<String> parentList = new ArrayList<>();
-        while (currentParent != null) {
-            parentList.add(currentParent.name);
-            currentParent = currentParent.parent;
+        StringBuilder sb = new StringBuilder();
+        TreeWalk.indent(sb, getDepth());
+        return sb.toString();
+    }
+
+    private int getDepth() {
+        int depth = 0;
+        for (SchemaBuddy current = parent; current != null; current = current.parent) {
+            depth++;
         }
-        return parentList;
+        return depth;
     }
 
     private static class SchemaParser {
 
+        private int nodeCount;
+
         private SchemaParser() {
         }
 
         private static SchemaBuddy parse(Schema schema) {
+            ConversionEvents.Config events = ConversionEvents.config();
+            long start = events != null ? System.nanoTime() : 0L;
             SchemaParser schemaParser = new SchemaParser();
-            return schemaParser.mapRecursiveSchemas(schema.getName(), schema, schema.getObjectProps(), null, 0, false, false);
+            SchemaBuddy schemaBuddy = schemaParser.mapRecursiveSchemas(schema.getName(), schema, schema.getObjectProps(), null, 0, false, false);
+            if (events != null) {
+                events.schemaParsed(schema.getName(), schemaParser.nodeCount, start);
+            }
+            return schemaBuddy;
         }
 
         private SchemaBuddy mapRecursiveSchemas(String name, Schema schema, Map<String, Object> props, SchemaBuddy schemaBuddy, int level, boolean optional, boolean nullable) {
@@ -307,11 +407,13 @@ public class SchemaBuddy {
                         throw new IllegalStateException("Parent SchemaBuddy can't be null when schemaType==ARRAY");
                     }
                     SchemaBuddy schemaBuddyChild = new SchemaBuddy(schema, name, props, optional);
+                    nodeCount++;
                     schemaBuddy.addChild(schemaBuddyChild);
                     mapRecursiveSchemas(name, schema.getElementType(), schema.getObjectProps(), schemaBuddyChild, level + 1, optional, nullable);
                     return schemaBuddyChild;
                 case RECORD:
                     SchemaBuddy schemaBuddyRecordChild = new SchemaBuddy(schema, name, props, optional);
+                    nodeCount++;
                     if (schemaBuddy != null) {
                         schemaBuddy.addChild(schemaBuddyRecordChild);
                     }
@@ -349,6 +451,7 @@ public class SchemaBuddy {
 
         private void processSimpleTypes(String name, Schema schema, Map<String, Object> props, SchemaBuddy schemaBuddy, boolean optional, boolean nullable) {
             SchemaBuddy schemaBuddyChild = new SchemaBuddy(schema, name, props, optional, nullable);
+            nodeCount++;
             schemaBuddy.addChild(schemaBuddyChild);
         }
     }
@@ -0,0 +1,286 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SchemaDiff lists the changes between two versions of a schema by path, and whether they are compatible, e.g.
+ * <pre>
+ *     SchemaDiff diff = SchemaDiff.compare(SchemaBuddy.parse(current), SchemaBuddy.parse(incoming));
+ *     if (diff.getCompatibility() == SchemaDiff.Compatibility.NONE) { ... }
+ * </pre>
+ * Paths are as for {@link DataElement#getPath()}, where array elements share the path of the array. A subtree
+ * that is added, removed or changes type is reported once at its root. Types include the full name of records,
+ * enums and fixed, and the value type of maps. Subtrees with the same name, type, optional, nullable and children
+ * have the same structure hash, which is computed once per {@link SchemaBuddy} and lets identical subtrees be
+ * skipped without visiting them.
+ *
+ * Compatibility follows Avro schema resolution: fields may only be added with a default for the new schema to read
+ * old data, and only be removed if they have a default for the old schema to read new data. Type changes must be
+ * promotions, like int to long, and a field becoming optional or nullable can only be read by the new schema.
+ */
+public class SchemaDiff {
+
+    public enum Compatibility {
+        /** Data written with either schema can be read with the other */
+        FULL,
+        /** Data written with the old schema can be read with the new schema */
+        BACKWARD,
+        /** Data written with the new schema can be read with the old schema */
+        FORWARD,
+        NONE
+    }
+
+    private final List<Change> changes = new ArrayList<>();
+    private boolean backward = true;
+    private boolean forward = true;
+
+    private SchemaDiff() {
+    }
+
+    public static SchemaDiff compare(SchemaBuddy from, SchemaBuddy to) {
+        SchemaDiff diff = new SchemaDiff();
+        diff.compare(from, to, "/" + to.getName());
+        return diff;
+    }
+
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    public boolean isIdentical() {
+        return changes.isEmpty();
+    }
+
+    public Compatibility getCompatibility() {
+        if (backward && forward) {
+            return Compatibility.FULL;
+        }
+        if (backward) {
+            return Compatibility.BACKWARD;
+        }
+        return forward ? Compatibility.FORWARD : Compatibility.NONE;
+    }
+
+    private void compare(SchemaBuddy from, SchemaBuddy to, String path) {
+        if (from.getStructureHash() == to.getStructureHash()) {
+            return;
+        }
+        String fromType = typeName(from.getSchema());
+        String toType = typeName(to.getSchema());
+        if (!fromType.equals(toType)) {
+            add(new Change(path, Change.Kind.TYPE_CHANGED, fromType, toType,
+                    canPromote(from.getSchema(), to.getSchema()), canPromote(to.getSchema(), from.getSchema())));
+            return;
+        }
+        if (from.isOptional() != to.isOptional()) {
+            add(new Change(path, Change.Kind.OPTIONAL_CHANGED, String.valueOf(from.isOptional()), String.valueOf(to.isOptional()),
+                    to.isOptional(), from.isOptional()));
+        }
+        if (from.isNullable() != to.isNullable()) {
+            add(new Change(path, Change.Kind.NULLABLE_CHANGED, String.valueOf(from.isNullable()), String.valueOf(to.isNullable()),
+                    to.isNullable(), from.isNullable()));
+        }
+        if (from.isArrayType()) {
+            compare(from.getArrayTypeSchema(), to.getArrayTypeSchema(), path);
+        } else if (from.isRecordType()) {
+            compareChildren(from, to, path);
+        }
+    }
+
+    private void compareChildren(SchemaBuddy from, SchemaBuddy to, String path) {
+        for (SchemaBuddy fromChild : from.getChildren()) {
+            String childPath = path + "/" + fromChild.getName();
+            SchemaBuddy toChild = to.getChildReturnNullIdNotFound(fromChild.getName());
+            if (toChild == null) {
+                add(new Change(childPath, Change.Kind.REMOVED, typeName(fromChild.getSchema()), null,
+                        true, hasDefault(from, fromChild)));
+            } else {
+                compare(fromChild, toChild, childPath);
+            }
+        }
+        for (SchemaBuddy toChild : to.getChildren()) {
+            if (from.getChildReturnNullIdNotFound(toChild.getName()) == null) {
+                add(new Change(path + "/" + toChild.getName(), Change.Kind.ADDED, null, typeName(toChild.getSchema()),
+                        hasDefault(to, toChild), true));
+            }
+        }
+    }
+
+    private void add(Change change) {
+        changes.add(change);
+        backward &= change.backwardCompatible;
+        forward &= change.forwardCompatible;
+    }
+
+    private static boolean hasDefault(SchemaBuddy record, SchemaBuddy field) {
+        Schema.Field schemaField = record.getSchema().getField(field.getName());
+        return schemaField != null && schemaField.defaultVal() != null;
+    }
+
+    /**
+     * Type of a node, with the full name of named types, as Avro resolves them by name.
+     */
+    static String typeName(Schema schema) {
+        switch (schema.getType()) {
+            case RECORD:
+                return "record " + schema.getFullName();
+            case ENUM:
+                return "enum " + schema.getFullName() + schema.getEnumSymbols();
+            case FIXED:
+                return "fixed " + schema.getFullName() + "(" + schema.getFixedSize() + ")";
+            case MAP:
+                return "map<" + valueTypeName(schema.getValueType(), new HashSet<>()) + ">";
+            default:
+                return schema.getType().getName();
+        }
+    }
+
+    // Map values have no SchemaBuddy nodes, so their whole structure is part of the type name
+    private static String valueTypeName(Schema schema, Set<String> records) {
+        switch (schema.getType()) {
+            case RECORD:
+                // a record containing itself is only expanded once
+                if (!records.add(schema.getFullName())) {
+                    return schema.getFullName();
+                }
+                StringBuilder sb = new StringBuilder(typeName(schema)).append('{');
+                for (Schema.Field field : schema.getFields()) {
+                    if (field.pos() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(field.name()).append(": ").append(valueTypeName(field.schema(), records));
+                }
+                records.remove(schema.getFullName());
+                return sb.append('}').toString();
+            case ARRAY:
+                return "array<" + valueTypeName(schema.getElementType(), records) + ">";
+            case MAP:
+                return "map<" + valueTypeName(schema.getValueType(), records) + ">";
+            case UNION:
+                List<String> types = new ArrayList<>();
+                for (Schema type : schema.getTypes()) {
+                    types.add(valueTypeName(type, records));
+                }
+                return types.toString();
+            default:
+                return typeName(schema);
+        }
+    }
+
+    // If data written with writer can be read with reader
+    private static boolean canPromote(Schema writer, Schema reader) {
+        switch (writer.getType()) {
+            case INT:
+                return reader.getType() == Schema.Type.LONG || reader.getType() == Schema.Type.FLOAT || reader.getType() == Schema.Type.DOUBLE;
+            case LONG:
+                return reader.getType() == Schema.Type.FLOAT || reader.getType() == Schema.Type.DOUBLE;
+            case FLOAT:
+                return reader.getType() == Schema.Type.DOUBLE;
+            case STRING:
+                return reader.getType() == Schema.Type.BYTES;
+            case BYTES:
+                return reader.getType() == Schema.Type.STRING;
+            case ENUM:
+                return reader.getType() == Schema.Type.ENUM && reader.getFullName().equals(writer.getFullName())
+                        && reader.getEnumSymbols().containsAll(writer.getEnumSymbols());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Hash of the name, type as in {@link #typeName(Schema)}, optional and nullable of a node and of its children.
+     */
+    static long structureHash(SchemaBuddy schemaBuddy) {
+        long hash = mix(0x9E3779B97F4A7C15L ^ schemaBuddy.getName().hashCode());
+        hash = mix(hash ^ typeName(schemaBuddy.getSchema()).hashCode());
+        hash = mix(hash ^ (schemaBuddy.isOptional() ? 1 : 0) ^ (schemaBuddy.isNullable() ? 2 : 0));
+        for (SchemaBuddy child : schemaBuddy.getChildren()) {
+            hash = mix(hash * 31 + child.getStructureHash());
+        }
+        return hash;
+    }
+
+    // Finalizer of MurmurHash3
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getCompatibility().toString());
+        for (Change change : changes) {
+            sb.append(String.format("%n")).append(change);
+        }
+        return sb.toString();
+    }
+
+    public static class Change {
+
+        public enum Kind {
+            ADDED, REMOVED, TYPE_CHANGED, OPTIONAL_CHANGED, NULLABLE_CHANGED
+        }
+
+        private final String path;
+        private final Kind kind;
+        private final String from;
+        private final String to;
+        private final boolean backwardCompatible;
+        private final boolean forwardCompatible;
+
+        private Change(String path, Kind kind, String from, String to, boolean backwardCompatible, boolean forwardCompatible) {
+            this.path = path;
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.backwardCompatible = backwardCompatible;
+            this.forwardCompatible = forwardCompatible;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return type, or optional or nullable, in the old schema, or null if the path was added
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        /**
+         * @return type, or optional or nullable, in the new schema, or null if the path was removed
+         */
+        public String getTo() {
+            return to;
+        }
+
+        public boolean isBackwardCompatible() {
+            return backwardCompatible;
+        }
+
+        public boolean isForwardCompatible() {
+            return forwardCompatible;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + path + ": " + from + " -> " + to;
+        }
+    }
+}
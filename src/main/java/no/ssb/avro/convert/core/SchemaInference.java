@@ -0,0 +1,248 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.JsonProperties;
+import org.apache.avro.Schema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collector;
+
+/**
+ * SchemaInference infers an Avro schema from sample {@link DataElement}s, for {@link SchemaBuddy#parse(Schema)} and
+ * {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}, e.g.
+ * <pre>
+ *     Schema schema = samples.parallelStream().collect(SchemaInference.collector());
+ * </pre>
+ * Elements with children become records, and elements repeated within the same parent become arrays. Fields missing
+ * in some samples, or without a value in some samples, become optional. Values become boolean if all are true or
+ * false, long if all are integers, double if all are numbers and string otherwise. Integers with leading zeros, like
+ * "007", are strings. Nested records are named after their field, prefixed with the names of their parents if
+ * needed to be unique. Names must be valid Avro names.
+ *
+ * Instances are not thread safe, but partial results can be inferred in parallel and merged with
+ * {@link #merge(SchemaInference)}.
+ */
+public class SchemaInference {
+
+    // Kinds of values, combined as bits
+    private static final int BOOLEAN = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 8;
+
+    private Node root;
+
+    /**
+     * A collector keeping fields in the order they are first seen, also for parallel streams.
+     */
+    public static Collector<DataElement, SchemaInference, Schema> collector() {
+        return Collector.of(SchemaInference::new, SchemaInference::add, SchemaInference::merge, SchemaInference::toSchema);
+    }
+
+    /**
+     * Add a sample. All samples must have the same root name.
+     */
+    public SchemaInference add(DataElement dataElement) {
+        if (root == null) {
+            root = new Node(dataElement.getName());
+        } else if (!root.name.equals(dataElement.getName())) {
+            throw new IllegalArgumentException("Expected root " + root.name + ", was " + dataElement.getName());
+        }
+        root.add(dataElement);
+        return this;
+    }
+
+    /**
+     * Add the samples of other to this. Fields first seen in other come after the fields of this.
+     */
+    public SchemaInference merge(SchemaInference other) {
+        if (other.root == null) {
+            return this;
+        }
+        if (root == null) {
+            root = new Node(other.root.name);
+        } else if (!root.name.equals(other.root.name)) {
+            throw new IllegalArgumentException("Expected root " + root.name + ", was " + other.root.name);
+        }
+        root.merge(other.root);
+        return this;
+    }
+
+    public long getSamples() {
+        return root != null ? root.occurrences : 0;
+    }
+
+    /**
+     * @return the schema of the samples added so far
+     * @throws IllegalStateException if no samples are added
+     */
+    public Schema toSchema() {
+        if (root == null) {
+            throw new IllegalStateException("No samples to infer a schema from");
+        }
+        return root.recordSchema(new HashSet<>(), null);
+    }
+
+    private static int valueKind(CharSequence value) {
+        int length = value.length();
+        if (length == 4 || length == 5) {
+            String text = value.toString();
+            if ("true".equalsIgnoreCase(text) || "false".equalsIgnoreCase(text)) {
+                return BOOLEAN;
+            }
+        }
+        int start = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (start == length) {
+            return STRING;
+        }
+        int digits = 0;
+        boolean point = false;
+        boolean exponent = false;
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c == '.' && !point && !exponent) {
+                point = true;
+            } else if ((c == 'e' || c == 'E') && !exponent && digits > 0 && i + 1 < length) {
+                exponent = true;
+                if (value.charAt(i + 1) == '-' || value.charAt(i + 1) == '+') {
+                    i++;
+                }
+            } else {
+                return STRING;
+            }
+        }
+        if (digits == 0 || !Character.isDigit(value.charAt(length - 1)) && value.charAt(length - 1) != '.') {
+            return STRING;
+        }
+        if (point || exponent) {
+            return DOUBLE;
+        }
+        if (value.charAt(start) == '0' && length - start > 1) {
+            return STRING;
+        }
+        if (length - start > 18) {
+            try {
+                Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                // too large for a long, most likely an identifier
+                return STRING;
+            }
+        }
+        return LONG;
+    }
+
+    private static class Node {
+        private final String name;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        // Number of times the element occurs
+        private long occurrences;
+        // Number of parent occurrences the element occurs in
+        private long presentIn;
+        // Highest number of times the element occurs in one parent occurrence
+        private long maxPerParent;
+        private long withChildren;
+        private long withoutValue;
+        private int valueKinds;
+
+        private Node(String name) {
+            this.name = name;
+        }
+
+        private void add(DataElement dataElement) {
+            occurrences++;
+            List<DataElement> elements = dataElement.getChildren();
+            if (!elements.isEmpty()) {
+                withChildren++;
+                Map<String, Integer> counts = new HashMap<>();
+                for (DataElement element : elements) {
+                    Node child = children.computeIfAbsent(element.getName(), Node::new);
+                    if (counts.merge(element.getName(), 1, Integer::sum) == 1) {
+                        child.presentIn++;
+                    }
+                    child.add(element);
+                }
+                for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                    Node child = children.get(count.getKey());
+                    child.maxPerParent = Math.max(child.maxPerParent, count.getValue());
+                }
+            } else if (dataElement.hasValue()) {
+                valueKinds |= valueKind(dataElement.getCharSequence());
+            } else {
+                withoutValue++;
+            }
+        }
+
+        private void merge(Node other) {
+            occurrences += other.occurrences;
+            presentIn += other.presentIn;
+            maxPerParent = Math.max(maxPerParent, other.maxPerParent);
+            withChildren += other.withChildren;
+            withoutValue += other.withoutValue;
+            valueKinds |= other.valueKinds;
+            for (Node otherChild : other.children.values()) {
+                children.computeIfAbsent(otherChild.name, Node::new).merge(otherChild);
+            }
+        }
+
+        private boolean isRecord() {
+            return withChildren > 0;
+        }
+
+        private Schema recordSchema(Set<String> recordNames, String parentRecordName) {
+            String recordName = name;
+            if (!recordNames.add(recordName)) {
+                recordName = parentRecordName + "_" + name;
+                for (int i = 2; !recordNames.add(recordName); i++) {
+                    recordName = parentRecordName + "_" + name + i;
+                }
+            }
+            List<Schema.Field> fields = new ArrayList<>();
+            for (Node child : children.values()) {
+                fields.add(child.field(occurrences, recordNames, recordName));
+            }
+            return Schema.createRecord(recordName, null, null, false, fields);
+        }
+
+        private Schema.Field field(long parentOccurrences, Set<String> recordNames, String parentRecordName) {
+            Schema type;
+            boolean array = maxPerParent > 1;
+            if (isRecord()) {
+                type = recordSchema(recordNames, parentRecordName);
+            } else if (array && withoutValue > 0) {
+                type = Schema.createUnion(Arrays.asList(valueSchema(), Schema.create(Schema.Type.NULL)));
+            } else {
+                type = valueSchema();
+            }
+            if (array) {
+                type = Schema.createArray(type);
+            }
+            boolean optional = presentIn < parentOccurrences || !array && !isRecord() && withoutValue > 0;
+            if (optional) {
+                return new Schema.Field(name, Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), type)), null, JsonProperties.NULL_VALUE);
+            }
+            return new Schema.Field(name, type, null, (Object) null);
+        }
+
+        private Schema valueSchema() {
+            switch (valueKinds) {
+                case BOOLEAN:
+                    return Schema.create(Schema.Type.BOOLEAN);
+                case LONG:
+                    return Schema.create(Schema.Type.LONG);
+                case DOUBLE:
+                case LONG | DOUBLE:
+                    return Schema.create(Schema.Type.DOUBLE);
+                default:
+                    return Schema.create(Schema.Type.STRING);
+            }
+        }
+    }
+}
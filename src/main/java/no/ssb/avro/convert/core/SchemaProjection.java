@@ -0,0 +1,82 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates a copy of a record schema that only keeps the fields on a given set of paths.
+ * See {@link SchemaBuddy#project(java.util.Collection)}
+ */
+class SchemaProjection {
+
+    private SchemaProjection() {
+    }
+
+    static Schema project(Schema schema, PathFilter pathFilter) {
+        if (schema.getType() != Schema.Type.RECORD) {
+            throw new IllegalStateException("Can only project schemas of type RECORD, was " + schema.getType());
+        }
+        if (pathFilter.getRootName() != null && !pathFilter.getRootName().equals(schema.getName())) {
+            throw new IllegalArgumentException("Paths do not start with root " + schema.getName());
+        }
+        return project(schema, pathFilter.root());
+    }
+
+    /**
+     * Copy of a record schema where the given required array fields default to an empty array, with extra fields
+     * appended. Used when records are converted without some of their arrays, which are filled in afterwards.
+     */
+    static Schema withEmptyArrayDefaults(Schema schema, Collection<String> arrayFields, List<Schema.Field> extraFields) {
+        List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            Object defaultValue = field.defaultVal();
+            if (defaultValue == null && arrayFields.contains(field.name()) && field.schema().getType() == Schema.Type.ARRAY) {
+                defaultValue = Collections.emptyList();
+            }
+            Schema.Field copy = new Schema.Field(field.name(), field.schema(), field.doc(), defaultValue, field.order());
+            field.getObjectProps().forEach(copy::addProp);
+            fields.add(copy);
+        }
+        fields.addAll(extraFields);
+        Schema record = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError(), fields);
+        schema.getObjectProps().forEach(record::addProp);
+        return record;
+    }
+
+    private static Schema project(Schema schema, PathFilter.Node node) {
+        if (node.isAll()) {
+            return schema;
+        }
+        switch (schema.getType()) {
+            case RECORD:
+                List<Schema.Field> fields = new ArrayList<>();
+                for (Schema.Field field : schema.getFields()) {
+                    PathFilter.Node child = node.getChildren().get(field.name());
+                    if (child != null) {
+                        Schema.Field projected = new Schema.Field(field.name(), project(field.schema(), child), field.doc(), field.defaultVal(), field.order());
+                        field.getObjectProps().forEach(projected::addProp);
+                        fields.add(projected);
+                    }
+                }
+                Schema record = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError(), fields);
+                schema.getObjectProps().forEach(record::addProp);
+                return record;
+            case ARRAY:
+                Schema array = Schema.createArray(project(schema.getElementType(), node));
+                schema.getObjectProps().forEach(array::addProp);
+                return array;
+            case UNION:
+                List<Schema> types = new ArrayList<>();
+                for (Schema type : schema.getTypes()) {
+                    types.add(project(type, node));
+                }
+                return Schema.createUnion(types);
+            default:
+                return schema;
+        }
+    }
+}
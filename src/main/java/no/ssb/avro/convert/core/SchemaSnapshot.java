@@ -0,0 +1,520 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.JsonProperties;
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * SchemaSnapshot stores parsed {@link SchemaBuddy} trees in a compact binary file, so short-lived jobs don't
+ * have to parse all their schemas on startup.
+ *
+ * The file is read with a memory-mapped buffer. Opening a snapshot only reads the index, and each schema is
+ * restored on first {@link #get(String)}. Restoring builds the Avro schemas and the SchemaBuddy nodes directly
+ * from the snapshot, without parsing JSON or walking the schema again. Ids and props of every node, including
+ * ids set with {@link SchemaBuddy#setId(String)} and generated ids, are the same as when the snapshot was written.
+ *
+ * File layout: magic, version, entry count, index of (full name, offset), then per entry a table of distinct
+ * props, a table of schemas where each schema only refers to schemas before it, and every node in depth-first
+ * order as name, schema index, optional and nullable flags, generated id, props index and child count.
+ */
+public class SchemaSnapshot {
+
+    private static final int MAGIC = 0x53425331; // SBS1
+    private static final int VERSION = 2;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte LIST = 6;
+    private static final byte MAP = 7;
+
+    private static final byte OPTIONAL = 1;
+    private static final byte NULLABLE = 2;
+
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> offsets;
+    private final Map<String, SchemaBuddy> restored = new ConcurrentHashMap<>();
+
+    private SchemaSnapshot(ByteBuffer buffer, Map<String, Integer> offsets) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Write a snapshot of the given schemas, keyed by the full name of the root record.
+     */
+    public static void write(Path file, Collection<SchemaBuddy> schemaBuddies) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (SchemaBuddy schemaBuddy : schemaBuddies) {
+            String name = schemaBuddy.getSchema().getFullName();
+            if (entries.put(name, toBytes(schemaBuddy)) != null) {
+                throw new IllegalArgumentException("Duplicate schema " + name);
+            }
+        }
+
+        int headerSize = 12;
+        for (String name : entries.keySet()) {
+            headerSize += 4 + name.getBytes(StandardCharsets.UTF_8).length + 4;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            int offset = headerSize;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(offset);
+                offset += entry.getValue().length;
+            }
+            for (byte[] entry : entries.values()) {
+                out.write(entry);
+            }
+        }
+    }
+
+    private static byte[] toBytes(SchemaBuddy schemaBuddy) throws IOException {
+        EntryWriter writer = new EntryWriter();
+        writer.writeNodes(schemaBuddy);
+        return writer.toBytes();
+    }
+
+    /**
+     * Open a snapshot. Only the index is read.
+     */
+    public static SchemaSnapshot open(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalStateException(file + " is not a schema snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported snapshot version " + version + " in " + file);
+        }
+        int count = buffer.getInt();
+        Map<String, Integer> offsets = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            offsets.put(readString(buffer), buffer.getInt());
+        }
+        return new SchemaSnapshot(buffer, offsets);
+    }
+
+    /**
+     * @return full names of all schemas in the snapshot
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(offsets.keySet());
+    }
+
+    /**
+     * @return the schema with the given full name, or null if it's not in the snapshot
+     */
+    public SchemaBuddy get(String fullName) {
+        Integer offset = offsets.get(fullName);
+        if (offset == null) {
+            return null;
+        }
+        return restored.computeIfAbsent(fullName, name -> restore(offset));
+    }
+
+    private SchemaBuddy restore(int offset) {
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(offset);
+
+        List<Map<String, Object>> props = new ArrayList<>();
+        int propsCount = entry.getInt();
+        for (int i = 0; i < propsCount; i++) {
+            props.add(readProps(entry));
+        }
+        Schema[] schemas = new Schema[entry.getInt()];
+        for (int i = 0; i < schemas.length; i++) {
+            schemas[i] = readSchema(entry, schemas, props);
+        }
+
+        // Nodes are in depth-first order, each followed by its children
+        SchemaBuddy root = null;
+        SchemaBuddy[] parents = new SchemaBuddy[16];
+        int[] remainingChildren = new int[16];
+        int depth = 0;
+        int nodeCount = entry.getInt();
+        for (int i = 0; i < nodeCount; i++) {
+            String name = readString(entry);
+            Schema schema = schemas[entry.getInt()];
+            byte flags = entry.get();
+            String generatedId = readString(entry);
+            Map<String, Object> nodeProps = new LinkedHashMap<>(props.get(entry.getInt()));
+            int childCount = entry.getInt();
+            SchemaBuddy node = new SchemaBuddy(schema, name, nodeProps, (flags & OPTIONAL) != 0, (flags & NULLABLE) != 0, generatedId);
+            if (depth == 0) {
+                if (root != null) {
+                    throw new IllegalStateException("Snapshot of " + root.getSchema().getFullName() + " has more than one root node");
+                }
+                root = node;
+            } else {
+                parents[depth - 1].addChild(node);
+                remainingChildren[depth - 1]--;
+            }
+            if (childCount > 0) {
+                if (depth == parents.length) {
+                    parents = Arrays.copyOf(parents, depth * 2);
+                    remainingChildren = Arrays.copyOf(remainingChildren, depth * 2);
+                }
+                parents[depth] = node;
+                remainingChildren[depth] = childCount;
+                depth++;
+            }
+            while (depth > 0 && remainingChildren[depth - 1] == 0) {
+                depth--;
+            }
+        }
+        return root;
+    }
+
+    private static Schema readSchema(ByteBuffer entry, Schema[] schemas, List<Map<String, Object>> props) {
+        Schema.Type type = Schema.Type.values()[entry.get()];
+        Schema schema;
+        switch (type) {
+            case RECORD:
+                schema = Schema.createRecord(readString(entry), readString(entry), readString(entry), entry.get() != 0);
+                readAliases(entry, schema::addAlias);
+                int fieldCount = entry.getInt();
+                List<Schema.Field> fields = new ArrayList<>(fieldCount);
+                for (int i = 0; i < fieldCount; i++) {
+                    String name = readString(entry);
+                    Schema fieldSchema = schemas[entry.getInt()];
+                    String doc = readString(entry);
+                    Object defaultValue = entry.get() != 0 ? readValue(entry) : null;
+                    Schema.Field.Order order = Schema.Field.Order.values()[entry.get()];
+                    Schema.Field field = new Schema.Field(name, fieldSchema, doc, defaultValue, order);
+                    readAliases(entry, field::addAlias);
+                    props.get(entry.getInt()).forEach(field::addProp);
+                    fields.add(field);
+                }
+                schema.setFields(fields);
+                break;
+            case ENUM:
+                schema = Schema.createEnum(readString(entry), readString(entry), readString(entry), readStrings(entry));
+                readAliases(entry, schema::addAlias);
+                break;
+            case FIXED:
+                schema = Schema.createFixed(readString(entry), readString(entry), readString(entry), entry.getInt());
+                readAliases(entry, schema::addAlias);
+                break;
+            case ARRAY:
+                schema = Schema.createArray(schemas[entry.getInt()]);
+                break;
+            case MAP:
+                schema = Schema.createMap(schemas[entry.getInt()]);
+                break;
+            case UNION:
+                int typeCount = entry.getInt();
+                List<Schema> types = new ArrayList<>(typeCount);
+                for (int i = 0; i < typeCount; i++) {
+                    types.add(schemas[entry.getInt()]);
+                }
+                // Unions can't have props
+                return Schema.createUnion(types);
+            default:
+                schema = Schema.create(type);
+        }
+        props.get(entry.getInt()).forEach(schema::addProp);
+        LogicalType logicalType = LogicalTypes.fromSchemaIgnoreInvalid(schema);
+        if (logicalType != null) {
+            logicalType.addToSchema(schema);
+        }
+        return schema;
+    }
+
+    private static void readAliases(ByteBuffer entry, Consumer<String> addAlias) {
+        readStrings(entry).forEach(addAlias);
+    }
+
+    private static List<String> readStrings(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(readString(buffer));
+        }
+        return strings;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readProps(ByteBuffer buffer) {
+        return (Map<String, Object>) readValue(buffer);
+    }
+
+    /**
+     * Writes one snapshot entry: a table of distinct props, a table of the schemas of all nodes with the schemas
+     * they refer to written first, and the nodes in depth-first order.
+     */
+    private static class EntryWriter {
+        private final Map<Map<String, Object>, Integer> propsIndexes = new LinkedHashMap<>();
+        private final Map<Schema, Integer> schemaIndexes = new IdentityHashMap<>();
+        private final ByteArrayOutputStream schemaBytes = new ByteArrayOutputStream();
+        private final DataOutputStream schemas = new DataOutputStream(schemaBytes);
+        private final ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        private final DataOutputStream nodes = new DataOutputStream(nodeBytes);
+        private int nodeCount;
+
+        void writeNodes(SchemaBuddy root) throws IOException {
+            try {
+                TreeWalk.preOrder(root, 0, SchemaBuddy::getChildren, (node, depth) -> {
+                    try {
+                        writeNode(node);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void writeNode(SchemaBuddy node) throws IOException {
+            int schemaIndex = schemaIndex(node.getSchema());
+            writeString(nodes, node.getName());
+            nodes.writeInt(schemaIndex);
+            nodes.writeByte((node.isOptional() ? OPTIONAL : 0) | (node.isNullable() ? NULLABLE : 0));
+            writeString(nodes, node.peekGeneratedId());
+            nodes.writeInt(propsIndex(node.getProps()));
+            nodes.writeInt(node.getChildren().size());
+            nodeCount++;
+        }
+
+        private int propsIndex(Map<String, Object> props) {
+            Integer index = propsIndexes.get(props);
+            if (index == null) {
+                index = propsIndexes.size();
+                propsIndexes.put(new LinkedHashMap<>(props), index);
+            }
+            return index;
+        }
+
+        private int schemaIndex(Schema schema) throws IOException {
+            Integer index = schemaIndexes.get(schema);
+            if (index != null) {
+                return index;
+            }
+            switch (schema.getType()) {
+                case RECORD:
+                    List<Integer> fieldSchemas = new ArrayList<>();
+                    for (Schema.Field field : schema.getFields()) {
+                        fieldSchemas.add(schemaIndex(field.schema()));
+                    }
+                    schemas.writeByte(schema.getType().ordinal());
+                    writeString(schemas, schema.getName());
+                    writeString(schemas, schema.getDoc());
+                    writeString(schemas, schema.getNamespace());
+                    schemas.writeBoolean(schema.isError());
+                    writeStrings(schemas, schema.getAliases());
+                    schemas.writeInt(fieldSchemas.size());
+                    for (Schema.Field field : schema.getFields()) {
+                        writeString(schemas, field.name());
+                        schemas.writeInt(fieldSchemas.get(field.pos()));
+                        writeString(schemas, field.doc());
+                        Object defaultValue = field.defaultVal();
+                        schemas.writeBoolean(defaultValue != null);
+                        if (defaultValue != null) {
+                            writeValue(schemas, defaultValue);
+                        }
+                        schemas.writeByte(field.order().ordinal());
+                        writeStrings(schemas, field.aliases());
+                        schemas.writeInt(propsIndex(field.getObjectProps()));
+                    }
+                    break;
+                case ENUM:
+                    schemas.writeByte(schema.getType().ordinal());
+                    writeString(schemas, schema.getName());
+                    writeString(schemas, schema.getDoc());
+                    writeString(schemas, schema.getNamespace());
+                    writeStrings(schemas, schema.getEnumSymbols());
+                    writeStrings(schemas, schema.getAliases());
+                    break;
+                case FIXED:
+                    schemas.writeByte(schema.getType().ordinal());
+                    writeString(schemas, schema.getName());
+                    writeString(schemas, schema.getDoc());
+                    writeString(schemas, schema.getNamespace());
+                    schemas.writeInt(schema.getFixedSize());
+                    writeStrings(schemas, schema.getAliases());
+                    break;
+                case ARRAY:
+                    int elementIndex = schemaIndex(schema.getElementType());
+                    schemas.writeByte(schema.getType().ordinal());
+                    schemas.writeInt(elementIndex);
+                    break;
+                case MAP:
+                    int valueIndex = schemaIndex(schema.getValueType());
+                    schemas.writeByte(schema.getType().ordinal());
+                    schemas.writeInt(valueIndex);
+                    break;
+                case UNION:
+                    List<Integer> types = new ArrayList<>();
+                    for (Schema type : schema.getTypes()) {
+                        types.add(schemaIndex(type));
+                    }
+                    schemas.writeByte(schema.getType().ordinal());
+                    schemas.writeInt(types.size());
+                    for (int type : types) {
+                        schemas.writeInt(type);
+                    }
+                    break;
+                default:
+                    schemas.writeByte(schema.getType().ordinal());
+            }
+            if (schema.getType() != Schema.Type.UNION) {
+                schemas.writeInt(propsIndex(schema.getObjectProps()));
+            }
+            index = schemaIndexes.size();
+            schemaIndexes.put(schema, index);
+            return index;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(propsIndexes.size());
+                for (Map<String, Object> props : propsIndexes.keySet()) {
+                    writeValue(out, props);
+                }
+                out.writeInt(schemaIndexes.size());
+                out.write(schemaBytes.toByteArray());
+                out.writeInt(nodeCount);
+                out.write(nodeBytes.toByteArray());
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null || value == JsonProperties.NULL_VALUE) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            // Float defaults as written in the schema, e.g. 0.1 rather than the double closest to the float 0.1
+            out.writeByte(DOUBLE);
+            out.writeDouble(Double.parseDouble(value.toString()));
+        } else if (value instanceof byte[]) {
+            // Bytes and fixed defaults are strings of ISO-8859-1 characters in the schema
+            out.writeByte(STRING);
+            writeString(out, new String((byte[]) value, StandardCharsets.ISO_8859_1));
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Collection) {
+            out.writeByte(LIST);
+            out.writeInt(((Collection<?>) value).size());
+            for (Object item : (Collection<?>) value) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            out.writeInt(((Map<?, ?>) value).size());
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case NULL:
+                return JsonProperties.NULL_VALUE;
+            case STRING:
+                return readString(buffer);
+            case INT:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case LIST:
+                int size = buffer.getInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(buffer));
+                }
+                return list;
+            case MAP:
+                int entries = buffer.getInt();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    map.put(readString(buffer), readValue(buffer));
+                }
+                return map;
+            default:
+                throw new IllegalStateException("Unknown value type " + type + " in snapshot");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * SchemaStore resolves 64-bit schema fingerprints, as sent by producers, to parsed {@link SchemaBuddy} trees.
+ * Fingerprints are the Avro CRC-64 of the parsing canonical form, see {@link #fingerprint(Schema)}.
+ *
+ * The store is backed by a directory of .avsc files. An unknown fingerprint is looked up as the file named by the
+ * fingerprint in hex, e.g. 0123456789abcdef.avsc as written by {@link #register(Schema)}. Fingerprints that are not
+ * found are remembered for 10 seconds, so a stream of unknown fingerprints doesn't cost a file lookup each.
+ * Files with other names are parsed when the store is created and on {@link #refresh()}, the directory is not
+ * listed otherwise.
+ *
+ * At most maxParsedSchemas {@link SchemaBuddy} trees are kept in memory, evicting the least recently used.
+ * Looking up a cached fingerprint is a single concurrent map read and never takes a lock.
+ */
+public class SchemaStore {
+
+    private static final long MISS_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final String SUFFIX = ".avsc";
+    private static final Pattern FINGERPRINT_FILE = Pattern.compile("[0-9a-f]{16}\\.avsc");
+    // Misses are forgotten when there are more, so a stream of random fingerprints can't grow the store
+    private static final int MAX_MISSES = 10_000;
+
+    private final Path directory;
+    private final int maxParsedSchemas;
+    private final Map<Long, Entry> parsed = new ConcurrentHashMap<>();
+    private final Map<Long, Schema> schemas = new ConcurrentHashMap<>();
+    // Time in nanos of the last lookup of fingerprints that were not found
+    private final Map<Long, Long> misses = new ConcurrentHashMap<>();
+    private final Set<Path> scannedFiles = new HashSet<>();
+
+    public SchemaStore(Path directory, int maxParsedSchemas) {
+        if (maxParsedSchemas < 1) {
+            throw new IllegalArgumentException("maxParsedSchemas must be positive, was " + maxParsedSchemas);
+        }
+        this.directory = directory;
+        this.maxParsedSchemas = maxParsedSchemas;
+        scan();
+    }
+
+    public static long fingerprint(Schema schema) {
+        return SchemaNormalization.parsingFingerprint64(schema);
+    }
+
+    /**
+     * @return the parsed schema with the given fingerprint, or null if no such schema is in the directory
+     */
+    public SchemaBuddy get(long fingerprint) {
+        Entry entry = parsed.get(fingerprint);
+        if (entry != null) {
+            entry.lastAccess = System.nanoTime();
+            return entry.schemaBuddy;
+        }
+        Schema schema = getSchema(fingerprint);
+        return schema != null ? load(fingerprint, schema) : null;
+    }
+
+    /**
+     * @return the schema with the given fingerprint, or null if no such schema is in the directory
+     */
+    public Schema getSchema(long fingerprint) {
+        Schema schema = schemas.get(fingerprint);
+        if (schema != null) {
+            return schema;
+        }
+        Long missed = misses.get(fingerprint);
+        if (missed != null && System.nanoTime() - missed < MISS_TTL_NANOS) {
+            return null;
+        }
+        schema = read(fingerprint);
+        if (schema == null) {
+            if (misses.size() >= MAX_MISSES) {
+                misses.clear();
+            }
+            misses.put(fingerprint, System.nanoTime());
+            return null;
+        }
+        misses.remove(fingerprint);
+        Schema existing = schemas.putIfAbsent(fingerprint, schema);
+        return existing != null ? existing : schema;
+    }
+
+    /**
+     * Write the schema to the directory, unless it's already there.
+     *
+     * @return the fingerprint of the schema
+     */
+    public synchronized long register(Schema schema) throws IOException {
+        long fingerprint = fingerprint(schema);
+        misses.remove(fingerprint);
+        if (getSchema(fingerprint) == null) {
+            write(file(fingerprint), schema.toString(true).getBytes(StandardCharsets.UTF_8));
+            schemas.put(fingerprint, schema);
+        }
+        return fingerprint;
+    }
+
+    // Written to a temporary file and moved, so other stores never parse a partly written or truncated schema
+    private void write(Path file, byte[] content) throws IOException {
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(content);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Parse files added to the directory since the store was created or last refreshed, and look up fingerprints
+     * that were not found again.
+     */
+    public void refresh() {
+        misses.clear();
+        scan();
+    }
+
+    private Path file(long fingerprint) {
+        return directory.resolve(String.format("%016x%s", fingerprint, SUFFIX));
+    }
+
+    // The schema in the file named by fingerprint, or null if there is no such file
+    private Schema read(long fingerprint) {
+        Path file = file(fingerprint);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Schema schema;
+        try {
+            schema = new Schema.Parser().parse(file.toFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read schema from " + file, e);
+        }
+        if (fingerprint(schema) != fingerprint) {
+            throw new IllegalStateException("Schema in " + file + " has fingerprint " + String.format("%016x", fingerprint(schema)));
+        }
+        return schema;
+    }
+
+    private synchronized SchemaBuddy load(long fingerprint, Schema schema) {
+        Entry entry = parsed.get(fingerprint);
+        if (entry != null) {
+            return entry.schemaBuddy;
+        }
+        if (parsed.size() >= maxParsedSchemas) {
+            evictLeastRecentlyUsed();
+        }
+        entry = new Entry(SchemaBuddy.parse(schema));
+        entry.lastAccess = System.nanoTime();
+        parsed.put(fingerprint, entry);
+        return entry.schemaBuddy;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Long oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<Long, Entry> candidate : parsed.entrySet()) {
+            if (candidate.getValue().lastAccess < oldestAccess) {
+                oldest = candidate.getKey();
+                oldestAccess = candidate.getValue().lastAccess;
+            }
+        }
+        if (oldest != null) {
+            parsed.remove(oldest);
+        }
+    }
+
+    // Parse schemas in files that are new since the last scan, files named by fingerprint are read when looked up
+    private synchronized void scan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (!FINGERPRINT_FILE.matcher(file.getFileName().toString()).matches() && scannedFiles.add(file)) {
+                    Schema schema = new Schema.Parser().parse(file.toFile());
+                    schemas.putIfAbsent(fingerprint(schema), schema);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read schemas from " + directory, e);
+        }
+    }
+
+    private static class Entry {
+        private final SchemaBuddy schemaBuddy;
+        // Recency for eviction, written without locking on reads
+        private volatile long lastAccess;
+
+        private Entry(SchemaBuddy schemaBuddy) {
+            this.schemaBuddy = schemaBuddy;
+        }
+    }
+}
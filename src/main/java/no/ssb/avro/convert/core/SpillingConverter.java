@@ -0,0 +1,365 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SpillingConverter converts records and encodes them as Avro binary within a memory budget, so outlier documents
+ * much larger than normal don't need a heap sized for the worst case.
+ *
+ * Arrays of records in the root record are converted one element at a time. The approximate size of converted
+ * elements held in memory is tracked, and when it is over budget the elements are encoded to a temp file and
+ * released. When the record is encoded, spilled elements are copied from the temp file into the output as is.
+ * Temp files are deleted when the record is written. Other fields are converted as by
+ * {@link SchemaAwareElement#toRecord(DataElement, SchemaBuddy, ConversionOptions)}.
+ */
+public class SpillingConverter {
+
+    private static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    private final SchemaBuddy schemaBuddy;
+    private final ConversionOptions options;
+    private final long memoryBudget;
+    private final Path tempDirectory;
+    // Arrays of records in the root record, by field name
+    private final Map<String, SchemaBuddy> arrays = new LinkedHashMap<>();
+    private final SchemaBuddy shellSchemaBuddy;
+    private final SpillAwareWriter writer;
+    private final LongAdder spilledElements;
+
+    private SpillingConverter(SchemaBuddy schemaBuddy, ConversionOptions options, long memoryBudget, Path tempDirectory, SpillingConverter other) {
+        this.schemaBuddy = schemaBuddy;
+        this.options = options;
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+        if (other != null) {
+            this.arrays.putAll(other.arrays);
+            this.shellSchemaBuddy = other.shellSchemaBuddy;
+            this.writer = other.writer;
+            this.spilledElements = other.spilledElements;
+            return;
+        }
+        for (SchemaBuddy child : schemaBuddy.getChildren()) {
+            if (child.isArrayType() && child.getArrayTypeSchema().isRecordType()) {
+                arrays.put(child.getName(), child.getArrayTypeSchema());
+            }
+        }
+        this.shellSchemaBuddy = SchemaBuddy.parse(SchemaProjection.withEmptyArrayDefaults(schemaBuddy.getSchema(), arrays.keySet(), Collections.emptyList()));
+        this.writer = new SpillAwareWriter(schemaBuddy.getSchema());
+        this.spilledElements = new LongAdder();
+    }
+
+    public static SpillingConverter forSchema(SchemaBuddy schemaBuddy, ConversionOptions options) {
+        if (!schemaBuddy.isRoot()) {
+            throw new IllegalArgumentException("Can only convert root records, was " + schemaBuddy.getPath());
+        }
+        return new SpillingConverter(schemaBuddy, options, DEFAULT_MEMORY_BUDGET, null, null);
+    }
+
+    /**
+     * Approximate bytes of converted array elements kept in memory per record. Default is 64 MB.
+     */
+    public SpillingConverter withMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget can't be negative, was " + memoryBudget);
+        }
+        return new SpillingConverter(schemaBuddy, options, memoryBudget, tempDirectory, this);
+    }
+
+    /**
+     * Directory for temp files. Default is the system temp directory.
+     */
+    public SpillingConverter withTempDirectory(Path tempDirectory) {
+        return new SpillingConverter(schemaBuddy, options, memoryBudget, tempDirectory, this);
+    }
+
+    /**
+     * @return number of array elements spilled to disk since the converter was created
+     */
+    public long getSpilledElements() {
+        return spilledElements.sum();
+    }
+
+    /**
+     * Convert dataElement and write it to out as Avro binary.
+     *
+     * @return false if the record was dropped due to {@link ErrorPolicy#DROP_RECORD}, then nothing is written
+     */
+    public boolean write(DataElement dataElement, OutputStream out) throws IOException {
+        ConversionEvents.Config events = ConversionEvents.config();
+        long start = events != null ? System.nanoTime() : 0L;
+        List<DataElement> others = new ArrayList<>();
+        Map<String, List<DataElement>> elementsByArray = new LinkedHashMap<>();
+        for (DataElement child : dataElement.getChildren()) {
+            if (arrays.containsKey(child.getName()) && !child.hasValue()) {
+                elementsByArray.computeIfAbsent(child.getName(), name -> new ArrayList<>()).add(child);
+            } else {
+                others.add(child);
+            }
+        }
+
+        Map<String, SpilledArray> converted = new HashMap<>();
+        try {
+            long inMemory = 0;
+            for (Map.Entry<String, List<DataElement>> entry : elementsByArray.entrySet()) {
+                SchemaBuddy elementSchema = arrays.get(entry.getKey());
+                SpilledArray array = new SpilledArray(elementSchema.getSchema());
+                converted.put(entry.getKey(), array);
+                for (DataElement element : entry.getValue()) {
+                    GenericRecord record = SchemaAwareElement.convert(element, elementSchema, options);
+                    if (record == null) {
+                        return false;
+                    }
+                    array.add(record);
+                    inMemory += estimateBytes(element);
+                    if (inMemory > memoryBudget) {
+                        for (SpilledArray spilling : converted.values()) {
+                            spilling.spill();
+                        }
+                        inMemory = 0;
+                    }
+                }
+            }
+
+            GenericRecord record = SchemaAwareElement.convert(dataElement.withChildren(others), shellSchemaBuddy, options);
+            if (record == null) {
+                return false;
+            }
+            converted.forEach(record::put);
+            CountingOutputStream counting = new CountingOutputStream(out);
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(counting, null);
+            writer.write(record, encoder);
+            encoder.flush();
+            if (events != null) {
+                events.recordConverted(schemaBuddy.getName(), dataElement::countNodes, counting.count, start);
+            }
+            return true;
+        } finally {
+            for (SpilledArray array : converted.values()) {
+                array.delete();
+            }
+        }
+    }
+
+    // Approximate heap used by the record converted from dataElement
+    static long estimateBytes(DataElement dataElement) {
+        long[] bytes = new long[1];
+        TreeWalk.preOrder(dataElement, 0, DataElement::getChildren, (element, depth) -> {
+            bytes[0] += 48;
+            CharSequence value = element.getCharSequence();
+            if (value instanceof Utf8) {
+                bytes[0] += 40 + ((Utf8) value).getByteLength();
+            } else if (value != null) {
+                bytes[0] += 40 + 2L * value.length();
+            }
+        });
+        return bytes[0];
+    }
+
+    // Counts the bytes of the encoded record
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Array of records where a prefix of the elements may be spilled to a temp file,
+     * each element written as its length followed by its Avro binary encoding.
+     */
+    private class SpilledArray extends AbstractCollection<GenericRecord> {
+        private final Schema elementSchema;
+        private final List<GenericRecord> inMemory = new ArrayList<>();
+        private Path file;
+        private DataOutputStream fileOut;
+        private int spilled;
+
+        private SpilledArray(Schema elementSchema) {
+            this.elementSchema = elementSchema;
+        }
+
+        @Override
+        public boolean add(GenericRecord record) {
+            return inMemory.add(record);
+        }
+
+        private void spill() throws IOException {
+            if (inMemory.isEmpty()) {
+                return;
+            }
+            if (fileOut == null) {
+                file = tempDirectory != null
+                        ? Files.createTempFile(tempDirectory, "spill-", ".avro")
+                        : Files.createTempFile("spill-", ".avro");
+                fileOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            }
+            GenericDatumWriter<GenericRecord> elementWriter = new GenericDatumWriter<>(elementSchema);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BinaryEncoder encoder = null;
+            for (GenericRecord record : inMemory) {
+                bytes.reset();
+                encoder = EncoderFactory.get().binaryEncoder(bytes, encoder);
+                elementWriter.write(record, encoder);
+                encoder.flush();
+                fileOut.writeInt(bytes.size());
+                bytes.writeTo(fileOut);
+            }
+            spilled += inMemory.size();
+            spilledElements.add(inMemory.size());
+            inMemory.clear();
+        }
+
+        private DataInputStream openSpilled() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+                fileOut = null;
+            }
+            return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        }
+
+        private void writeTo(Encoder out, SpillAwareWriter writer) throws IOException {
+            out.writeArrayStart();
+            out.setItemCount(size());
+            if (spilled > 0) {
+                try (DataInputStream in = openSpilled()) {
+                    for (int i = 0; i < spilled; i++) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        out.startItem();
+                        out.writeFixed(bytes);
+                    }
+                }
+            }
+            for (GenericRecord record : inMemory) {
+                out.startItem();
+                writer.writeElement(elementSchema, record, out);
+            }
+            out.writeArrayEnd();
+        }
+
+        private void delete() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+                fileOut = null;
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        @Override
+        public int size() {
+            return spilled + inMemory.size();
+        }
+
+        // Reads spilled elements back, only used if the array is accessed outside of encoding
+        @Override
+        public Iterator<GenericRecord> iterator() {
+            if (spilled == 0) {
+                return Collections.unmodifiableList(inMemory).iterator();
+            }
+            DataInputStream in;
+            try {
+                in = openSpilled();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(elementSchema);
+            return new Iterator<GenericRecord>() {
+                private int next;
+                private BinaryDecoder decoder;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                @Override
+                public GenericRecord next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if (next >= spilled) {
+                        return inMemory.get(next++ - spilled);
+                    }
+                    try {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        decoder = DecoderFactory.get().binaryDecoder(bytes, decoder);
+                        GenericRecord record = reader.read(null, decoder);
+                        if (++next == spilled) {
+                            in.close();
+                        }
+                        return record;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    private static class SpillAwareWriter extends GenericDatumWriter<GenericRecord> {
+
+        private SpillAwareWriter(Schema schema) {
+            super(schema);
+        }
+
+        @Override
+        protected void writeArray(Schema schema, Object datum, Encoder out) throws IOException {
+            if (datum instanceof SpillingConverter.SpilledArray) {
+                ((SpillingConverter.SpilledArray) datum).writeTo(out, this);
+            } else {
+                super.writeArray(schema, datum, out);
+            }
+        }
+
+        private void writeElement(Schema schema, Object datum, Encoder out) throws IOException {
+            write(schema, datum, out);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package no.ssb.avro.convert.core;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Walks a tree with an explicit stack, so deep trees can't overflow the call stack.
+ * Used by traversal, counting, paths and toString of {@link DataElement}, {@link SchemaBuddy} and {@link SchemaAwareElement}.
+ */
+class TreeWalk {
+
+    interface Visitor<T> {
+        void visit(T node, int depth);
+    }
+
+    private TreeWalk() {
+    }
+
+    /**
+     * Visit root and then the subtree of each child in order, with the depth of root given as rootDepth.
+     */
+    static <T> void preOrder(T root, int rootDepth, Function<T, List<T>> children, Visitor<T> visitor) {
+        Deque<T> nodes = new ArrayDeque<>();
+        int[] depths = new int[16];
+        nodes.push(root);
+        depths[0] = rootDepth;
+        while (!nodes.isEmpty()) {
+            T node = nodes.pop();
+            int depth = depths[nodes.size()];
+            visitor.visit(node, depth);
+            List<T> nodeChildren = children.apply(node);
+            for (int i = nodeChildren.size() - 1; i >= 0; i--) {
+                if (nodes.size() == depths.length) {
+                    depths = Arrays.copyOf(depths, depths.length * 2);
+                }
+                depths[nodes.size()] = depth + 1;
+                nodes.push(nodeChildren.get(i));
+            }
+        }
+    }
+
+    // Indentation of a node at depth in toString(true)
+    static void indent(StringBuilder sb, int depth) {
+        for (int i = 1; i < depth; i++) {
+            sb.append(" |   ");
+        }
+        if (depth > 0) {
+            sb.append(" |-- ");
+        }
+    }
+
+    /**
+     * Path of node as /root/.../name. Filled from the end into one array, as paths are built for every intercepted
+     * value and every conversion error.
+     */
+    static <T> String path(T node, Function<T, T> parent, Function<T, String> name) {
+        int length = 0;
+        for (T current = node; current != null; current = parent.apply(current)) {
+            length += name.apply(current).length() + 1;
+        }
+        char[] path = new char[length];
+        for (T current = node; current != null; current = parent.apply(current)) {
+            String currentName = name.apply(current);
+            length -= currentName.length();
+            currentName.getChars(0, currentName.length(), path, length);
+            path[--length] = '/';
+        }
+        return new String(path);
+    }
+
+    static <T> int count(T root, Function<T, List<T>> children) {
+        int[] count = new int[1];
+        preOrder(root, 0, children, (node, depth) -> count[0]++);
+        return count[0];
+    }
+}
@@ -0,0 +1,67 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * Parses values that may be {@link Utf8}. Integers and booleans are parsed straight from the UTF-8 bytes,
+ * other values and anything unusual, like a leading '+', are decoded and parsed as strings.
+ */
+final class Utf8Values {
+
+    private Utf8Values() {
+    }
+
+    static long parseLong(CharSequence value) {
+        if (value instanceof Utf8) {
+            Utf8 utf8 = (Utf8) value;
+            byte[] bytes = utf8.getBytes();
+            int length = utf8.getByteLength();
+            boolean negative = length > 0 && bytes[0] == '-';
+            int start = negative ? 1 : 0;
+            // 18 digits never overflow
+            if (length > start && length - start <= 18) {
+                long result = 0;
+                int i = start;
+                for (; i < length; i++) {
+                    int digit = bytes[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+                    result = result * 10 + digit;
+                }
+                if (i == length) {
+                    return negative ? -result : result;
+                }
+            }
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    static int parseInt(CharSequence value) {
+        if (value instanceof Utf8 && ((Utf8) value).getByteLength() <= 10) {
+            long result = parseLong(value);
+            if (result >= Integer.MIN_VALUE && result <= Integer.MAX_VALUE) {
+                return (int) result;
+            }
+        }
+        return Integer.parseInt(value.toString());
+    }
+
+    static double parseDouble(CharSequence value) {
+        return Double.parseDouble(value.toString());
+    }
+
+    static float parseFloat(CharSequence value) {
+        return Float.parseFloat(value.toString());
+    }
+
+    static boolean parseBoolean(CharSequence value) {
+        if (value instanceof Utf8) {
+            Utf8 utf8 = (Utf8) value;
+            byte[] bytes = utf8.getBytes();
+            return utf8.getByteLength() == 4
+                    && (bytes[0] | 0x20) == 't' && (bytes[1] | 0x20) == 'r' && (bytes[2] | 0x20) == 'u' && (bytes[3] | 0x20) == 'e';
+        }
+        return Boolean.parseBoolean(value.toString());
+    }
+}
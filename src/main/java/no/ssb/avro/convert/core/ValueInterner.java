@@ -0,0 +1,115 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.util.Utf8;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ValueInterner deduplicates string values of low cardinality fields, e.g. codes and statuses, so records
+ * converted with {@link ConversionOptions#withValueInterner(ValueInterner)} share one instance per distinct value.
+ *
+ * A field is interned when its schema field has the prop "intern": true, or when its path is given to the
+ * constructor. Paths are as for {@link SchemaBuddy#getPath()}, and arrays of strings use the path of the array.
+ * Each field has its own table of at most maxValuesPerField values. When a table is full, new values are no
+ * longer added, so high cardinality fields only cost a failed lookup. An interner is thread safe and can be
+ * shared between conversions of different schemas. Tables are shared by fields with the same path, also in
+ * different parses of a schema, and a field only refers to the table of the last interner it was used with.
+ */
+public class ValueInterner {
+
+    public static final String PROP = "intern";
+
+    private final int maxValuesPerField;
+    private final Set<String> paths;
+    private final Map<String, Table> tablesByPath = new ConcurrentHashMap<>();
+    // Table of fields that are not interned
+    private final Table none = new Table(this, 0);
+
+    public ValueInterner(int maxValuesPerField) {
+        this(maxValuesPerField, Collections.emptySet());
+    }
+
+    public ValueInterner(int maxValuesPerField, Collection<String> paths) {
+        if (maxValuesPerField < 1) {
+            throw new IllegalArgumentException("maxValuesPerField must be positive, was " + maxValuesPerField);
+        }
+        if (paths == null) {
+            throw new NullPointerException("paths can't be null");
+        }
+        this.maxValuesPerField = maxValuesPerField;
+        this.paths = new HashSet<>(paths);
+    }
+
+    /**
+     * @return the shared instance equal to value if the field is interned, otherwise value.
+     * Strings and {@link Utf8}s are kept apart. A {@link Utf8} is copied before it is kept, as decoders reuse
+     * instances, and the shared copy must not be modified.
+     */
+    public <T extends CharSequence> T intern(SchemaBuddy leaf, T value) {
+        if (value == null) {
+            return null;
+        }
+        // Resolved once per leaf and kept on the leaf, so the path is not built for every value
+        Table table = leaf.getInternTable();
+        if (table == null || table.interner != this) {
+            table = resolve(leaf);
+            leaf.setInternTable(table);
+        }
+        return table.intern(value);
+    }
+
+    /**
+     * @return number of distinct values kept for the field with the given path
+     */
+    public int size(String path) {
+        Table table = tablesByPath.get(path);
+        return table != null ? table.values.size() : 0;
+    }
+
+    private Table resolve(SchemaBuddy leaf) {
+        SchemaBuddy field = leaf.getParent() != null && leaf.getParent().isArrayType() ? leaf.getParent() : leaf;
+        String path = field.getPath();
+        Object prop = field.getProp(PROP);
+        if (!paths.contains(path) && !Boolean.TRUE.equals(prop) && !"true".equals(prop)) {
+            return none;
+        }
+        return tablesByPath.computeIfAbsent(path, key -> new Table(this, maxValuesPerField));
+    }
+
+    static class Table {
+        private final ValueInterner interner;
+        private final Map<CharSequence, CharSequence> values = new ConcurrentHashMap<>();
+        private final int maxValues;
+        private volatile boolean full;
+
+        private Table(ValueInterner interner, int maxValues) {
+            this.interner = interner;
+            this.maxValues = maxValues;
+            this.full = maxValues == 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T extends CharSequence> T intern(T value) {
+            T existing = (T) values.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            if (full) {
+                return value;
+            }
+            if (values.size() >= maxValues) {
+                full = true;
+                return value;
+            }
+            // Utf8 is mutable, and a later set() on value must not change the key or records sharing it
+            T canonical = value instanceof Utf8 ? (T) new Utf8((Utf8) value) : value;
+            existing = (T) values.putIfAbsent(canonical, canonical);
+            return existing != null ? existing : canonical;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package no.ssb.avro.convert.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveBatcherTest {
+
+    @Test
+    void batchByEstimatedBytes() {
+        List<List<String>> batches = new ArrayList<>();
+        AdaptiveBatcher<String> batcher = AdaptiveBatcher.create(String::length, 10, batches::add);
+
+        for (String item : Arrays.asList("aaaa", "bbbb", "cc", "dddddd", "eeeeeeeeeeeeeeee", "f", "g")) {
+            batcher.add(item);
+        }
+        batcher.close();
+
+        assertThat(batches).containsExactly(
+                Arrays.asList("aaaa", "bbbb", "cc"),
+                Arrays.asList("dddddd"),
+                Arrays.asList("eeeeeeeeeeeeeeee"),
+                Arrays.asList("f", "g"));
+    }
+
+    @Test
+    void limitItemsPerBatch() {
+        List<List<String>> batches = new ArrayList<>();
+        AdaptiveBatcher<String> batcher = AdaptiveBatcher.create(String::length, 100, batches::add).withMaxItems(2);
+
+        Arrays.asList("a", "b", "c").forEach(batcher::add);
+        batcher.flush();
+
+        assertThat(batches).containsExactly(Arrays.asList("a", "b"), Arrays.asList("c"));
+    }
+
+    @Test
+    void adjustEstimatesByEncodedBytes() {
+        List<List<String>> batches = new ArrayList<>();
+        AdaptiveBatcher<String> batcher = AdaptiveBatcher.create(String::length, 10, batches::add);
+
+        // batches encode to half their estimate, e.g. when compressed
+        for (int i = 0; i < 100; i++) {
+            int before = batches.size();
+            batcher.add("aa");
+            if (batches.size() > before) {
+                batcher.reportEncodedBytes(batches.get(before).size());
+            }
+        }
+
+        assertThat(batches.get(0)).hasSize(5);
+        assertThat(batcher.getCorrection()).isLessThan(0.6);
+        assertThat(batches.get(batches.size() - 1).size()).isGreaterThanOrEqualTo(9);
+    }
+}
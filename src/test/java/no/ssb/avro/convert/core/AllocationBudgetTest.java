@@ -0,0 +1,132 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Fails when a hot path allocates more bytes per operation than its budget in allocation-budgets.properties.
+ * A budget can be overridden with a system property, e.g. -Dallocation.budget.setValue=16.
+ */
+class AllocationBudgetTest {
+
+    private static final int WARMUP = 20_000;
+    private static final int OPERATIONS = 100_000;
+
+    private static final Schema SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().longType().noDefault()
+            .name("person").type().record("person").fields()
+                .name("name").type().stringType().noDefault()
+                .name("age").type().optional().intType()
+                .endRecord().noDefault()
+            .endRecord();
+
+    private static com.sun.management.ThreadMXBean threadMXBean;
+    private static Properties budgets;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        budgets = new Properties();
+        try (InputStream in = AllocationBudgetTest.class.getClassLoader().getResourceAsStream("allocation-budgets.properties")) {
+            budgets.load(in);
+        }
+    }
+
+    @Test
+    void setValue() {
+        DataElement name = nested(new DataElement("name"));
+        assertWithinBudget("setValue", () -> name.setValue("value"));
+    }
+
+    @Test
+    void setUtf8Value() {
+        DataElement name = nested(new DataElement("name"));
+        org.apache.avro.util.Utf8 value = new org.apache.avro.util.Utf8("value");
+        assertWithinBudget("setUtf8Value", () -> name.setUtf8Value(value));
+    }
+
+    @Test
+    void interceptorDispatch() {
+        DataElement name = nested(new DataElement("name").withValueInterceptor((field, value) -> value));
+        assertWithinBudget("interceptorDispatch", () -> name.setValue("value"));
+    }
+
+    @Test
+    void getChild() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        SchemaBuddy person = schemaBuddy.getChild("person");
+        assertWithinBudget("getChild", () -> {
+            schemaBuddy.getChild("count");
+            person.getChild("age");
+        });
+    }
+
+    @Test
+    void toRecord() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "abc")
+                .addValue("count", "42")
+                .addChild(person("Ola", "42"))
+                .build();
+        assertWithinBudget("toRecord", () -> SchemaAwareElement.toRecord(dataElement, schemaBuddy));
+    }
+
+    private static DataElement person(String name, String age) {
+        DataElement person = new DataElement("person");
+        person.addChild(new DataElement("name", name));
+        person.addChild(new DataElement("age", age));
+        return person;
+    }
+
+    // name at /root/person/name
+    private static DataElement nested(DataElement name) {
+        DataElement root = new DataElement("root");
+        DataElement person = new DataElement("person");
+        root.addChild(person);
+        person.addChild(name);
+        return name;
+    }
+
+    private static void assertWithinBudget(String operation, Runnable runnable) {
+        assumeTrue(threadMXBean != null, "Thread allocation measurement not supported");
+        String budget = System.getProperty("allocation.budget." + operation, budgets.getProperty(operation));
+        assertThat(budget).as("budget of %s", operation).isNotNull();
+
+        long bytesPerOperation = bytesPerOperation(runnable);
+        assertThat(bytesPerOperation)
+                .as("bytes allocated per %s", operation)
+                .isLessThanOrEqualTo(Long.parseLong(budget));
+    }
+
+    private static long bytesPerOperation(Runnable runnable) {
+        // Let the JIT compile, and remove allocations it can, before measuring
+        for (int i = 0; i < WARMUP; i++) {
+            runnable.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < OPERATIONS; i++) {
+            runnable.run();
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / OPERATIONS;
+    }
+}
@@ -0,0 +1,132 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChunkedConverterTest {
+
+    private static DataElement persons(int count) {
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("languages", "en")
+                .addValue("languages", "no");
+        for (int i = 0; i < count; i++) {
+            builder.addChild(DataElementBuilder.root("person").addValue("name", "person" + i).build());
+        }
+        return builder.build();
+    }
+
+    @Test
+    void splitArrayIntoChunks() {
+        ChunkedConverter converter = ChunkedConverter
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withChunkSize("/root/person", 4);
+
+        List<GenericRecord> chunks = new ArrayList<>();
+        converter.convert(persons(10), chunks::add);
+
+        assertThat(chunks).extracting(chunk -> chunk.get("chunk")).containsExactly(0, 1, 2);
+        assertThat(chunks).extracting(chunk -> ((List<?>) chunk.get("person")).size()).containsExactly(4, 4, 2);
+        assertThat(chunks).extracting(chunk -> chunk.get("id")).containsOnly("007");
+        // other arrays are only held by the first chunk
+        assertThat(chunks).extracting(chunk -> chunk.get("languages").toString()).containsExactly("[en, no]", "[]", "[]");
+        assertThat(chunks.get(2).toString()).isEqualTo("{\"id\": \"007\", \"person\": [" +
+                "{\"name\": \"person8\", \"sex\": null}, {\"name\": \"person9\", \"sex\": null}], " +
+                "\"languages\": [], \"chunk\": 2}");
+        assertThat(converter.getSchema().getField("chunk").schema().getType()).isEqualTo(Schema.Type.INT);
+    }
+
+    @Test
+    void chunkSeveralArraysFromProps() {
+        Schema schema = SchemaBuilder
+                .record("root")
+                .fields()
+                .name("id").type().stringType().noDefault()
+                .name("codes").prop(ChunkedConverter.PROP, "2").type().array().items().stringType().noDefault()
+                .name("tags").prop(ChunkedConverter.PROP, "1").type().array().items().stringType().noDefault()
+                .endRecord();
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "1")
+                .addValue("codes", "a")
+                .addValue("codes", "b")
+                .addValue("codes", "c")
+                .addValue("tags", "x")
+                .build();
+
+        List<GenericRecord> chunks = new ArrayList<>();
+        ChunkedConverter.forSchema(SchemaBuddy.parse(schema), ConversionOptions.defaults())
+                .withIndexField("part")
+                .convert(dataElement, chunks::add);
+
+        assertThat(chunks).extracting(GenericRecord::toString).containsExactly(
+                "{\"id\": \"1\", \"codes\": [\"a\", \"b\"], \"tags\": [\"x\"], \"part\": 0}",
+                "{\"id\": \"1\", \"codes\": [\"c\"], \"tags\": [], \"part\": 1}");
+    }
+
+    @Test
+    void onlyRepeatFieldsWithoutDefaultsInLaterChunks() {
+        Schema address = SchemaBuilder.record("address").fields()
+                .name("street").type().stringType().noDefault()
+                .endRecord();
+        Schema schema = SchemaBuilder
+                .record("root")
+                .fields()
+                .name("id").type().stringType().noDefault()
+                .name("address").type(address).noDefault()
+                .name("previous").type().optional().type(address)
+                .name("codes").prop(ChunkedConverter.PROP, "1").type().array().items().stringType().noDefault()
+                .name("tags").type().array().items().stringType().noDefault()
+                .endRecord();
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "1")
+                .addChild(DataElementBuilder.root("address").addValue("street", "a").build())
+                .addChild(DataElementBuilder.root("previous").addValue("street", "b").build())
+                .addValue("codes", "x")
+                .addValue("codes", "y")
+                .addValue("tags", "t")
+                .build();
+
+        List<GenericRecord> chunks = new ArrayList<>();
+        ChunkedConverter.forSchema(SchemaBuddy.parse(schema), ConversionOptions.defaults())
+                .convert(dataElement, chunks::add);
+
+        // the required record without a default is repeated, the optional record and the other array are not
+        assertThat(chunks).extracting(GenericRecord::toString).containsExactly(
+                "{\"id\": \"1\", \"address\": {\"street\": \"a\"}, \"previous\": {\"street\": \"b\"}, " +
+                        "\"codes\": [\"x\"], \"tags\": [\"t\"], \"chunk\": 0}",
+                "{\"id\": \"1\", \"address\": {\"street\": \"a\"}, \"previous\": null, " +
+                        "\"codes\": [\"y\"], \"tags\": [], \"chunk\": 1}");
+    }
+
+    @Test
+    void singleChunkWithoutElements() {
+        ChunkedConverter converter = ChunkedConverter
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withChunkSize("/root/person", 4);
+
+        List<GenericRecord> chunks = new ArrayList<>();
+        converter.convert(persons(0), chunks::add);
+
+        assertThat(chunks).extracting(GenericRecord::toString)
+                .containsExactly("{\"id\": \"007\", \"person\": [], \"languages\": [\"en\", \"no\"], \"chunk\": 0}");
+    }
+
+    @Test
+    void onlyChunkArraysInRoot() {
+        ChunkedConverter converter = ChunkedConverter
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults());
+
+        assertThatThrownBy(() -> converter.withChunkSize("/root/person/name", 4))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> converter.withChunkSize("/root/id", 4))
+                .hasMessage("Can only chunk arrays, /root/id is STRING");
+    }
+}
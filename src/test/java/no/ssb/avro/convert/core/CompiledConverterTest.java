@@ -0,0 +1,156 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompiledConverterTest {
+
+    private final Schema schema = SchemaBuilder
+            .record("root").namespace("no.ssb.dataset")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().longType().noDefault()
+            .name("ratio").type().optional().doubleType()
+            .name("active").type().booleanType().booleanDefault(true)
+            .name("nullable").type().nullable().stringType().noDefault()
+            .name("address").type().optional().type(
+                    SchemaBuilder.record("address")
+                            .fields()
+                            .name("city").type().stringType().noDefault()
+                            .name("postcode").type().intType().noDefault()
+                            .endRecord()
+            )
+            .name("person").type().optional().type(
+                    SchemaBuilder.array()
+                            .items(SchemaBuilder.record("person")
+                                    .fields()
+                                    .name("name").type().stringType().noDefault()
+                                    .name("sex").type().optional().stringType()
+                                    .endRecord()
+                            )
+            )
+            .name("languages").type().optional().type(SchemaBuilder.array().items().stringType())
+            .endRecord();
+
+    private final SchemaBuddy schemaBuddy = SchemaBuddy.parse(schema);
+
+    @Test
+    void sameResultAsGenericPath() {
+        DataElement full = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("count", "12")
+                .addValue("ratio", "0.5")
+                .addValue("active", "false")
+                .addValue("nullable", null)
+                .addChild(DataElementBuilder.root("address")
+                        .addValue("city", "Oslo")
+                        .addValue("postcode", "657").build())
+                .addChild(DataElementBuilder.root("person").addValue("name", "James Bond").addValue("sex", "Male").build())
+                .addChild(DataElementBuilder.root("person").addValue("name", "Miss Moneypenny").build())
+                .addValue("languages", "en")
+                .addValue("languages", "no")
+                .build();
+        DataElement sparse = DataElementBuilder.root("root")
+                .addValue("id", null)
+                .addValue("count", "1")
+                .addValue("ratio", null)
+                .addValue("nullable", "value")
+                .build();
+
+        CompiledConverter converter = CompiledConverter.forSchema(schemaBuddy);
+        assertThat(converter.isCompiled()).isTrue();
+        for (DataElement dataElement : new DataElement[]{full, sparse}) {
+            GenericRecord compiled = converter.convert(dataElement);
+            GenericRecord generic = SchemaAwareElement.toRecord(dataElement, schemaBuddy);
+            assertThat(compiled.toString()).isEqualTo(generic.toString());
+            assertThat(compiled).isEqualTo(generic);
+        }
+    }
+
+    @Test
+    void fallBackToGenericPath() {
+        DataElement badCount = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("count", "twelve")
+                .addValue("nullable", null)
+                .build();
+        DataElement missingCount = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .build();
+
+        assertThatThrownBy(() -> CompiledConverter.forSchema(schemaBuddy).convert(badCount))
+                .isInstanceOf(ConversionException.class);
+        assertThatThrownBy(() -> CompiledConverter.forSchema(schemaBuddy).convert(missingCount))
+                .hasMessageContaining("Field count type:LONG pos:1 not set and has no default value");
+
+        GenericRecord record = CompiledConverter.forSchema(schemaBuddy, ConversionOptions.defaults().withErrorPolicy(ErrorPolicy.DEFAULT))
+                .convert(badCount);
+        assertThat(record.get("count")).isEqualTo(0L);
+    }
+
+    @Test
+    void reusePlanForSameSchema() {
+        SchemaBuddy parsed = SchemaBuddy.parse(schema);
+        CompiledConverter first = CompiledConverter.forSchema(parsed);
+        CompiledConverter second = CompiledConverter.forSchema(parsed);
+        assertThat(first.isCompiled()).isTrue();
+        assertThat(second.isCompiled()).isTrue();
+        assertThat(parsed.getCompiledPlan()).isSameAs(parsed.getCompiledPlan()).isNotSameAs(SchemaBuddy.parse(schema).getCompiledPlan());
+        assertThat(CompiledConverter.forSchema(schemaBuddy, ConversionOptions.defaults().withParallelArrays(10)).isCompiled()).isFalse();
+    }
+
+    @Test
+    void missingValuePolicy() {
+        DataElement missing = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("count", null)
+                .addValue("active", null)
+                .addValue("nullable", null)
+                .build();
+
+        for (MissingValuePolicy policy : MissingValuePolicy.values()) {
+            ConversionOptions options = ConversionOptions.defaults()
+                    .withMissingValuePolicy(policy)
+                    .withErrorPolicy(ErrorPolicy.DEFAULT);
+            assertThat(CompiledConverter.forSchema(schemaBuddy, options).convert(missing))
+                    .isEqualTo(SchemaAwareElement.toRecord(missing, schemaBuddy, options));
+        }
+        GenericRecord record = CompiledConverter.forSchema(schemaBuddy, ConversionOptions.defaults()
+                .withMissingValuePolicy(MissingValuePolicy.AVRO_DEFAULT)).convert(missing);
+        assertThat(record.get("count")).isEqualTo(0L);
+        assertThat(record.get("active")).isEqualTo(true);
+    }
+
+    @Test
+    void convertTypedArrays() {
+        Schema typedSchema = SchemaBuilder
+                .record("root")
+                .fields()
+                .name("longs").type().array().items().longType().noDefault()
+                .name("flags").type().array().items().booleanType().noDefault()
+                .name("nullableLongs").type().optional().array().items().nullable().longType()
+                .endRecord();
+        SchemaBuddy typedSchemaBuddy = SchemaBuddy.parse(typedSchema);
+        DataElementBuilder.RootBuilder primitive = DataElementBuilder.root("root").addValue("flags", "true");
+        for (int i = 0; i < 20; i++) {
+            primitive.addValue("longs", String.valueOf(i * 1000L));
+        }
+        DataElement withNullable = DataElementBuilder.root("root")
+                .addValue("longs", "1")
+                .addValue("flags", "false")
+                .addValue("nullableLongs", "2")
+                .build();
+        CompiledConverter converter = CompiledConverter.forSchema(typedSchemaBuddy);
+
+        for (DataElement dataElement : new DataElement[]{primitive.build(), withNullable}) {
+            GenericRecord record = converter.convert(dataElement);
+            assertThat(record).isEqualTo(SchemaAwareElement.toRecord(dataElement, typedSchemaBuddy));
+            assertThat(record.get("longs")).isInstanceOf(PrimitiveArrays.LongArray.class);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package no.ssb.avro.convert.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConversionEventsTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private final ConversionEvents.Listener listener = new ConversionEvents.Listener() {
+        @Override
+        public void onSchemaParsed(String schemaName, int nodeCount, long durationNanos) {
+            events.add("parsed " + schemaName + " nodes:" + nodeCount);
+        }
+
+        @Override
+        public void onRecordConverted(String schemaName, int nodeCount, long bytes, long durationNanos) {
+            events.add("converted " + schemaName + " nodes:" + nodeCount + " bytes:" + bytes);
+        }
+
+        @Override
+        public void onSlowInterceptor(String path, long durationNanos) {
+            events.add("interceptor " + path);
+        }
+    };
+
+    @AfterEach
+    void disable() {
+        ConversionEvents.disable();
+    }
+
+    @Test
+    void disabledByDefault() {
+        assertThat(ConversionEvents.isEnabled()).isFalse();
+        SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        assertThat(events).isEmpty();
+    }
+
+    @Test
+    void emitsEventsForParseAndConversion() {
+        ConversionEvents.enable(listener);
+
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        SchemaAwareElement.toRecord(dataElement(), schemaBuddy);
+
+        assertThat(events).containsExactly(
+                "parsed root nodes:8",
+                "interceptor /root/languages",
+                "converted root nodes:5 bytes:-1"
+        );
+    }
+
+    @Test
+    void countsDataElementsOnBothPaths() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        CompiledConverter compiled = CompiledConverter.forSchema(schemaBuddy);
+        ConversionEvents.enable(listener);
+
+        SchemaAwareElement.toRecord(dataElement(), schemaBuddy);
+        compiled.convert(dataElement());
+
+        assertThat(events).containsExactly(
+                "interceptor /root/languages",
+                "converted root nodes:5 bytes:-1",
+                "interceptor /root/languages",
+                "converted root nodes:5 bytes:-1"
+        );
+    }
+
+    @Test
+    void reportsEncodedSize() throws IOException {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        SpillingConverter spillingConverter = SpillingConverter.forSchema(schemaBuddy, ConversionOptions.defaults());
+        ConversionEvents.enable(listener);
+
+        byte[] bytes = ConversionPipeline.binaryConverter(schemaBuddy, ConversionOptions.defaults()).apply(dataElement());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spillingConverter.write(dataElement(), out);
+
+        assertThat(out.size()).isEqualTo(bytes.length);
+        assertThat(events).containsExactly(
+                "interceptor /root/languages",
+                "converted root nodes:5 bytes:" + bytes.length,
+                "interceptor /root/languages",
+                "converted root nodes:5 bytes:" + bytes.length
+        );
+    }
+
+    @Test
+    void onlyReportsAboveThreshold() {
+        ConversionEvents.enable(listener, 1, 1, TimeUnit.HOURS);
+
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        SchemaAwareElement.toRecord(dataElement(), schemaBuddy);
+
+        assertThat(events).containsExactly("parsed root nodes:8");
+    }
+
+    private static DataElement dataElement() {
+        DataElement root = new DataElement("root");
+        root.addChild(new DataElement("id", "007"));
+        DataElement person = new DataElement("person");
+        person.addChild(new DataElement("name", "James Bond"));
+        root.addChild(person);
+        DataElement language = new DataElement("languages").withValueInterceptor((field, value) -> value);
+        root.addChild(language);
+        language.setValue("en");
+        return root;
+    }
+}
@@ -0,0 +1,111 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConversionPipelineTest {
+
+    private final Schema schema = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().longType().noDefault()
+            .endRecord();
+
+    private final SchemaBuddy schemaBuddy = SchemaBuddy.parse(schema);
+
+    @Test
+    void runAllStages() throws InterruptedException {
+        Queue<byte[]> output = new ConcurrentLinkedQueue<>();
+
+        ConversionPipeline pipeline = ConversionPipeline.from("source", IntStream.range(0, 1000).iterator())
+                .map("build", i -> DataElementBuilder.root("root").addValue("id", String.valueOf(i)).build()).parallelism(2)
+                .map("convert", ConversionPipeline.converter(schemaBuddy, ConversionOptions.defaults())).parallelism(4).queueCapacity(8)
+                .map("encode", ConversionPipeline.encoder(schema)).parallelism(2)
+                .to("sink", output::add);
+        pipeline.run();
+
+        assertThat(output).hasSize(1000);
+        List<ConversionPipeline.StageStats> stats = pipeline.getStageStats();
+        assertThat(stats).extracting(ConversionPipeline.StageStats::getName)
+                .containsExactly("source", "build", "convert", "encode", "sink");
+        assertThat(stats).allSatisfy(stageStats -> {
+            assertThat(stageStats.getProcessed()).isEqualTo(1000);
+            assertThat(stageStats.getQueueDepth()).isZero();
+        });
+        assertThat(stats.get(2).getQueueCapacity()).isEqualTo(8);
+        assertThat(stats.get(2).getParallelism()).isEqualTo(4);
+    }
+
+    @Test
+    void dropNullResults() throws InterruptedException {
+        Queue<Integer> output = new ConcurrentLinkedQueue<>();
+
+        ConversionPipeline.from("source", IntStream.range(0, 100).iterator())
+                .map("even", i -> i % 2 == 0 ? i : null)
+                .to("sink", output::add)
+                .run();
+
+        assertThat(output).hasSize(50);
+    }
+
+    @Test
+    void failWhenStageFails() {
+        ConversionPipeline pipeline = ConversionPipeline.from("source", IntStream.range(0, 10_000).iterator())
+                .map("fail", i -> {
+                    if (i == 10) {
+                        throw new IllegalStateException("bad item");
+                    }
+                    return i;
+                }).queueCapacity(1)
+                .to("sink", i -> {
+                });
+
+        assertThatThrownBy(pipeline::run)
+                .hasMessageContaining("Stage fail failed")
+                .hasStackTraceContaining("bad item");
+    }
+
+    @Test
+    void failWhenExecutorRejectsWorker() {
+        ConversionPipeline pipeline = ConversionPipeline.from("source", IntStream.range(0, 10_000).iterator())
+                .map("copy", i -> i).queueCapacity(1).executor(command -> {
+                    throw new RejectedExecutionException("no threads left");
+                })
+                .to("sink", i -> {
+                });
+
+        assertThatThrownBy(pipeline::run)
+                .hasMessageContaining("Stage copy could not be started")
+                .hasStackTraceContaining("no threads left");
+    }
+
+    @Test
+    void rejectExecutorWithTooFewThreads() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ConversionPipeline pipeline = ConversionPipeline.from("source", IntStream.range(0, 100).iterator())
+                    .map("copy", i -> i).parallelism(2).executor(executor)
+                    .map("copy again", i -> i).executor(executor)
+                    .to("sink", i -> {
+                    });
+
+            assertThatThrownBy(pipeline::start)
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("needs one for each of its 3 workers");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
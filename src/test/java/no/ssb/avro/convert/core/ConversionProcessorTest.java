@@ -0,0 +1,208 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConversionProcessorTest {
+
+    private final Schema schema = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().longType().noDefault()
+            .endRecord();
+
+    private final SchemaBuddy schemaBuddy = SchemaBuddy.parse(schema);
+
+    @Test
+    void convertInOrderRespectingDemand() throws InterruptedException {
+        RangePublisher publisher = new RangePublisher(1000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ConversionProcessor<GenericRecord> processor = ConversionProcessor.toRecords(schemaBuddy, ConversionOptions.defaults())
+                .withParallelism(4, pool)
+                .withBatchSize(16);
+        CollectingSubscriber<GenericRecord> subscriber = new CollectingSubscriber<>(10);
+
+        try {
+            publisher.subscribe(processor);
+            processor.subscribe(subscriber);
+
+            assertThat(subscriber.done.await(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(subscriber.error).isNull();
+        assertThat(subscriber.overflow).isFalse();
+        assertThat(subscriber.items.stream().map(record -> (Long) record.get("id")).collect(Collectors.toList()))
+                .isEqualTo(IntStream.range(0, 1000).mapToObj(Long::valueOf).collect(Collectors.toList()));
+        assertThat(publisher.maxOutstanding.get()).isLessThanOrEqualTo(2 * 4 * 16);
+    }
+
+    @Test
+    void encodeWithoutExtraThreads() throws InterruptedException {
+        ConversionProcessor<byte[]> processor = ConversionProcessor.toBytes(schemaBuddy, ConversionOptions.defaults());
+        CollectingSubscriber<byte[]> subscriber = new CollectingSubscriber<>(1);
+
+        new RangePublisher(100).subscribe(processor);
+        processor.subscribe(subscriber);
+
+        assertThat(subscriber.done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.items).hasSize(100);
+        // zig-zag encoded long 1
+        assertThat(subscriber.items.get(1)).containsExactly(2);
+    }
+
+    @Test
+    void propagateConversionErrors() throws InterruptedException {
+        ConversionProcessor<GenericRecord> processor = ConversionProcessor.toRecords(schemaBuddy, ConversionOptions.defaults());
+        CollectingSubscriber<GenericRecord> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+
+        new RangePublisher(10, 5).subscribe(processor);
+        processor.subscribe(subscriber);
+
+        assertThat(subscriber.done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error).isInstanceOf(ConversionException.class);
+    }
+
+    @Test
+    void failRightAwayOnInvalidRequest() throws InterruptedException {
+        ConversionProcessor<GenericRecord> processor = ConversionProcessor.toRecords(schemaBuddy, ConversionOptions.defaults());
+        // requests 0 after the first element, while the other 9 are converted and waiting for demand
+        CollectingSubscriber<GenericRecord> subscriber = new CollectingSubscriber<GenericRecord>(2) {
+            @Override
+            public void onNext(GenericRecord item) {
+                super.onNext(item);
+                super.subscription.request(0);
+            }
+        };
+
+        new RangePublisher(10).subscribe(processor);
+        processor.subscribe(subscriber);
+
+        assertThat(subscriber.done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(subscriber.items).hasSize(1);
+    }
+
+    @Test
+    void rejectNullElements() {
+        ConversionProcessor<GenericRecord> processor = ConversionProcessor.toRecords(schemaBuddy, ConversionOptions.defaults());
+
+        assertThatThrownBy(() -> processor.onNext(null))
+                .isInstanceOf(NullPointerException.class)
+                .hasMessage("dataElement can't be null");
+    }
+
+    /**
+     * Publishes DataElements with id 0 until count, where id badId has a value that can't be converted.
+     */
+    private static class RangePublisher implements Publisher<DataElement> {
+        private final int count;
+        private final int badId;
+        private final AtomicLong maxOutstanding = new AtomicLong();
+
+        RangePublisher(int count) {
+            this(count, -1);
+        }
+
+        RangePublisher(int count, int badId) {
+            this.count = count;
+            this.badId = badId;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super DataElement> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                private final AtomicLong requested = new AtomicLong();
+                private int next;
+                private boolean cancelled;
+                private boolean emitting;
+
+                @Override
+                public synchronized void request(long n) {
+                    maxOutstanding.accumulateAndGet(requested.addAndGet(n), Math::max);
+                    if (emitting) {
+                        return;
+                    }
+                    emitting = true;
+                    while (requested.get() > 0 && next < count && !cancelled) {
+                        requested.decrementAndGet();
+                        String value = next == badId ? "bad" : String.valueOf(next);
+                        next++;
+                        subscriber.onNext(DataElementBuilder.root("root").addValue("id", value).build());
+                    }
+                    if (next == count && !cancelled) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                    emitting = false;
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private static class CollectingSubscriber<T> implements Subscriber<T> {
+        private final long batch;
+        private final List<T> items = new CopyOnWriteArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Subscription subscription;
+        private long outstanding;
+        private volatile boolean overflow;
+        private volatile Throwable error;
+
+        CollectingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            outstanding = batch;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+            if (--outstanding < 0) {
+                overflow = true;
+            }
+            if (outstanding == 0) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
@@ -85,4 +85,18 @@ class DataElementTest {
         name.setValue("Bill");
         assertThat(name.getValue()).isEqualTo("Bill");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testDeepTree() {
+        DataElement root = new DataElement("root");
+        DataElement element = root;
+        for (int i = 0; i < 100_000; i++) {
+            DataElement child = new DataElement("child");
+            element.addChild(child);
+            element = child;
+        }
+
+        assertThat(root.countNodes()).isEqualTo(100_001);
+        assertThat(element.getPath()).hasSize(5 + 100_000 * 6);
+    }
+}
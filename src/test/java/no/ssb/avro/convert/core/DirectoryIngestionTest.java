@@ -0,0 +1,286 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DirectoryIngestionTest {
+
+    private static void writeJson(Path file, int records) throws IOException {
+        Files.createDirectories(file.getParent());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            sb.append("{\"id\": \"").append(file.getFileName()).append('-').append(i)
+                    .append("\", \"person\": [{\"name\": \"p").append(i).append("\"}], \"languages\": [\"en\"]}\n");
+        }
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> readIds(Path outputDirectory) throws IOException {
+        List<String> ids = new ArrayList<>();
+        List<Path> shards;
+        try (Stream<Path> files = Files.list(outputDirectory)) {
+            shards = files.filter(file -> file.toString().endsWith(".avro")).collect(Collectors.toList());
+        }
+        for (Path shard : shards) {
+            try (DataFileReader<GenericRecord> reader = new DataFileReader<>(shard.toFile(), new GenericDatumReader<>())) {
+                reader.forEach(record -> ids.add(record.get("id").toString()));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    void ingestDirectoryTree(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("big.jsonl"), 500);
+        for (int i = 0; i < 10; i++) {
+            writeJson(input.resolve("sub" + (i % 3)).resolve("small" + i + ".json"), 5);
+        }
+        Files.write(input.resolve("sub0").resolve("ignored.txt"), "not a record".getBytes(StandardCharsets.UTF_8));
+        Files.write(input.resolve("record.xml"), "<root><id>xml</id><person><name>x</name></person><languages>no</languages></root>".getBytes(StandardCharsets.UTF_8));
+        Path output = tempDir.resolve("output");
+
+        DirectoryIngestion.Manifest manifest = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withWorkers(3)
+                .ingest(input, output);
+
+        assertThat(manifest.getRecords()).isEqualTo(551);
+        assertThat(manifest.getEntries()).hasSize(12);
+        assertThat(manifest.getEntries().get(0).getFile()).isEqualTo("big.jsonl");
+        assertThat(manifest.getEntries().get(2).getFile()).isEqualTo("sub0/small0.json");
+        assertThat(manifest.getEntries()).allMatch(entry -> entry.getShard().matches("part-0000[0-2]\\.avro"));
+
+        List<String> ids = readIds(output);
+        assertThat(ids).hasSize(551).doesNotHaveDuplicates().contains("big.jsonl-499", "small9.json-4", "xml");
+
+        List<String> manifestLines = Files.readAllLines(output.resolve(DirectoryIngestion.MANIFEST_FILE));
+        assertThat(manifestLines).hasSize(13);
+        assertThat(manifestLines.get(0)).isEqualTo("file\tshard\trecords\tdropped\tmillis");
+        assertThat(manifestLines.get(1)).startsWith("big.jsonl\tpart-0000").contains("\t500\t0\t");
+    }
+
+    @Test
+    void countDroppedRecords(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        Files.createDirectories(input);
+        Files.write(input.resolve("numbers.jsonl"), "{\"count\": 1}\n{\"count\": \"one\"}\n{\"count\": 3}\n"
+                .getBytes(StandardCharsets.UTF_8));
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SchemaBuilder.record("root").fields()
+                .name("count").type().longType().noDefault()
+                .endRecord());
+
+        DirectoryIngestion.Manifest manifest = DirectoryIngestion
+                .forSchema(schemaBuddy, ConversionOptions.defaults().withErrorPolicy(ErrorPolicy.DROP_RECORD))
+                .ingest(input, tempDir.resolve("output"));
+
+        assertThat(manifest.getRecords()).isEqualTo(2);
+        assertThat(manifest.getDroppedRecords()).isEqualTo(1);
+    }
+
+    @Test
+    void failOnUnreadableFile(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("a.json"), 1);
+        DirectoryIngestion ingestion = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withFileReader(file -> {
+                    throw new IOException("Can't read " + file.getFileName());
+                });
+
+        assertThatThrownBy(() -> ingestion.ingest(input, tempDir.resolve("output")))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Can't read a.json");
+    }
+
+    @Test
+    void keepShardsValidWhenAFileFails(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("big.jsonl"), 10_000);
+        writeJson(input.resolve("small.json"), 1);
+        Path output = tempDir.resolve("output");
+        CountDownLatch bigStarted = new CountDownLatch(1);
+        DirectoryIngestion ingestion = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withWorkers(2)
+                .withFileReader(file -> {
+                    if (file.endsWith("small.json")) {
+                        try {
+                            bigStarted.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IOException("Can't read small.json");
+                    }
+                    Iterator<DataElement> elements = MappedJsonReader.open(file, "root");
+                    return new Iterator<DataElement>() {
+                        private int read;
+
+                        @Override
+                        public boolean hasNext() {
+                            return elements.hasNext();
+                        }
+
+                        @Override
+                        public DataElement next() {
+                            if (++read == 10) {
+                                bigStarted.countDown();
+                            }
+                            return elements.next();
+                        }
+                    };
+                });
+
+        assertThatThrownBy(() -> ingestion.ingest(input, output))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Can't read small.json");
+        // big.jsonl stops when small.json fails, and its shard is closed after its last record
+        List<String> ids = readIds(output);
+        assertThat(ids.size()).isBetween(10, 9_999);
+        assertThat(ids).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void resumeFromCheckpoints(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("big.jsonl"), 100);
+        writeJson(input.resolve("small.jsonl"), 10);
+        Path output = tempDir.resolve("output");
+        Path stateFile = tempDir.resolve("ingestion.state");
+        DirectoryIngestion ingestion = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withWorkers(2)
+                .withCheckpoints(stateFile, 10);
+
+        // the first run fails after reading 45 elements of big.jsonl, its records from element 41 are not checkpointed
+        DirectoryIngestion failing = ingestion.withFileReader(file -> {
+            Iterator<DataElement> elements = MappedJsonReader.open(file, "root");
+            return file.endsWith("big.jsonl") ? crashAfter(elements, 45, new CountDownLatch(1)) : elements;
+        });
+        assertThatThrownBy(() -> failing.ingest(input, output)).hasMessageContaining("Crash");
+        assertThat(Files.readAllLines(stateFile)).anyMatch(line -> line.matches("shard\tpart-0000.\\.avro\t\\d+\tbig.jsonl\t40\t40\t0\t\\d+"));
+
+        DirectoryIngestion.Manifest manifest = ingestion.ingest(input, output);
+
+        assertThat(manifest.getEntries()).extracting(DirectoryIngestion.Entry::getRecords).containsExactly(100L, 10L);
+        assertThat(readIds(output)).hasSize(110).doesNotHaveDuplicates().contains("big.jsonl-0", "big.jsonl-99");
+        assertThat(stateFile).doesNotExist();
+    }
+
+    @Test
+    void resumeWithoutRecordsOfShardsCreatedAfterLastCheckpoint(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("big.jsonl"), 100);
+        Path output = tempDir.resolve("output");
+        Path stateFile = tempDir.resolve("ingestion.state");
+        DirectoryIngestion ingestion = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withCheckpoints(stateFile, 10);
+
+        // the first run checkpoints big.jsonl at 40 elements in part-00000
+        DirectoryIngestion first = ingestion.withWorkers(1)
+                .withFileReader(file -> crashAfter(MappedJsonReader.open(file, "root"), 45, new CountDownLatch(1)));
+        assertThatThrownBy(() -> first.ingest(input, output)).hasMessageContaining("Crash");
+
+        // the second run appends 3 records of a new file to part-00001, and crashes before its first checkpoint
+        writeJson(input.resolve("small.jsonl"), 5);
+        CountDownLatch smallCrashed = new CountDownLatch(1);
+        DirectoryIngestion second = ingestion.withWorkers(2).withFileReader(file -> {
+            if (file.endsWith("big.jsonl")) {
+                try {
+                    smallCrashed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Crash");
+            }
+            return crashAfter(MappedJsonReader.open(file, "root"), 3, smallCrashed);
+        });
+        assertThatThrownBy(() -> second.ingest(input, output)).hasMessageContaining("Crash");
+        assertThat(Files.readAllLines(stateFile)).anyMatch(line -> line.startsWith("shard\tpart-00001.avro\t"));
+
+        // the last run needs one shard, part-00001 is truncated to its header rather than left with its records
+        DirectoryIngestion.Manifest manifest = ingestion.withWorkers(1).ingest(input, output);
+
+        assertThat(manifest.getRecords()).isEqualTo(105);
+        assertThat(readIds(output)).hasSize(105).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void resumeFilesWithTabsAndNewlinesInNames(@TempDir Path tempDir) throws IOException {
+        Path input = tempDir.resolve("input");
+        writeJson(input.resolve("big.jsonl"), 100);
+        writeJson(input.resolve("small.jsonl"), 10);
+        Files.move(input.resolve("big.jsonl"), input.resolve("big\tfile.jsonl"));
+        Files.move(input.resolve("small.jsonl"), input.resolve("small\nfile.jsonl"));
+        Path output = tempDir.resolve("output");
+        Path stateFile = tempDir.resolve("ingestion.state");
+        DirectoryIngestion ingestion = DirectoryIngestion
+                .forSchema(SchemaBuddy.parse(TestUtils.avroSchemaExtended()), ConversionOptions.defaults())
+                .withWorkers(1)
+                .withCheckpoints(stateFile, 10);
+
+        DirectoryIngestion failing = ingestion.withFileReader(file -> {
+            Iterator<DataElement> elements = MappedJsonReader.open(file, "root");
+            return file.toString().contains("big") ? crashAfter(elements, 45, new CountDownLatch(1)) : elements;
+        });
+        assertThatThrownBy(() -> failing.ingest(input, output)).hasMessageContaining("Crash");
+        // every checkpoint is appended to the state file, and a line cut short by a crash is ignored
+        List<String> lines = Files.readAllLines(stateFile);
+        assertThat(lines).anyMatch(line -> line.matches("shard\tpart-00000\\.avro\t\\d+\tbig\\\\tfile\\.jsonl\t10\t10\t0\t\\d+"));
+        assertThat(lines).anyMatch(line -> line.matches("shard\tpart-00000\\.avro\t\\d+\tbig\\\\tfile\\.jsonl\t40\t40\t0\t\\d+"));
+        Files.write(stateFile, "shard\tpart-00000.avro\t99".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        DirectoryIngestion.Manifest manifest = ingestion.ingest(input, output);
+
+        assertThat(manifest.getEntries()).extracting(DirectoryIngestion.Entry::getFile)
+                .containsExactly("big\tfile.jsonl", "small\nfile.jsonl");
+        assertThat(manifest.getRecords()).isEqualTo(110);
+        assertThat(readIds(output)).hasSize(110).doesNotHaveDuplicates();
+        List<String> manifestLines = Files.readAllLines(output.resolve(DirectoryIngestion.MANIFEST_FILE));
+        assertThat(manifestLines).hasSize(3);
+        assertThat(manifestLines.get(1)).startsWith("big\\tfile.jsonl\tpart-00000.avro\t100\t");
+        assertThat(manifestLines.get(2)).startsWith("small\\nfile.jsonl\t");
+    }
+
+    // Reads count elements, then counts down crashed and fails
+    private static Iterator<DataElement> crashAfter(Iterator<DataElement> elements, int count, CountDownLatch crashed) {
+        return new Iterator<DataElement>() {
+            private int read;
+
+            @Override
+            public boolean hasNext() {
+                return elements.hasNext();
+            }
+
+            @Override
+            public DataElement next() {
+                if (++read > count) {
+                    crashed.countDown();
+                    throw new IllegalStateException("Crash");
+                }
+                return elements.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MappedJsonReaderTest {
+
+    private static List<DataElement> readAll(MappedJsonReader reader) {
+        List<DataElement> elements = new ArrayList<>();
+        reader.forEachRemaining(elements::add);
+        return elements;
+    }
+
+    @Test
+    void readArrayOfRecords(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("persons.json");
+        Files.write(file, ("[\n" +
+                "  {\"id\": \"007\", \"person\": [{\"name\": \"James \\\"Bond\\\"\", \"sex\": \"Male\"}, {\"name\": \"Miss Moneypenny\", \"sex\": null}],\n" +
+                "   \"languages\": [\"en\", \"no\"]},\n" +
+                "  {\"id\": \"008\", \"person\": [], \"languages\": [\"bl\\u00e5bær\"]}\n" +
+                "]").getBytes(StandardCharsets.UTF_8));
+
+        List<DataElement> elements = readAll(MappedJsonReader.open(file, "root"));
+
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        assertThat(elements).hasSize(2);
+        assertThat(SchemaAwareElement.toRecord(elements.get(0), schemaBuddy).toString()).isEqualTo(
+                "{\"id\": \"007\", \"person\": [{\"name\": \"James \\\"Bond\\\"\", \"sex\": \"Male\"}, " +
+                        "{\"name\": \"Miss Moneypenny\", \"sex\": null}], \"languages\": [\"en\", \"no\"]}");
+        assertThat(elements.get(1).toString(true)).isEqualTo(String.format("root value:null%n" +
+                " |-- id value:008%n" +
+                " |-- languages value:blåbær%n"));
+    }
+
+    @Test
+    void readJsonLinesWithPathFilter(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("persons.jsonl");
+        Files.write(file, ("{\"id\": 1, \"skipped\": {\"deep\": [1, {\"a\": \"}\"}]}, \"person\": {\"name\": \"A\", \"sex\": \"F\"}, \"flag\": true}\n" +
+                "{\"id\": 2.5e3, \"person\": {\"name\": \"B\"}}\n").getBytes(StandardCharsets.UTF_8));
+        PathFilter pathFilter = PathFilter.of(Arrays.asList("/root/id", "/root/person/name", "/root/flag"));
+
+        List<DataElement> elements = readAll(MappedJsonReader.open(file, "root", pathFilter));
+
+        assertThat(elements).extracting(element -> element.toString(true)).containsExactly(
+                String.format("root value:null%n |-- id value:1%n |-- person value:null%n |    |-- name value:A%n |-- flag value:true%n"),
+                String.format("root value:null%n |-- id value:2.5e3%n |-- person value:null%n |    |-- name value:B%n"));
+    }
+
+    @Test
+    void failOnMalformedJson(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("broken.json");
+        Files.write(file, "{\"id\" 1}".getBytes(StandardCharsets.UTF_8));
+
+        MappedJsonReader reader = MappedJsonReader.open(file, "root");
+        assertThatThrownBy(reader::next)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Expected ':' at offset 6");
+
+        Files.write(file, "{\"id\": \"\\u00".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(MappedJsonReader.open(file, "root")::next)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Expected 4 hex digits after \\u at offset 12");
+        Files.write(file, "{\"id\": \"\\".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(MappedJsonReader.open(file, "root")::next)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Unterminated string at offset 9");
+    }
+
+    @Test
+    void readUtf8Values(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("persons.jsonl");
+        Files.write(file, "{\"id\": \"blåbær\", \"person\": {\"name\": \"\\\"Q\\\"\", \"sex\": null}, \"count\": 42}\n"
+                .getBytes(StandardCharsets.UTF_8));
+
+        DataElement element = MappedJsonReader.open(file, "root").withUtf8Values(true).next();
+
+        assertThat(element.findChildByName("id").getCharSequence()).isEqualTo(new Utf8("blåbær"));
+        assertThat(element.findChildByName("count").getCharSequence()).isEqualTo(new Utf8("42"));
+        DataElement person = element.findChildByName("person");
+        assertThat(person.findChildByName("name").getCharSequence()).isEqualTo("\"Q\"");
+        assertThat(person.findChildByName("sex").getCharSequence()).isNull();
+        assertThat(element.findChildByName("id").getValue()).isEqualTo("blåbær");
+    }
+
+    @Test
+    void failOnDeepOrLargeRecords(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("deep.json");
+        StringBuilder deep = new StringBuilder("{\"a\": ");
+        for (int i = 0; i < 100_000; i++) {
+            deep.append('[');
+        }
+        Files.write(file, deep.toString().getBytes(StandardCharsets.UTF_8));
+        Path nested = tempDir.resolve("nested.json");
+        Files.write(nested, "{\"a\": {\"b\": {\"c\": 1}}, \"d\": [1, 2]}".getBytes(StandardCharsets.UTF_8));
+
+        assertThatThrownBy(() -> MappedJsonReader.open(file, "root").next())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Record is nested deeper than maxDepth 1000 at offset 1006");
+        assertThat(MappedJsonReader.open(nested, "root").withMaxDepth(2).withMaxNodes(6).next().countNodes()).isEqualTo(6);
+        assertThatThrownBy(() -> MappedJsonReader.open(nested, "root").withMaxDepth(1).next())
+                .hasMessageStartingWith("Record is nested deeper than maxDepth 1");
+        assertThatThrownBy(() -> MappedJsonReader.open(nested, "root").withMaxNodes(5).next())
+                .hasMessageStartingWith("Record has more than maxNodes 5 elements");
+    }
+
+    @Test
+    void readDeepRecordsWithoutRecursion(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("deep.json");
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            deep.append("{\"a\": [");
+        }
+        deep.append('1');
+        for (int i = 0; i < 100_000; i++) {
+            deep.append("]}");
+        }
+        Files.write(file, deep.toString().getBytes(StandardCharsets.UTF_8));
+
+        // the root, 99 999 objects and the innermost value, as array elements are children of the enclosing object
+        assertThat(MappedJsonReader.open(file, "root").withMaxDepth(Integer.MAX_VALUE).next().countNodes()).isEqualTo(100_001);
+    }
+}
@@ -0,0 +1,144 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MappedXmlReaderTest {
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<!-- export -->\n" +
+            "<export date=\"2020-01-01\">\n" +
+            "  <root id=\"007\">\n" +
+            "    <person><name>James &amp; Bond</name><sex>Male</sex></person>\n" +
+            "    <person><name><![CDATA[Miss <Moneypenny>]]></name><sex/></person>\n" +
+            "    <languages>en</languages>\n" +
+            "    <languages>bl&#229;bær</languages>\n" +
+            "  </root>\n" +
+            "  <root id=\"008\"><person><name>Q</name></person><languages>en</languages></root>\n" +
+            "</export>\n";
+
+    private static List<DataElement> readAll(MappedXmlReader reader) {
+        List<DataElement> elements = new ArrayList<>();
+        reader.forEachRemaining(elements::add);
+        return elements;
+    }
+
+    @Test
+    void readRecords(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("export.xml");
+        Files.write(file, XML.getBytes(StandardCharsets.UTF_8));
+
+        List<DataElement> elements = readAll(MappedXmlReader.open(file, "root"));
+
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        assertThat(elements).hasSize(2);
+        assertThat(SchemaAwareElement.toRecord(elements.get(0), schemaBuddy).toString()).isEqualTo(
+                "{\"id\": \"007\", \"person\": [{\"name\": \"James & Bond\", \"sex\": \"Male\"}, " +
+                        "{\"name\": \"Miss <Moneypenny>\", \"sex\": null}], \"languages\": [\"en\", \"blåbær\"]}");
+        assertThat(SchemaAwareElement.toRecord(elements.get(1), schemaBuddy).toString()).isEqualTo(
+                "{\"id\": \"008\", \"person\": [{\"name\": \"Q\", \"sex\": null}], \"languages\": [\"en\"]}");
+    }
+
+    @Test
+    void skipElementsNotInPathFilter(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("export.xml");
+        Files.write(file, XML.getBytes(StandardCharsets.UTF_8));
+        PathFilter pathFilter = PathFilter.of(Arrays.asList("/root/id", "/root/person/sex"));
+
+        List<DataElement> elements = readAll(MappedXmlReader.open(file, "root", pathFilter));
+
+        assertThat(elements).extracting(element -> element.toString(true)).containsExactly(
+                String.format("root value:null%n |-- id value:007%n" +
+                        " |-- person value:null%n |    |-- sex value:Male%n" +
+                        " |-- person value:null%n |    |-- sex value:null%n"),
+                String.format("root value:null%n |-- id value:008%n |-- person value:null%n"));
+    }
+
+    @Test
+    void readUtf8Values(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("export.xml");
+        Files.write(file, XML.getBytes(StandardCharsets.UTF_8));
+
+        List<DataElement> elements = readAll(MappedXmlReader.open(file, "root").withUtf8Values(true));
+
+        DataElement root = elements.get(0);
+        assertThat(root.findChildByName("id").getCharSequence()).isEqualTo(new Utf8("007"));
+        assertThat(root.findChildByName("person").findChildByName("sex").getCharSequence()).isEqualTo(new Utf8("Male"));
+        assertThat(root.findChildByName("person").findChildByName("name").getCharSequence()).isEqualTo("James & Bond");
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        assertThat(SchemaAwareElement.toRecord(root, schemaBuddy).toString()).isEqualTo(
+                "{\"id\": \"007\", \"person\": [{\"name\": \"James & Bond\", \"sex\": \"Male\"}, " +
+                        "{\"name\": \"Miss <Moneypenny>\", \"sex\": null}], \"languages\": [\"en\", \"blåbær\"]}");
+    }
+
+    @Test
+    void failOnMalformedAttributes(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("broken.xml");
+        Files.write(file, "<root id 1><a>1</a></root>".getBytes(StandardCharsets.UTF_8));
+        Path unquoted = tempDir.resolve("unquoted.xml");
+        Files.write(unquoted, "<root id=1><a>1</a></root>".getBytes(StandardCharsets.UTF_8));
+
+        assertThatThrownBy(() -> MappedXmlReader.open(file, "root").next())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Expected '=' after attribute id at offset 9");
+        assertThatThrownBy(() -> MappedXmlReader.open(unquoted, "root").next())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Expected a quoted value of attribute id at offset 9");
+    }
+
+    @Test
+    void failOnInvalidCharacterReferences(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("references.xml");
+        for (String reference : new String[]{"&#xZZ;", "&#;", "&#x;", "&#1114112;", "&#xD800;", "&#0;", "&#99999999999;"}) {
+            Files.write(file, ("<root><a>x" + reference + "</a></root>").getBytes(StandardCharsets.UTF_8));
+
+            assertThatThrownBy(() -> MappedXmlReader.open(file, "root").next())
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageStartingWith("Invalid character reference " + reference + " at offset 10");
+        }
+        Files.write(file, "<root><a>&#x1F600;&#65;</a></root>".getBytes(StandardCharsets.UTF_8));
+        assertThat(MappedXmlReader.open(file, "root").next().findChildByName("a").getValue()).isEqualTo("\uD83D\uDE00A");
+    }
+
+    @Test
+    void failOnDeepOrLargeRecords(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("nested.xml");
+        Files.write(file, "<root id=\"1\"><a><b><c>1</c></b></a></root>".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(MappedXmlReader.open(file, "root").withMaxDepth(3).withMaxNodes(5).next().countNodes()).isEqualTo(5);
+        assertThatThrownBy(() -> MappedXmlReader.open(file, "root").withMaxDepth(2).next())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Record is nested deeper than maxDepth 2");
+        assertThatThrownBy(() -> MappedXmlReader.open(file, "root").withMaxNodes(4).next())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Record has more than maxNodes 4 elements");
+    }
+
+    @Test
+    void readDeepRecordsWithoutRecursion(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("deep.xml");
+        StringBuilder deep = new StringBuilder("<root>");
+        for (int i = 0; i < 100_000; i++) {
+            deep.append("<a>");
+        }
+        deep.append('1');
+        for (int i = 0; i < 100_000; i++) {
+            deep.append("</a>");
+        }
+        Files.write(file, deep.append("</root>").toString().getBytes(StandardCharsets.UTF_8));
+
+        assertThat(MappedXmlReader.open(file, "root").withMaxDepth(Integer.MAX_VALUE).next().countNodes()).isEqualTo(100_001);
+    }
+}
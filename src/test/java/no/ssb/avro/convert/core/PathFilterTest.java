@@ -0,0 +1,66 @@
+package no.ssb.avro.convert.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PathFilterTest {
+
+    @Test
+    void explicitPaths() {
+        PathFilter pathFilter = PathFilter.of(Arrays.asList("/root/id", "/root/person/name"));
+
+        assertThat(pathFilter.isNeeded("/root")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/id")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person/name")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person/name/first")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person/sex")).isFalse();
+        assertThat(pathFilter.isNeeded("/root/languages")).isFalse();
+        assertThat(pathFilter.isNeeded("/rootx/id")).isFalse();
+        assertThat(pathFilter.isNeeded("/other")).isFalse();
+    }
+
+    @Test
+    void fromSchema() {
+        SchemaBuddy projection = SchemaBuddy.parse(TestUtils.avroSchemaExtended())
+                .project(Arrays.asList("/root/id", "/root/person/sex"));
+        PathFilter pathFilter = PathFilter.from(projection);
+
+        assertThat(pathFilter.isNeeded("/root/id")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person/sex")).isTrue();
+        assertThat(pathFilter.isNeeded("/root/person/name")).isFalse();
+        assertThat(pathFilter.isNeeded("/root/languages")).isFalse();
+    }
+
+    @Test
+    void descendByNode() {
+        PathFilter pathFilter = PathFilter.of(Arrays.asList("/root/id", "/root/person"));
+
+        PathFilter.Node person = pathFilter.root().child("person");
+        assertThat(person).isNotNull();
+        assertThat(person.isAll()).isTrue();
+        assertThat(person.child("anything")).isNotNull();
+        assertThat(pathFilter.root().child("languages")).isNull();
+        assertThat(PathFilter.all().isNeeded("/any/path")).isTrue();
+    }
+
+    @Test
+    void builderSkipsUnneededElements() {
+        DataElement dataElement = DataElementBuilder.root("root")
+                .withPathFilter(PathFilter.of(Arrays.asList("/root/id", "/root/person")))
+                .addValue("id", "007")
+                .addValue("languages", "en")
+                .addChild(DataElementBuilder.root("person").addValue("name", "James Bond").build())
+                .build();
+
+        assertThat(dataElement.toString(true)).isEqualTo("" +
+                "root value:null\n" +
+                " |-- id value:007\n" +
+                " |-- person value:null\n" +
+                " |    |-- name value:James Bond\n");
+    }
+}
@@ -0,0 +1,64 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PrimitiveArraysTest {
+
+    private static final Schema LONGS = SchemaBuilder.array().items().longType();
+
+    @Test
+    void actAsList() {
+        PrimitiveArrays.LongArray array = new PrimitiveArrays.LongArray(2, LONGS);
+        array.addLong(1);
+        array.add(3L);
+        array.add(1, 2L);
+        array.add(4L);
+        List<Long> list = array;
+
+        assertThat(list).containsExactly(1L, 2L, 3L, 4L);
+        assertThat(array.getLong(1)).isEqualTo(2L);
+        assertThat(array.set(0, 5L)).isEqualTo(1L);
+        assertThat(array.remove(1)).isEqualTo(2L);
+        assertThat(list).containsExactly(5L, 3L, 4L);
+        array.reverse();
+        assertThat(list).containsExactly(4L, 3L, 5L);
+        assertThat(list).isEqualTo(Arrays.asList(4L, 3L, 5L));
+        assertThat(array.toString()).isEqualTo("[4, 3, 5]");
+        assertThat(array.getSchema()).isEqualTo(LONGS);
+
+        array.clear();
+        assertThat(list).isEmpty();
+        assertThatThrownBy(() -> array.getLong(0)).isInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> array.add(null)).isInstanceOf(NullPointerException.class);
+    }
+
+    @Test
+    void createForElementType() {
+        assertThat((Object) PrimitiveArrays.create(LONGS, 0)).isInstanceOf(PrimitiveArrays.LongArray.class);
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().intType(), 0)).isInstanceOf(PrimitiveArrays.IntArray.class);
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().doubleType(), 0)).isInstanceOf(PrimitiveArrays.DoubleArray.class);
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().floatType(), 0)).isInstanceOf(PrimitiveArrays.FloatArray.class);
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().booleanType(), 0)).isInstanceOf(PrimitiveArrays.BooleanArray.class);
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().stringType(), 0)).isNull();
+        assertThat((Object) PrimitiveArrays.create(SchemaBuilder.array().items().nullable().longType(), 0)).isNull();
+    }
+
+    @Test
+    void compareAsGenericArrays() {
+        PrimitiveArrays.LongArray array = new PrimitiveArrays.LongArray(0, LONGS);
+        array.addLong(1);
+        array.addLong(2);
+
+        assertThat(array.compareTo(new GenericData.Array<>(LONGS, Arrays.asList(1L, 3L)))).isNegative();
+        assertThat(GenericData.get().validate(LONGS, array)).isTrue();
+    }
+}
@@ -0,0 +1,92 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class RecordSizeEstimatorTest {
+
+    private static final Schema SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().longType().noDefault()
+            .name("small").type().intType().noDefault()
+            .name("ratio").type().doubleType().noDefault()
+            .name("flag").type().booleanType().noDefault()
+            .name("comment").type().optional().stringType()
+            .name("tags").type().array().items().stringType().noDefault()
+            .name("person").type().array().items().record("person").fields()
+            .name("name").type().stringType().noDefault()
+            .name("age").type().optional().intType()
+            .endRecord().noDefault()
+            .endRecord();
+
+    private static long encodedSize(GenericRecord record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+        encoder.flush();
+        return out.size();
+    }
+
+    private static DataElement dataElement(int persons) {
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                .addValue("id", "blåbær-😀")
+                .addValue("count", "-1234567890123")
+                .addValue("small", "300")
+                .addValue("ratio", "0.5")
+                .addValue("flag", "true")
+                .addValue("tags", "a")
+                .addValue("tags", "bb");
+        for (int i = 0; i < persons; i++) {
+            builder.addChild(DataElementBuilder.root("person")
+                    .addValue("name", "person" + i)
+                    .addValue("age", String.valueOf(i * 7))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    @Test
+    void estimateRecordsExactly() throws IOException {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        RecordSizeEstimator estimator = RecordSizeEstimator.forSchema(schemaBuddy);
+
+        for (int persons : new int[]{1, 2, 100}) {
+            GenericRecord record = SchemaAwareElement.toRecord(dataElement(persons), schemaBuddy);
+            assertThat(estimator.estimate(record)).isEqualTo(encodedSize(record));
+        }
+    }
+
+    @Test
+    void estimateDataElementsApproximately() throws IOException {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        RecordSizeEstimator estimator = RecordSizeEstimator.forSchema(schemaBuddy);
+
+        for (int persons : new int[]{1, 2, 100}) {
+            DataElement dataElement = dataElement(persons);
+            long encoded = encodedSize(SchemaAwareElement.toRecord(dataElement, schemaBuddy));
+            assertThat((double) estimator.estimate(dataElement)).isCloseTo(encoded, within(encoded * 0.1));
+        }
+    }
+
+    @Test
+    void computeVarLongSizes() {
+        assertThat(RecordSizeEstimator.varLongSize(0)).isEqualTo(1);
+        assertThat(RecordSizeEstimator.varLongSize(-64)).isEqualTo(1);
+        assertThat(RecordSizeEstimator.varLongSize(64)).isEqualTo(2);
+        assertThat(RecordSizeEstimator.varLongSize(Long.MIN_VALUE)).isEqualTo(10);
+        assertThat(RecordSizeEstimator.utf8Length("blåbær😀")).isEqualTo(12);
+    }
+}
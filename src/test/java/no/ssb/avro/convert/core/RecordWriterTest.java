@@ -0,0 +1,93 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RecordWriterTest {
+
+    private static final Schema SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().intType().intDefault(42)
+            .name("label").type().stringType().stringDefault("none")
+            .name("tags").type().array().items().stringType().arrayDefault(Collections.emptyList())
+            .endRecord();
+
+    private static final ConversionOptions TRUSTED = ConversionOptions.defaults().withTrustedFastPath(true);
+
+    @Test
+    void fillDefaultsLikeTheBuilder() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+
+        RecordWriter builder = RecordWriter.create(schemaBuddy, ConversionOptions.defaults());
+        builder.set("id", "007");
+        RecordWriter direct = RecordWriter.create(schemaBuddy, TRUSTED);
+        direct.set("id", "007");
+
+        GenericRecord record = direct.build();
+        assertThat(record).isEqualTo(builder.build());
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"count\": 42, \"label\": \"none\", \"tags\": []}");
+    }
+
+    @Test
+    void shareImmutableDefaultsAndCopyMutableDefaults() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+
+        RecordWriter first = RecordWriter.create(schemaBuddy, TRUSTED);
+        first.set("id", "1");
+        RecordWriter second = RecordWriter.create(schemaBuddy, TRUSTED);
+        second.set("id", "2");
+        GenericRecord firstRecord = first.build();
+        GenericRecord secondRecord = second.build();
+
+        assertThat(firstRecord.get("label")).isSameAs(secondRecord.get("label"));
+        assertThat(firstRecord.get("tags")).isNotSameAs(secondRecord.get("tags"));
+    }
+
+    @Test
+    void clearRestoresDefault() {
+        RecordWriter direct = RecordWriter.create(SchemaBuddy.parse(SCHEMA), TRUSTED);
+        direct.set("id", "007");
+        direct.set("count", 1);
+        direct.clear("count");
+
+        assertThat(direct.build().get("count")).isEqualTo(42);
+    }
+
+    @Test
+    void failOnMissingFieldWithoutDefault() {
+        RecordWriter direct = RecordWriter.create(SchemaBuddy.parse(SCHEMA), TRUSTED);
+
+        assertThatThrownBy(direct::build)
+                .isInstanceOf(AvroRuntimeException.class)
+                .hasMessageContaining("not set and has no default value");
+    }
+
+    @Test
+    void validateOnlyWhenEnabled() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+
+        RecordWriter trusted = RecordWriter.create(schemaBuddy, TRUSTED);
+        trusted.set("id", null);
+        assertThat(trusted.build().get("id")).isNull();
+
+        RecordWriter validating = RecordWriter.create(schemaBuddy, TRUSTED.withValidation(true));
+        assertThatThrownBy(() -> validating.set("id", null))
+                .isInstanceOf(AvroRuntimeException.class)
+                .hasMessageContaining("does not accept null values");
+        validating.set("count", null);
+
+        assertThatThrownBy(() -> validating.set("unknown", "x"))
+                .isInstanceOf(AvroRuntimeException.class)
+                .hasMessage("Not a valid schema field: unknown");
+    }
+}
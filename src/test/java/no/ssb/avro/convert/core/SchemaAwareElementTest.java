@@ -5,10 +5,24 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class SchemaAwareElementTest {
 
@@ -274,4 +288,422 @@ class SchemaAwareElementTest {
 
         assertThat(json).isEqualTo(expectedRecords);
     }
-}
\ No newline at end of file
+
+    private static final Schema NUMBERS_SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().longType().noDefault()
+            .name("withDefault").type().intType().intDefault(42)
+            .name("optional").type().optional().doubleType()
+            .endRecord();
+
+    private static DataElement badNumbers() {
+        return DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("count", "one")
+                .addValue("withDefault", "two")
+                .addValue("optional", "three")
+                .build();
+    }
+
+    @Test
+    void failOnBadValueByDefault() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(NUMBERS_SCHEMA);
+
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(badNumbers(), schemaBuddy))
+                .isInstanceOf(ConversionException.class)
+                .hasMessageContaining("For input string: \"one\"")
+                .hasMessageContaining("data:(count value:one");
+    }
+
+    @Test
+    void collectErrorsAndSkipFields() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(NUMBERS_SCHEMA);
+        List<ConversionError> errors = new ArrayList<>();
+        ConversionOptions options = ConversionOptions.defaults()
+                .withErrorPolicy(ErrorPolicy.SKIP_FIELD)
+                .withErrorSink(errors::add);
+
+        GenericRecord record = SchemaAwareElement.toRecord(badNumbers(), schemaBuddy, options);
+
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"count\": 0, \"withDefault\": 42, \"optional\": null}");
+        assertThat(errors).extracting(ConversionError::toString).containsExactly(
+                "/root/count expected:LONG value:one",
+                "/root/withDefault expected:INT value:two",
+                "/root/optional expected:DOUBLE value:three"
+        );
+    }
+
+    @Test
+    void dropRecordOnError() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(NUMBERS_SCHEMA);
+        List<String> dropped = new ArrayList<>();
+        ConversionOptions options = ConversionOptions.defaults()
+                .withErrorPolicy(ErrorPolicy.DROP_RECORD)
+                .withErrorSink(new ConversionError.Sink() {
+                    @Override
+                    public void onError(ConversionError error) {
+                        dropped.add(error.getPath());
+                    }
+
+                    @Override
+                    public void onRecordDropped(DataElement dataElement) {
+                        dropped.add("dropped " + dataElement.getName());
+                    }
+                });
+
+        assertThat(SchemaAwareElement.toRecord(badNumbers(), schemaBuddy, options)).isNull();
+        assertThat(dropped).containsExactly("/root/count", "dropped root");
+    }
+
+    @Test
+    void convertProjection() {
+        SchemaBuddy projection = SchemaBuddy.parse(TestUtils.avroSchemaExtended())
+                .project(Arrays.asList("/root/id", "/root/person/name"));
+
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("unknown", "not in schema")
+                .addChild(DataElementBuilder
+                        .root("person")
+                        .addValue("name", "James Bond")
+                        .addValue("sex", "Male").build())
+                .addValue("languages", "en")
+                .build();
+
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(dataElement, projection))
+                .hasMessageStartingWith("Could not find:unknown");
+
+        GenericRecord record = SchemaAwareElement.toRecord(dataElement, projection,
+                ConversionOptions.defaults().withIgnoreUnknownFields(true));
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"person\": [{\"name\": \"James Bond\"}]}");
+    }
+
+    @Test
+    void convertLargeArrayInParallel() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("languages", "en");
+        for (int i = 0; i < 10_000; i++) {
+            builder.addChild(DataElementBuilder.root("person").addValue("name", "person" + i).build());
+        }
+        DataElement dataElement = builder.build();
+
+        GenericRecord sequential = SchemaAwareElement.toRecord(dataElement, schemaBuddy);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        GenericRecord parallel;
+        try {
+            parallel = SchemaAwareElement.toRecord(dataElement, schemaBuddy,
+                    ConversionOptions.defaults().withParallelArrays(100, pool));
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(parallel).isEqualTo(sequential);
+        assertThat(((List<?>) parallel.get("person")).get(9_999).toString()).isEqualTo("{\"name\": \"person9999\", \"sex\": null}");
+    }
+
+    @Test
+    void trustedFastPathGivesSameRecords() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("languages", "en")
+                .addValue("languages", "no");
+        for (int i = 0; i < 10; i++) {
+            builder.addChild(DataElementBuilder.root("person").addValue("name", "person" + i).build());
+        }
+        DataElement dataElement = builder.build();
+
+        GenericRecord trusted = SchemaAwareElement.toRecord(dataElement, schemaBuddy,
+                ConversionOptions.defaults().withTrustedFastPath(true));
+
+        assertThat(trusted).isEqualTo(SchemaAwareElement.toRecord(dataElement, schemaBuddy));
+    }
+
+    @Test
+    void trustedFastPathHandlesErrorsLikeTheBuilder() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(NUMBERS_SCHEMA);
+        ConversionOptions options = ConversionOptions.defaults().withErrorPolicy(ErrorPolicy.SKIP_FIELD);
+
+        GenericRecord trusted = SchemaAwareElement.toRecord(badNumbers(), schemaBuddy, options.withTrustedFastPath(true));
+
+        assertThat(trusted).isEqualTo(SchemaAwareElement.toRecord(badNumbers(), schemaBuddy, options));
+        assertThat(trusted.toString()).isEqualTo("{\"id\": \"007\", \"count\": 0, \"withDefault\": 42, \"optional\": null}");
+    }
+
+    private static final Schema MISSING_SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("code").type().stringType().stringDefault("unknown")
+            .name("count").type().longType().noDefault()
+            .endRecord();
+
+    private static DataElement missingValues() {
+        return DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("code", null)
+                .addValue("count", null)
+                .build();
+    }
+
+    @Test
+    void usePlaceholderForMissingValuesByDefault() {
+        GenericRecord record = SchemaAwareElement.toRecord(missingValues(), SchemaBuddy.parse(MISSING_SCHEMA));
+
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"code\": \"null\", \"count\": 0}");
+    }
+
+    @Test
+    void useAvroDefaultForMissingValues() {
+        ConversionOptions options = ConversionOptions.defaults().withMissingValuePolicy(MissingValuePolicy.AVRO_DEFAULT);
+
+        GenericRecord record = SchemaAwareElement.toRecord(missingValues(), SchemaBuddy.parse(MISSING_SCHEMA), options);
+
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"code\": \"unknown\", \"count\": 0}");
+        assertThat(SchemaAwareElement.toRecord(missingValues(), SchemaBuddy.parse(MISSING_SCHEMA), options.withTrustedFastPath(true)))
+                .isEqualTo(record);
+    }
+
+    @Test
+    void failOnMissingValues() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(MISSING_SCHEMA);
+        ConversionOptions options = ConversionOptions.defaults().withMissingValuePolicy(MissingValuePolicy.FAIL);
+
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(missingValues(), schemaBuddy, options))
+                .isInstanceOf(ConversionException.class)
+                .hasMessageContaining("Missing value for required field")
+                .hasMessageContaining("data:(code value:null");
+
+        List<String> errors = new ArrayList<>();
+        GenericRecord record = SchemaAwareElement.toRecord(missingValues(), schemaBuddy, options
+                .withErrorPolicy(ErrorPolicy.DEFAULT)
+                .withErrorSink(error -> errors.add(error.getPath())));
+        assertThat(record.toString()).isEqualTo("{\"id\": \"007\", \"code\": \"unknown\", \"count\": 0}");
+        assertThat(errors).containsExactly("/root/code", "/root/count");
+    }
+
+    @Test
+    void keepOptionalMapWithoutValueNull() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SchemaBuilder.record("root").fields()
+                .name("id").type().stringType().noDefault()
+                .name("labels").type().optional().map().values().stringType()
+                .endRecord());
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("labels", null)
+                .build();
+
+        GenericRecord record = SchemaAwareElement.toRecord(dataElement, schemaBuddy);
+
+        assertThat(record.get("labels")).isNull();
+        assertThat(CompiledConverter.forSchema(schemaBuddy, ConversionOptions.defaults()).convert(dataElement)).isEqualTo(record);
+    }
+
+    private static final Schema UTF8_SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("id").type().stringType().noDefault()
+            .name("count").type().longType().noDefault()
+            .name("small").type().intType().noDefault()
+            .name("ratio").type().doubleType().noDefault()
+            .name("flag").type().booleanType().noDefault()
+            .name("tags").type().array().items().stringType().noDefault()
+            .endRecord();
+
+    private static DataElement utf8Values() {
+        DataElement root = new DataElement("root");
+        String[][] values = {{"id", "blåbær"}, {"count", "-1234567890123"}, {"small", "-42"}, {"ratio", "0.5"},
+                {"flag", "TRUE"}, {"tags", "a"}, {"tags", "b"}};
+        for (String[] value : values) {
+            DataElement child = new DataElement(value[0]);
+            child.setUtf8Value(new Utf8(value[1]));
+            root.addChild(child);
+        }
+        return root;
+    }
+
+    @Test
+    void convertUtf8ValuesToStringsByDefault() {
+        GenericRecord record = SchemaAwareElement.toRecord(utf8Values(), SchemaBuddy.parse(UTF8_SCHEMA));
+
+        assertThat(record.toString()).isEqualTo("{\"id\": \"blåbær\", \"count\": -1234567890123, \"small\": -42, " +
+                "\"ratio\": 0.5, \"flag\": true, \"tags\": [\"a\", \"b\"]}");
+        assertThat(record.get("id")).isInstanceOf(String.class);
+    }
+
+    @Test
+    void keepUtf8ValuesWithUtf8Strings() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(UTF8_SCHEMA);
+        ConversionOptions options = ConversionOptions.defaults().withUtf8Strings(true);
+
+        GenericRecord record = SchemaAwareElement.toRecord(utf8Values(), schemaBuddy, options);
+
+        assertThat(record.get("id")).isEqualTo(new Utf8("blåbær"));
+        assertThat((List<?>) record.get("tags")).allMatch(tag -> tag instanceof Utf8);
+        assertThat(record.toString()).isEqualTo(SchemaAwareElement.toRecord(utf8Values(), schemaBuddy).toString());
+        assertThat(SchemaAwareElement.toRecord(utf8Values(), schemaBuddy, options.withTrustedFastPath(true)))
+                .isEqualTo(record);
+    }
+
+    private static DataElement persons(int count) {
+        DataElement root = new DataElement("root");
+        root.addChild(new DataElement("id", "007"));
+        root.addChild(new DataElement("languages", "en"));
+        for (int i = 0; i < count; i++) {
+            DataElement person = new DataElement("person");
+            person.addChild(new DataElement("name", "name" + i));
+            person.addChild(new DataElement("sex", "Female"));
+            root.addChild(person);
+        }
+        return root;
+    }
+
+    @Test
+    void failOnRecordsDeeperThanMaxDepth() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+
+        assertThat(SchemaAwareElement.toRecord(persons(2), schemaBuddy, ConversionOptions.defaults().withMaxDepth(2))).isNotNull();
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(persons(2), schemaBuddy, ConversionOptions.defaults().withMaxDepth(1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Data element /root/person/name is deeper than maxDepth 1");
+    }
+
+    @Test
+    void convertDeepRecordsWithoutRecursion() throws InterruptedException {
+        Schema schema = SchemaBuilder.record("r1000").fields().name("value").type().stringType().noDefault().endRecord();
+        for (int i = 999; i >= 0; i--) {
+            schema = SchemaBuilder.record(i == 0 ? "root" : "r" + i).fields().name("child").type(schema).noDefault().endRecord();
+        }
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(schema);
+        DataElement root = new DataElement("root");
+        DataElement element = root;
+        for (int i = 0; i < 1000; i++) {
+            DataElement child = new DataElement("child");
+            element.addChild(child);
+            element = child;
+        }
+        element.addChild(new DataElement("value", "deep"));
+        ConversionOptions options = ConversionOptions.defaults().withMaxDepth(1001);
+
+        // a stack where building 1000 nested records recursively overflows
+        Object[] result = new Object[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                result[0] = SchemaAwareElement.toRecord(root, schemaBuddy, options);
+            } catch (Throwable t) {
+                result[0] = t;
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+
+        assertThat(result[0]).isInstanceOf(GenericRecord.class);
+    }
+
+    @Test
+    void failOnRecordsWithMoreThanMaxNodes() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        ConversionOptions options = ConversionOptions.defaults().withMaxNodes(303);
+
+        // root, id, languages and 3 elements per person
+        assertThat(SchemaAwareElement.toRecord(persons(100), schemaBuddy, options)).isNotNull();
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(persons(101), schemaBuddy, options))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Record has more than maxNodes 303 data elements");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertThatThrownBy(() -> SchemaAwareElement.toRecord(persons(101), schemaBuddy, options.withParallelArrays(10, pool)))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("Record has more than maxNodes 303 data elements");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final Schema TYPED_ARRAYS_SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("longs").type().array().items().longType().noDefault()
+            .name("ints").type().array().items().intType().noDefault()
+            .name("doubles").type().array().items().doubleType().noDefault()
+            .name("flags").type().array().items().booleanType().noDefault()
+            .name("nullableLongs").type().array().items().nullable().longType().noDefault()
+            .name("strings").type().optional().array().items().stringType()
+            .endRecord();
+
+    private static DataElement typedArrays(String... longs) {
+        DataElementBuilder.RootBuilder root = DataElementBuilder.root("root");
+        for (String value : longs) {
+            root.addValue("longs", value);
+        }
+        return root.addValue("ints", "1").addValue("ints", "-2")
+                .addValue("doubles", "0.5")
+                .addValue("flags", "true").addValue("flags", "false")
+                .addValue("nullableLongs", "1").addValue("nullableLongs", null)
+                .addValue("strings", "a")
+                .build();
+    }
+
+    @Test
+    void convertArraysByElementType() throws IOException {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TYPED_ARRAYS_SCHEMA);
+
+        GenericRecord record = SchemaAwareElement.toRecord(typedArrays("10", "-20", "30"), schemaBuddy);
+
+        assertThat(record.toString()).isEqualTo("{\"longs\": [10, -20, 30], \"ints\": [1, -2], \"doubles\": [0.5], " +
+                "\"flags\": [true, false], \"nullableLongs\": [1, null], \"strings\": [\"a\"]}");
+        assertThat(record.get("longs")).isInstanceOf(PrimitiveArrays.LongArray.class);
+        assertThat(((PrimitiveArrays.LongArray) record.get("longs")).getLong(1)).isEqualTo(-20L);
+        assertThat(record.get("ints")).isInstanceOf(PrimitiveArrays.IntArray.class);
+        assertThat(record.get("doubles")).isInstanceOf(PrimitiveArrays.DoubleArray.class);
+        assertThat(record.get("flags")).isInstanceOf(PrimitiveArrays.BooleanArray.class);
+        assertThat((List<?>) record.get("nullableLongs")).isEqualTo(Arrays.asList(1L, null));
+        assertThat(record).isEqualTo(SchemaAwareElement.toRecord(typedArrays("10", "-20", "30"), schemaBuddy,
+                ConversionOptions.defaults().withTrustedFastPath(true)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(TYPED_ARRAYS_SCHEMA).write(record, encoder);
+        encoder.flush();
+        GenericRecord read = new GenericDatumReader<GenericRecord>(TYPED_ARRAYS_SCHEMA)
+                .read(null, DecoderFactory.get().binaryDecoder(out.toByteArray(), null));
+        assertThat(read.toString()).isEqualTo(record.toString());
+    }
+
+    @Test
+    void skipArraysWithInvalidElements() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TYPED_ARRAYS_SCHEMA);
+        List<ConversionError> errors = new ArrayList<>();
+        ConversionOptions options = ConversionOptions.defaults()
+                .withErrorPolicy(ErrorPolicy.SKIP_FIELD)
+                .withErrorSink(errors::add);
+
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(typedArrays("10", "x"), schemaBuddy))
+                .isInstanceOf(ConversionException.class);
+        // an array without a default can't be skipped
+        assertThat(SchemaAwareElement.toRecord(typedArrays("10", "x"), schemaBuddy, options)).isNull();
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0).getMessage()).contains("Element 1 of /root/longs is invalid: For input string: \"x\"");
+    }
+
+    @Test
+    void failOnEmptyElementInArrayOfNonNullableLongs() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TYPED_ARRAYS_SCHEMA);
+        List<ConversionError> errors = new ArrayList<>();
+        ConversionOptions options = ConversionOptions.defaults()
+                .withErrorPolicy(ErrorPolicy.SKIP_FIELD)
+                .withErrorSink(errors::add);
+
+        assertThatThrownBy(() -> SchemaAwareElement.toRecord(typedArrays("10", null, "30"), schemaBuddy))
+                .isInstanceOf(ConversionException.class)
+                .hasMessageContaining("Element 1 of /root/longs has no value, but the elements are not nullable");
+        assertThat(SchemaAwareElement.toRecord(typedArrays("10", null, "30"), schemaBuddy, options)).isNull();
+        assertThat(errors).extracting(ConversionError::getPath).containsExactly("/root/longs");
+        assertThat(errors.get(0).getCause()).isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Element 1 of /root/longs has no value, but the elements are not nullable");
+    }
+}
@@ -8,6 +8,7 @@ import org.apache.avro.SchemaBuilder;
 import org.apache.avro.generic.GenericRecord;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -364,5 +365,22 @@ class SchemaBuddyTest {
 
         assertThat(output).isEqualTo(expected);
     }
-}
 
+    @Test
+    void testProject() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+
+        SchemaBuddy projection = schemaBuddy.project(Arrays.asList("/root/id", "/root/person/sex"));
+
+        String expected = "" +
+                "root: record optional:false nullable:false\n" +
+                " |-- id: string optional:false nullable:false\n" +
+                " |-- person: array optional:false nullable:false\n" +
+                " |    |-- person: record optional:false nullable:false\n" +
+                " |    |    |-- sex: string optional:true nullable:false\n";
+        assertThat(projection.toString(true)).isEqualTo(expected);
+        assertThat(projection.getChild("person").getArrayTypeSchema().getChild("sex").getProp("extra")).isEqualTo("person-sex-extra");
+        assertThat(schemaBuddy.project(Collections.singletonList("/root"))).isNotSameAs(schemaBuddy);
+        assertThat(schemaBuddy.project(Collections.singletonList("/root")).toString(true)).isEqualTo(schemaBuddy.toString(true));
+    }
+}
@@ -0,0 +1,115 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SchemaDiffTest {
+
+    private static Schema person(boolean withAge, boolean ageOptional) {
+        SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("person").fields()
+                .name("name").type().stringType().noDefault();
+        if (withAge) {
+            fields = ageOptional
+                    ? fields.name("age").type().optional().intType()
+                    : fields.name("age").type().intType().noDefault();
+        }
+        return fields.endRecord();
+    }
+
+    private static Schema root(Schema countType, Schema person) {
+        return SchemaBuilder.record("root").fields()
+                .name("id").type().stringType().noDefault()
+                .name("count").type(countType).noDefault()
+                .name("person").type().array().items(person).noDefault()
+                .name("address").type().record("address").fields()
+                .name("street").type().stringType().noDefault()
+                .endRecord().noDefault()
+                .endRecord();
+    }
+
+    private static final Schema INT = Schema.create(Schema.Type.INT);
+    private static final Schema LONG = Schema.create(Schema.Type.LONG);
+
+    @Test
+    void identicalSchemasHaveNoChanges() {
+        SchemaBuddy from = SchemaBuddy.parse(root(INT, person(true, false)));
+        SchemaBuddy to = SchemaBuddy.parse(root(INT, person(true, false)));
+
+        SchemaDiff diff = SchemaDiff.compare(from, to);
+
+        assertThat(diff.isIdentical()).isTrue();
+        assertThat(diff.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.FULL);
+        assertThat(from.getStructureHash()).isEqualTo(to.getStructureHash());
+        assertThat(from.getChild("address").getStructureHash()).isEqualTo(to.getChild("address").getStructureHash());
+    }
+
+    @Test
+    void reportChangesByPath() {
+        SchemaBuddy from = SchemaBuddy.parse(root(INT, person(true, false)));
+        SchemaBuddy to = SchemaBuddy.parse(root(LONG, person(false, false)));
+
+        SchemaDiff diff = SchemaDiff.compare(from, to);
+
+        assertThat(diff.getChanges()).extracting(SchemaDiff.Change::toString).containsExactly(
+                "TYPE_CHANGED /root/count: int -> long",
+                "REMOVED /root/person/age: int -> null");
+        // the removed age has no default, so old readers can't read new data
+        assertThat(diff.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.BACKWARD);
+        assertThat(from.getChild("address").getStructureHash()).isEqualTo(to.getChild("address").getStructureHash());
+    }
+
+    @Test
+    void checkCompatibilityOfAddedFields() {
+        SchemaBuddy without = SchemaBuddy.parse(root(INT, person(false, false)));
+
+        SchemaDiff optional = SchemaDiff.compare(without, SchemaBuddy.parse(root(INT, person(true, true))));
+        SchemaDiff required = SchemaDiff.compare(without, SchemaBuddy.parse(root(INT, person(true, false))));
+
+        assertThat(optional.getChanges()).extracting(SchemaDiff.Change::getKind).containsExactly(SchemaDiff.Change.Kind.ADDED);
+        assertThat(optional.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.FULL);
+        assertThat(required.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.FORWARD);
+    }
+
+    @Test
+    void checkCompatibilityOfOptionalAndTypeChanges() {
+        SchemaBuddy required = SchemaBuddy.parse(root(LONG, person(true, false)));
+        SchemaBuddy optional = SchemaBuddy.parse(root(INT, person(true, true)));
+
+        SchemaDiff diff = SchemaDiff.compare(required, optional);
+
+        assertThat(diff.getChanges()).extracting(SchemaDiff.Change::toString).containsExactly(
+                "TYPE_CHANGED /root/count: long -> int",
+                "OPTIONAL_CHANGED /root/person/age: false -> true");
+        assertThat(diff.getChanges()).extracting(SchemaDiff.Change::isBackwardCompatible).containsExactly(false, true);
+        assertThat(diff.getChanges()).extracting(SchemaDiff.Change::isForwardCompatible).containsExactly(true, false);
+        assertThat(diff.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.NONE);
+    }
+
+    @Test
+    void compareMapValuesAndNames() {
+        Schema strings = SchemaBuilder.record("root").fields()
+                .name("labels").type().map().values().stringType().noDefault()
+                .name("address").type().record("address").namespace("no.ssb").fields()
+                .name("street").type().stringType().noDefault()
+                .endRecord().noDefault()
+                .endRecord();
+        Schema longs = SchemaBuilder.record("root").fields()
+                .name("labels").type().map().values().longType().noDefault()
+                .name("address").type().record("address").namespace("no.ssb.other").fields()
+                .name("street").type().stringType().noDefault()
+                .endRecord().noDefault()
+                .endRecord();
+
+        SchemaDiff diff = SchemaDiff.compare(SchemaBuddy.parse(strings), SchemaBuddy.parse(longs));
+
+        assertThat(diff.getChanges()).extracting(SchemaDiff.Change::toString).containsExactly(
+                "TYPE_CHANGED /root/labels: map<string> -> map<long>",
+                "TYPE_CHANGED /root/address: record no.ssb.address -> record no.ssb.other.address");
+        assertThat(diff.getCompatibility()).isEqualTo(SchemaDiff.Compatibility.NONE);
+        assertThat(SchemaDiff.typeName(SchemaBuilder.map().values(strings)))
+                .isEqualTo("map<record root{labels: map<string>, address: record no.ssb.address{street: string}}>");
+    }
+}
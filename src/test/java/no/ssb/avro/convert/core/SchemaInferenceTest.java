@@ -0,0 +1,123 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SchemaInferenceTest {
+
+    private static List<DataElement> samples(int count) {
+        List<DataElement> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                    .addValue("id", "00" + i)
+                    .addValue("count", String.valueOf(i * 1000))
+                    .addValue("ratio", i % 2 == 0 ? "1" : "0.5")
+                    .addValue("flag", i % 2 == 0 ? "true" : "FALSE")
+                    .addValue("comment", i % 3 == 0 ? null : "c" + i)
+                    .addValue("languages", "en")
+                    .addValue("languages", "no");
+            if (i % 4 != 0) {
+                builder.addChild(DataElementBuilder.root("address").addValue("city", "Oslo").build());
+            }
+            for (int person = 0; person < i % 3; person++) {
+                builder.addChild(DataElementBuilder.root("person")
+                        .addValue("name", "p" + person)
+                        .addChild(DataElementBuilder.root("address").addValue("street", "s" + person).build())
+                        .build());
+            }
+            samples.add(builder.build());
+        }
+        return samples;
+    }
+
+    @Test
+    void inferSchema() {
+        SchemaInference inference = new SchemaInference();
+        samples(12).forEach(inference::add);
+
+        Schema schema = inference.toSchema();
+
+        assertThat(inference.getSamples()).isEqualTo(12);
+        assertThat(schema.toString()).isEqualTo("{\"type\":\"record\",\"name\":\"root\",\"fields\":[" +
+                "{\"name\":\"id\",\"type\":\"string\"}," +
+                "{\"name\":\"count\",\"type\":\"long\"}," +
+                "{\"name\":\"ratio\",\"type\":\"double\"}," +
+                "{\"name\":\"flag\",\"type\":\"boolean\"}," +
+                "{\"name\":\"comment\",\"type\":[\"null\",\"string\"],\"default\":null}," +
+                "{\"name\":\"languages\",\"type\":{\"type\":\"array\",\"items\":\"string\"}}," +
+                "{\"name\":\"address\",\"type\":[\"null\",{\"type\":\"record\",\"name\":\"address\",\"fields\":[" +
+                "{\"name\":\"city\",\"type\":\"string\"}]}],\"default\":null}," +
+                "{\"name\":\"person\",\"type\":[\"null\",{\"type\":\"array\",\"items\":{\"type\":\"record\",\"name\":\"person\",\"fields\":[" +
+                "{\"name\":\"name\",\"type\":\"string\"}," +
+                "{\"name\":\"address\",\"type\":{\"type\":\"record\",\"name\":\"person_address\",\"fields\":[" +
+                "{\"name\":\"street\",\"type\":\"string\"}]}}]}}],\"default\":null}]}");
+    }
+
+    @Test
+    void convertSamplesWithInferredSchema() {
+        List<DataElement> samples = samples(12);
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(samples.stream().collect(SchemaInference.collector()));
+
+        for (DataElement sample : samples) {
+            GenericRecord record = SchemaAwareElement.toRecord(sample, schemaBuddy);
+            assertThat(record.get("id")).isEqualTo(sample.findChildByName("id").getValue());
+        }
+        GenericRecord record = SchemaAwareElement.toRecord(samples.get(5), schemaBuddy);
+        assertThat(record.toString()).isEqualTo("{\"id\": \"005\", \"count\": 5000, \"ratio\": 0.5, \"flag\": false, " +
+                "\"comment\": \"c5\", \"languages\": [\"en\", \"no\"], \"address\": {\"city\": \"Oslo\"}, " +
+                "\"person\": [{\"name\": \"p0\", \"address\": {\"street\": \"s0\"}}, {\"name\": \"p1\", \"address\": {\"street\": \"s1\"}}]}");
+    }
+
+    @Test
+    void mergePartialResults() {
+        List<DataElement> samples = samples(100);
+        SchemaInference sequential = new SchemaInference();
+        samples.forEach(sequential::add);
+
+        SchemaInference first = new SchemaInference();
+        SchemaInference second = new SchemaInference();
+        samples.subList(0, 1).forEach(first::add);
+        samples.subList(1, 100).forEach(second::add);
+
+        assertThat(first.merge(second).toSchema()).isEqualTo(sequential.toSchema());
+        assertThat(samples.parallelStream().collect(SchemaInference.collector())).isEqualTo(sequential.toSchema());
+    }
+
+    @Test
+    void keepFieldsInOrderFirstSeenInParallel() {
+        // field f<n> is first seen in sample n * 1000
+        List<DataElement> samples = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            samples.add(DataElementBuilder.root("root").addValue("f" + (i / 1000), "1").build());
+        }
+
+        Schema schema = samples.parallelStream().collect(SchemaInference.collector());
+
+        assertThat(schema.getFields()).extracting(Schema.Field::name)
+                .containsExactly("f0", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9");
+    }
+
+    @Test
+    void inferTypesOfValues() {
+        SchemaInference inference = new SchemaInference();
+        String[][] values = {{"big", "12345678901234567890123"}, {"exponent", "1e-3"}, {"text", "1e"}, {"negative", "-42"}, {"empty", ""}};
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root");
+        for (String[] value : values) {
+            builder.addValue(value[0], value[1]);
+        }
+        inference.add(builder.build());
+
+        assertThat(inference.toSchema().getFields()).extracting(field -> field.name() + ":" + field.schema().getType())
+                .containsExactly("big:STRING", "exponent:DOUBLE", "text:STRING", "negative:LONG", "empty:STRING");
+        assertThatThrownBy(() -> inference.add(DataElementBuilder.root("other").build()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Expected root root, was other");
+    }
+}
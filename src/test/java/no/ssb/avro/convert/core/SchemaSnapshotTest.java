@@ -0,0 +1,77 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SchemaSnapshotTest {
+
+    @Test
+    void writeAndRestore(@TempDir Path tempDir) throws IOException {
+        SchemaBuddy extended = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+        extended.getChild("id").setId("my-id");
+        extended.getChild("person").getArrayTypeSchema().setProp("count", 42);
+        String generatedId = extended.getChild("languages").getId();
+
+        Schema otherSchema = SchemaBuilder.record("other").namespace("no.ssb.dataset")
+                .fields()
+                .name("value").type().longType().noDefault()
+                .endRecord();
+        SchemaBuddy other = SchemaBuddy.parse(otherSchema);
+
+        Path file = tempDir.resolve("schemas.snapshot");
+        SchemaSnapshot.write(file, Arrays.asList(extended, other));
+
+        SchemaSnapshot snapshot = SchemaSnapshot.open(file);
+        assertThat(snapshot.getNames()).containsExactly("root", "no.ssb.dataset.other");
+        assertThat(snapshot.get("unknown")).isNull();
+
+        SchemaBuddy restored = snapshot.get("root");
+        assertThat(restored).isSameAs(snapshot.get("root"));
+        assertThat(restored.toString(true)).isEqualTo(extended.toString(true));
+        assertThat(restored.getSchema()).isEqualTo(extended.getSchema());
+        assertThat(restored.getChild("id").getId()).isEqualTo("my-id");
+        assertThat(restored.getChild("languages").getId()).isEqualTo(generatedId);
+        assertThat(restored.getChild("person").getArrayTypeSchema().getProp("count")).isEqualTo(42);
+        assertThat(restored.getChild("person").getArrayTypeSchema().getChild("name").getProp("extra")).isEqualTo("person-name-extra");
+        assertThat(restored.getChild("person").getArrayTypeSchema().getChild("name").getPath()).isEqualTo("/root/person/person/name");
+
+        assertThat(snapshot.get("no.ssb.dataset.other").toString(true)).isEqualTo(other.toString(true));
+    }
+
+    @Test
+    void restoreSchemasWithoutParsing(@TempDir Path tempDir) throws IOException {
+        Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"root\", \"namespace\": \"no.ssb\", \"doc\": \"Root\", \"fields\": ["
+                + "{\"name\": \"ratio\", \"type\": \"float\", \"default\": 0.1, \"doc\": \"A ratio\", \"aliases\": [\"share\"], \"extra\": [1, \"two\", null]},"
+                + "{\"name\": \"amount\", \"type\": [\"null\", {\"type\": \"bytes\", \"logicalType\": \"decimal\", \"precision\": 9, \"scale\": 2}], \"default\": null},"
+                + "{\"name\": \"color\", \"type\": {\"type\": \"enum\", \"name\": \"Color\", \"symbols\": [\"RED\", \"GREEN\"]}, \"order\": \"descending\"},"
+                + "{\"name\": \"hash\", \"type\": {\"type\": \"fixed\", \"name\": \"Hash\", \"size\": 4, \"aliases\": [\"Digest\"]}, \"default\": \"\\u00ff\\u0000ab\"},"
+                + "{\"name\": \"point\", \"type\": {\"type\": \"record\", \"name\": \"Point\", \"fields\": [{\"name\": \"x\", \"type\": \"float\"}, {\"name\": \"tag\", \"type\": \"bytes\"}]}, \"default\": {\"x\": 1.5, \"tag\": \"\\u00e5\"}},"
+                + "{\"name\": \"labels\", \"type\": {\"type\": \"map\", \"values\": \"string\"}, \"default\": {\"a\": \"b\"}},"
+                + "{\"name\": \"colors\", \"type\": {\"type\": \"array\", \"items\": \"Color\"}}"
+                + "]}");
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(schema);
+
+        Path file = tempDir.resolve("schemas.snapshot");
+        SchemaSnapshot.write(file, Arrays.asList(schemaBuddy));
+        SchemaBuddy restored = SchemaSnapshot.open(file).get("no.ssb.root");
+
+        assertThat(restored.getSchema()).isNotSameAs(schema).isEqualTo(schema);
+        assertThat(restored.getSchema().toString()).isEqualTo(schema.toString());
+        assertThat(restored.toString(true)).isEqualTo(schemaBuddy.toString(true));
+        assertThat(restored.getChild("amount").getSchema()).isEqualTo(schemaBuddy.getChild("amount").getSchema());
+        assertThat(restored.getChild("amount").getSchema().getLogicalType()).isEqualTo(LogicalTypes.decimal(9, 2));
+        assertThat(restored.getSchema().getField("ratio").aliases()).containsExactly("share");
+        assertThat(restored.getSchema().getField("hash").schema().getAliases()).containsExactly("no.ssb.Digest");
+        // Named schemas referenced twice are restored as one schema, as when parsed
+        assertThat(restored.getChild("colors").getArrayTypeSchema().getSchema()).isSameAs(restored.getChild("color").getSchema());
+    }
+}
@@ -0,0 +1,71 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SchemaStoreTest {
+
+    private final Schema other = SchemaBuilder.record("other").namespace("no.ssb.dataset")
+            .fields()
+            .name("value").type().longType().noDefault()
+            .endRecord();
+
+    @Test
+    void lookupByFingerprint(@TempDir Path directory) throws IOException {
+        Schema extended = TestUtils.avroSchemaExtended();
+        Files.write(directory.resolve("avro-schema-extended.avsc"), extended.toString(true).getBytes(StandardCharsets.UTF_8));
+        SchemaStore store = new SchemaStore(directory, 10);
+
+        SchemaBuddy schemaBuddy = store.get(SchemaStore.fingerprint(extended));
+        assertThat(schemaBuddy.getSchema()).isEqualTo(extended);
+        assertThat(store.get(SchemaStore.fingerprint(extended))).isSameAs(schemaBuddy);
+        assertThat(store.get(SchemaStore.fingerprint(other))).isNull();
+
+        // files with other names than the fingerprint are found when the store is refreshed
+        Files.write(directory.resolve("other.avsc"), other.toString().getBytes(StandardCharsets.UTF_8));
+        assertThat(store.get(SchemaStore.fingerprint(other))).isNull();
+        store.refresh();
+        assertThat(store.get(SchemaStore.fingerprint(other)).getName()).isEqualTo("other");
+    }
+
+    @Test
+    void rememberMisses(@TempDir Path directory) throws IOException {
+        SchemaStore store = new SchemaStore(directory, 10);
+        long fingerprint = SchemaStore.fingerprint(other);
+        assertThat(store.get(fingerprint)).isNull();
+
+        // registered by another store, not looked up again until the miss expires or the store is refreshed
+        new SchemaStore(directory, 10).register(other);
+        assertThat(directory.resolve(String.format("%016x.avsc", fingerprint))).exists();
+        assertThat(store.get(fingerprint)).isNull();
+        store.refresh();
+        assertThat(store.get(fingerprint).getName()).isEqualTo("other");
+    }
+
+    @Test
+    void evictLeastRecentlyUsed(@TempDir Path directory) throws IOException {
+        Schema extended = TestUtils.avroSchemaExtended();
+        SchemaStore store = new SchemaStore(directory, 1);
+        long extendedFingerprint = store.register(extended);
+        long otherFingerprint = store.register(other);
+        assertThat(Files.list(directory).count()).isEqualTo(2);
+
+        SchemaBuddy first = store.get(extendedFingerprint);
+        assertThat(store.get(extendedFingerprint)).isSameAs(first);
+        assertThat(store.get(otherFingerprint).getName()).isEqualTo("other");
+        // evicted, so parsed again
+        assertThat(store.get(extendedFingerprint)).isNotSameAs(first);
+        assertThat(store.getSchema(extendedFingerprint)).isEqualTo(extended);
+
+        assertThat(new SchemaStore(directory, 1).get(otherFingerprint).getName()).isEqualTo("other");
+    }
+}
@@ -0,0 +1,82 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillingConverterTest {
+
+    private final SchemaBuddy schemaBuddy = SchemaBuddy.parse(TestUtils.avroSchemaExtended());
+
+    private static DataElement persons(int count) {
+        DataElementBuilder.RootBuilder builder = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("languages", "en")
+                .addValue("languages", "no");
+        for (int i = 0; i < count; i++) {
+            builder.addChild(DataElementBuilder.root("person")
+                    .addValue("name", "person" + i)
+                    .addValue("sex", i % 2 == 0 ? "Female" : null)
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private byte[] expected(DataElement dataElement) {
+        GenericRecord record = SchemaAwareElement.toRecord(dataElement, schemaBuddy);
+        return ConversionPipeline.encoder(schemaBuddy.getSchema()).apply(record);
+    }
+
+    @Test
+    void sameBytesWhenSpilling(@TempDir Path tempDir) throws IOException {
+        SpillingConverter converter = SpillingConverter.forSchema(schemaBuddy, ConversionOptions.defaults())
+                .withMemoryBudget(10_000)
+                .withTempDirectory(tempDir);
+        DataElement dataElement = persons(1_000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(converter.write(dataElement, out)).isTrue();
+
+        assertThat(out.toByteArray()).isEqualTo(expected(dataElement));
+        assertThat(converter.getSpilledElements()).isGreaterThan(900);
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void keepInMemoryWithinBudget() throws IOException {
+        SpillingConverter converter = SpillingConverter.forSchema(schemaBuddy, ConversionOptions.defaults());
+        DataElement dataElement = persons(10);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.write(dataElement, out);
+
+        assertThat(out.toByteArray()).isEqualTo(expected(dataElement));
+        assertThat(converter.getSpilledElements()).isZero();
+    }
+
+    @Test
+    void writeRecordWithoutArrayElements() throws IOException {
+        SpillingConverter converter = SpillingConverter.forSchema(schemaBuddy, ConversionOptions.defaults())
+                .withMemoryBudget(0);
+        DataElement dataElement = DataElementBuilder.root("root")
+                .addValue("id", "007")
+                .addValue("languages", "en")
+                .build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.write(dataElement, out);
+
+        // person is required, the generic path can't convert a record without persons
+        assertThat(out.toByteArray()).isEqualTo(new byte[]{6, '0', '0', '7', 0, 2, 4, 'e', 'n', 0});
+    }
+}
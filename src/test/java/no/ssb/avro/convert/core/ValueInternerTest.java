@@ -0,0 +1,110 @@
+package no.ssb.avro.convert.core;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ValueInternerTest {
+
+    private static final Schema SCHEMA = SchemaBuilder
+            .record("root")
+            .fields()
+            .name("status").prop(ValueInterner.PROP, "true").type().stringType().noDefault()
+            .name("name").type().stringType().noDefault()
+            .name("codes").type().array().items().stringType().noDefault()
+            .endRecord();
+
+    private static DataElement dataElement(String status, String name, String code) {
+        return DataElementBuilder.root("root")
+                .addValue("status", new String(status))
+                .addValue("name", new String(name))
+                .addValue("codes", new String(code))
+                .build();
+    }
+
+    @Test
+    void internFieldsWithPropOrPath() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        ValueInterner valueInterner = new ValueInterner(100, Collections.singleton("/root/codes"));
+        ConversionOptions options = ConversionOptions.defaults().withValueInterner(valueInterner);
+
+        GenericRecord first = SchemaAwareElement.toRecord(dataElement("ACTIVE", "James", "0301"), schemaBuddy, options);
+        GenericRecord second = SchemaAwareElement.toRecord(dataElement("ACTIVE", "James", "0301"), schemaBuddy, options);
+
+        assertThat(first.get("status")).isSameAs(second.get("status"));
+        assertThat(((List<?>) first.get("codes")).get(0)).isSameAs(((List<?>) second.get("codes")).get(0));
+        assertThat(first.get("name")).isNotSameAs(second.get("name")).isEqualTo(second.get("name"));
+        assertThat(valueInterner.size("/root/status")).isEqualTo(1);
+        assertThat(valueInterner.size("/root/name")).isEqualTo(0);
+    }
+
+    @Test
+    void compiledConverterInterns() {
+        SchemaBuddy schemaBuddy = SchemaBuddy.parse(SCHEMA);
+        ValueInterner valueInterner = new ValueInterner(100, Collections.singleton("/root/codes"));
+        CompiledConverter converter = CompiledConverter.forSchema(schemaBuddy,
+                ConversionOptions.defaults().withValueInterner(valueInterner));
+
+        GenericRecord first = converter.convert(dataElement("ACTIVE", "James", "0301"));
+        GenericRecord second = converter.convert(dataElement("ACTIVE", "James", "0301"));
+
+        assertThat(first.get("status")).isSameAs(second.get("status"));
+        assertThat(((List<?>) first.get("codes")).get(0)).isSameAs(((List<?>) second.get("codes")).get(0));
+    }
+
+    @Test
+    void stopAddingWhenTableIsFull() {
+        SchemaBuddy status = SchemaBuddy.parse(SCHEMA).getChild("status");
+        ValueInterner valueInterner = new ValueInterner(2);
+
+        String first = valueInterner.intern(status, new String("A"));
+        valueInterner.intern(status, new String("B"));
+        String third = new String("C");
+
+        assertThat(valueInterner.intern(status, third)).isSameAs(third);
+        assertThat(valueInterner.intern(status, new String("C"))).isNotSameAs(third);
+        assertThat(valueInterner.intern(status, new String("A"))).isSameAs(first);
+        assertThat(valueInterner.size("/root/status")).isEqualTo(2);
+    }
+
+    @Test
+    void keepCopyOfReusedUtf8() {
+        SchemaBuddy status = SchemaBuddy.parse(SCHEMA).getChild("status");
+        ValueInterner valueInterner = new ValueInterner(100);
+        Utf8 reused = new Utf8("A");
+
+        Utf8 first = valueInterner.intern(status, reused);
+        reused.set("B");
+
+        Utf8 second = valueInterner.intern(status, reused);
+
+        assertThat((Object) first).isNotSameAs(reused);
+        assertThat(first.toString()).isEqualTo("A");
+        assertThat((Object) valueInterner.intern(status, new Utf8("A"))).isSameAs(first);
+        assertThat(second.toString()).isEqualTo("B");
+        assertThat(valueInterner.size("/root/status")).isEqualTo(2);
+    }
+
+    @Test
+    void shareTablesBetweenParsesOfASchema() {
+        ValueInterner valueInterner = new ValueInterner(100);
+        ValueInterner otherInterner = new ValueInterner(100);
+        SchemaBuddy status = SchemaBuddy.parse(SCHEMA).getChild("status");
+        SchemaBuddy reparsedStatus = SchemaBuddy.parse(SCHEMA).getChild("status");
+
+        String first = valueInterner.intern(status, new String("A"));
+        String other = otherInterner.intern(status, new String("A"));
+
+        assertThat(valueInterner.intern(reparsedStatus, new String("A"))).isSameAs(first);
+        assertThat(valueInterner.intern(status, new String("A"))).isSameAs(first);
+        assertThat(other).isNotSameAs(first);
+        assertThat(valueInterner.size("/root/status")).isEqualTo(1);
+    }
+}